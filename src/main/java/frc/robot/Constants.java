@@ -24,6 +24,14 @@ package frc.robot;
 public final class Constants {
   public static final Mode currentMode = Mode.REAL;
 
+  /**
+   * Real-time priority of the Phoenix odometry sampling threads (1-99, higher preempts more), or 0
+   * to leave them at normal priority. The main robot thread is not real-time, so a sampling thread
+   * that stops blocking (e.g. "waitForAll" failing immediately on a disconnected bus) would starve
+   * the main loop. Only raise after checking the loop timing on the robot.
+   */
+  public static final int odometryThreadPriority = 0;
+
   public static enum Mode {
     /** Running on a real robot. */
     REAL,
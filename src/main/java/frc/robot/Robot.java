@@ -15,6 +15,11 @@ package frc.robot;
 
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
+import frc.robot.util.AutoSimRunner;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.ConfigExecutor;
+import frc.robot.util.ControlRequestFilter;
+import frc.robot.util.PhoenixSignalRegistry;
 import org.littletonrobotics.junction.LogFileUtil;
 import org.littletonrobotics.junction.LoggedRobot;
 import org.littletonrobotics.junction.Logger;
@@ -31,6 +36,7 @@ import org.littletonrobotics.junction.wpilog.WPILOGWriter;
 public class Robot extends LoggedRobot {
   private Command autonomousCommand;
   private RobotContainer robotContainer;
+  private AutoSimRunner autoSimRunner = null;
 
   /**
    * This function is run when the robot is first started up and should be used for any
@@ -65,8 +71,13 @@ public class Robot extends LoggedRobot {
         break;
 
       case SIM:
-        // Running a physics simulator, log to NT
-        Logger.addDataReceiver(new NT4Publisher());
+        if (AutoSimRunner.isRequested()) {
+          // Running every auto headless, as fast as possible
+          setUseTiming(false);
+        } else {
+          // Running a physics simulator, log to NT
+          Logger.addDataReceiver(new NT4Publisher());
+        }
         break;
 
       case REPLAY:
@@ -86,18 +97,42 @@ public class Robot extends LoggedRobot {
 
     // Instantiate our RobotContainer. This will perform all our button bindings,
     // and put our autonomous chooser on the dashboard.
+    long containerStart = Logger.getRealTimestamp();
     robotContainer = new RobotContainer();
+    Logger.recordOutput(
+        "StartupTiming/RobotContainerMs", (Logger.getRealTimestamp() - containerStart) / 1e3);
+
+    if (AutoSimRunner.isRequested()) {
+      if (Constants.currentMode == Constants.Mode.SIM) {
+        autoSimRunner =
+            new AutoSimRunner(
+                robotContainer.getSimTruePoseSupplier(), robotContainer.getDrive()::getPose);
+      } else {
+        System.err.println("Running the autos headless requires SIM mode");
+        System.exit(1);
+      }
+    }
   }
 
   /** This function is called periodically during all modes. */
   @Override
   public void robotPeriodic() {
+    // Refreshes the Phoenix status signals with one call per CAN bus, before the
+    // subsystems read their inputs
+    PhoenixSignalRegistry.getInstance().refreshAll();
+
     // Runs the Scheduler. This is responsible for polling buttons, adding
     // newly-scheduled commands, running already-scheduled commands, removing
     // finished or interrupted commands, and running subsystem periodic() methods.
     // This must be called from the robot's periodic block in order for anything in
     // the Command-based framework to work.
     CommandScheduler.getInstance().run();
+    ConfigExecutor.getInstance().periodic();
+    CanBusBudget.getInstance().periodic();
+    ControlRequestFilter.periodic();
+    if (autoSimRunner != null) {
+      autoSimRunner.periodic();
+    }
   }
 
   /** This function is called once when the robot is disabled. */
@@ -111,6 +146,9 @@ public class Robot extends LoggedRobot {
   /** This autonomous runs the autonomous command selected by your {@link RobotContainer} class. */
   @Override
   public void autonomousInit() {
+    if (autoSimRunner != null) {
+      return; // The runner schedules each auto itself
+    }
     autonomousCommand = robotContainer.getAutonomousCommand();
 
     // schedule the autonomous command (example)
@@ -24,16 +24,26 @@ import edu.wpi.first.wpilibj2.command.Commands;
 import edu.wpi.first.wpilibj2.command.button.CommandXboxController;
 import edu.wpi.first.wpilibj2.command.sysid.SysIdRoutine;
 import frc.robot.commands.DriveCommands;
+import frc.robot.commands.FlywheelCommands;
 import frc.robot.subsystems.drive.Drive;
 import frc.robot.subsystems.drive.GyroIO;
 import frc.robot.subsystems.drive.GyroIOPigeon2;
+import frc.robot.subsystems.drive.GyroIOSim;
 import frc.robot.subsystems.drive.ModuleIO;
 import frc.robot.subsystems.drive.ModuleIOSim;
 import frc.robot.subsystems.drive.ModuleIOSparkMax;
+import frc.robot.subsystems.drive.SimOdometrySampler;
 import frc.robot.subsystems.flywheel.Flywheel;
 import frc.robot.subsystems.flywheel.FlywheelIO;
 import frc.robot.subsystems.flywheel.FlywheelIOSim;
 import frc.robot.subsystems.flywheel.FlywheelIOSparkMax;
+import frc.robot.subsystems.vision.Vision;
+import frc.robot.subsystems.vision.VisionIO;
+import frc.robot.subsystems.vision.VisionIOSim;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.ParallelStartup;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import org.littletonrobotics.junction.networktables.LoggedDashboardChooser;
 import org.littletonrobotics.junction.networktables.LoggedDashboardNumber;
 
@@ -47,6 +57,8 @@ public class RobotContainer {
   // Subsystems
   private final Drive drive;
   private final Flywheel flywheel;
+  private final Vision vision;
+  private Supplier<Pose2d> simTruePoseSupplier = null; // Only in SIM mode
 
   // Controller
   private final CommandXboxController controller = new CommandXboxController(0);
@@ -60,15 +72,30 @@ public class RobotContainer {
   public RobotContainer() {
     switch (Constants.currentMode) {
       case REAL:
-        // Real robot, instantiate hardware IO implementations
-        drive =
-            new Drive(
-                new GyroIOPigeon2(false),
-                new ModuleIOSparkMax(0),
-                new ModuleIOSparkMax(1),
-                new ModuleIOSparkMax(2),
-                new ModuleIOSparkMax(3));
-        flywheel = new Flywheel(new FlywheelIOSparkMax());
+        // Real robot, instantiate hardware IO implementations. The devices are
+        // configured in parallel since each one mostly waits on CAN round trips.
+        ParallelStartup startup = new ParallelStartup("DeviceConfig", 6);
+        try {
+          Future<GyroIO> gyroIO = startup.submit("Gyro", () -> new GyroIOPigeon2(false));
+          Future<ModuleIO> flModuleIO = startup.submit("Module0", () -> new ModuleIOSparkMax(0));
+          Future<ModuleIO> frModuleIO = startup.submit("Module1", () -> new ModuleIOSparkMax(1));
+          Future<ModuleIO> blModuleIO = startup.submit("Module2", () -> new ModuleIOSparkMax(2));
+          Future<ModuleIO> brModuleIO = startup.submit("Module3", () -> new ModuleIOSparkMax(3));
+          Future<FlywheelIO> flywheelIO = startup.submit("Flywheel", FlywheelIOSparkMax::new);
+          drive =
+              new Drive(
+                  ParallelStartup.get(gyroIO),
+                  ParallelStartup.get(flModuleIO),
+                  ParallelStartup.get(frModuleIO),
+                  ParallelStartup.get(blModuleIO),
+                  ParallelStartup.get(brModuleIO));
+          flywheel = new Flywheel(ParallelStartup.get(flywheelIO));
+        } finally {
+          startup.finish();
+        }
+        CanBusBudget.getInstance().applyRates();
+        // No camera hardware IO yet, the cameras report as disconnected
+        vision = new Vision(drive, new VisionIO() {}, new VisionIO() {});
         // drive = new Drive(
         // new GyroIOPigeon2(true),
         // new ModuleIOTalonFX(0),
@@ -80,14 +107,23 @@ public class RobotContainer {
 
       case SIM:
         // Sim robot, instantiate physics sim IO implementations
+        SimOdometrySampler odometrySampler = new SimOdometrySampler(0.0005, 0.002, 0.01);
+        simTruePoseSupplier = odometrySampler::getTruePose;
         drive =
             new Drive(
-                new GyroIO() {},
-                new ModuleIOSim(),
-                new ModuleIOSim(),
-                new ModuleIOSim(),
-                new ModuleIOSim());
+                new GyroIOSim(odometrySampler),
+                new ModuleIOSim(odometrySampler),
+                new ModuleIOSim(odometrySampler),
+                new ModuleIOSim(odometrySampler),
+                new ModuleIOSim(odometrySampler),
+                odometrySampler::setTruePose);
         flywheel = new Flywheel(new FlywheelIOSim());
+        // The cameras see the true pose of the simulated robot, not the estimate they correct
+        vision =
+            new Vision(
+                drive,
+                new VisionIOSim(Vision.CAMERA_NAMES[0], odometrySampler::getTruePose, 0.02, 1),
+                new VisionIOSim(Vision.CAMERA_NAMES[1], odometrySampler::getTruePose, 0.03, 2));
         break;
 
       default:
@@ -100,6 +136,7 @@ public class RobotContainer {
                 new ModuleIO() {},
                 new ModuleIO() {});
         flywheel = new Flywheel(new FlywheelIO() {});
+        vision = new Vision(drive, new VisionIO() {}, new VisionIO() {});
         break;
     }
 
@@ -107,7 +144,9 @@ public class RobotContainer {
     NamedCommands.registerCommand(
         "Run Flywheel",
         Commands.startEnd(
-                () -> flywheel.runVelocity(flywheelSpeedInput.get()), flywheel::stop, flywheel)
+                () -> flywheel.runVelocityWithBoost(flywheelSpeedInput.get()),
+                flywheel::stop,
+                flywheel)
             .withTimeout(5.0));
     autoChooser = new LoggedDashboardChooser<>("Auto Choices", AutoBuilder.buildAutoChooser());
 
@@ -132,6 +171,10 @@ public class RobotContainer {
         "Flywheel SysId (Dynamic Forward)", flywheel.sysIdDynamic(SysIdRoutine.Direction.kForward));
     autoChooser.addOption(
         "Flywheel SysId (Dynamic Reverse)", flywheel.sysIdDynamic(SysIdRoutine.Direction.kReverse));
+    if (Constants.currentMode == Constants.Mode.SIM) {
+      autoChooser.addOption(
+          "Flywheel Controller Benchmark", FlywheelCommands.benchmark(flywheel, 3000.0, 5));
+    }
 
     // Configure the button bindings
     configureButtonBindings();
@@ -164,7 +207,21 @@ public class RobotContainer {
         .a()
         .whileTrue(
             Commands.startEnd(
-                () -> flywheel.runVelocity(flywheelSpeedInput.get()), flywheel::stop, flywheel));
+                () -> flywheel.runVelocityWithBoost(flywheelSpeedInput.get()),
+                flywheel::stop,
+                flywheel));
+    // Feeds a simulated game piece through the flywheel (no-op outside simulation)
+    controller.rightBumper().onTrue(Commands.runOnce(flywheel::simulateShot));
+  }
+
+  /** Returns the drive subsystem. */
+  public Drive getDrive() {
+    return drive;
+  }
+
+  /** Returns the supplier of the true pose of the simulated robot, or null if not in SIM mode. */
+  public Supplier<Pose2d> getSimTruePoseSupplier() {
+    return simTruePoseSupplier;
   }
 
   /**
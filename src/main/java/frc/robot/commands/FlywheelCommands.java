@@ -0,0 +1,99 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.commands;
+
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.Command;
+import edu.wpi.first.wpilibj2.command.Commands;
+import frc.robot.subsystems.flywheel.Flywheel;
+import java.util.function.DoubleConsumer;
+import org.littletonrobotics.junction.Logger;
+
+public class FlywheelCommands {
+  private static final double SETTLED_TOLERANCE_RPM = 30.0;
+  private static final double STOPPED_RPM = 10.0;
+
+  private FlywheelCommands() {}
+
+  /**
+   * Compares the default velocity controller with the boosted controller (intended for simulation).
+   * For each controller, measures the spin-up time from rest and the mean recovery time over
+   * several simulated shots, logged under "FlywheelBenchmark".
+   */
+  public static Command benchmark(Flywheel flywheel, double velocityRPM, int shotCount) {
+    return Commands.sequence(
+            benchmarkController(flywheel, "Default", flywheel::runVelocity, velocityRPM, shotCount),
+            benchmarkController(
+                flywheel, "Boost", flywheel::runVelocityWithBoost, velocityRPM, shotCount))
+        .finallyDo(flywheel::stop);
+  }
+
+  private static Command benchmarkController(
+      Flywheel flywheel, String name, DoubleConsumer run, double velocityRPM, int shotCount) {
+    Timer spinUpTimer = new Timer();
+    double[] totalRecoverySecs = new double[1];
+    int[] recoveredShots = new int[1];
+    int[] expectedShotCount = new int[1];
+    String key = "FlywheelBenchmark/" + name;
+
+    Command shot =
+        Commands.sequence(
+            Commands.runOnce(
+                () -> {
+                  expectedShotCount[0] = flywheel.getShotCount() + 1;
+                  flywheel.simulateShot();
+                }),
+            Commands.waitUntil(
+                    () ->
+                        flywheel.getShotCount() >= expectedShotCount[0]
+                            && !flywheel.isRecoveringFromShot())
+                .withTimeout(2.0),
+            Commands.runOnce(
+                () -> {
+                  double recoverySecs = flywheel.getLastShotRecoverySecs();
+                  if (flywheel.getShotCount() >= expectedShotCount[0]
+                      && !Double.isNaN(recoverySecs)) {
+                    totalRecoverySecs[0] += recoverySecs;
+                    recoveredShots[0]++;
+                  }
+                }),
+            Commands.waitSeconds(0.3));
+
+    return Commands.sequence(
+        Commands.runOnce(flywheel::stop, flywheel),
+        Commands.waitUntil(() -> Math.abs(flywheel.getVelocityRPM()) < STOPPED_RPM)
+            .withTimeout(10.0),
+        Commands.runOnce(
+            () -> {
+              totalRecoverySecs[0] = 0.0;
+              recoveredShots[0] = 0;
+              spinUpTimer.restart();
+              run.accept(velocityRPM);
+            },
+            flywheel),
+        Commands.waitUntil(
+                () -> Math.abs(flywheel.getVelocityRPM() - velocityRPM) < SETTLED_TOLERANCE_RPM)
+            .withTimeout(10.0),
+        Commands.runOnce(() -> Logger.recordOutput(key + "/SpinUpMs", spinUpTimer.get() * 1e3)),
+        Commands.waitSeconds(0.5),
+        shot.repeatedly().withTimeout(shotCount * 2.5).until(() -> recoveredShots[0] >= shotCount),
+        Commands.runOnce(
+            () -> {
+              Logger.recordOutput(key + "/RecoveredShots", recoveredShots[0]);
+              Logger.recordOutput(
+                  key + "/MeanRecoveryMs",
+                  recoveredShots[0] > 0 ? totalRecoverySecs[0] / recoveredShots[0] * 1e3 : -1.0);
+            }));
+  }
+}
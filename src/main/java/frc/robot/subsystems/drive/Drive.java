@@ -20,15 +20,17 @@ import com.pathplanner.lib.pathfinding.Pathfinding;
 import com.pathplanner.lib.util.HolonomicPathFollowerConfig;
 import com.pathplanner.lib.util.PathPlannerLogging;
 import com.pathplanner.lib.util.ReplanningConfig;
+import edu.wpi.first.math.Matrix;
 import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Translation2d;
-import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.kinematics.SwerveModuleState;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.DriverStation.Alliance;
@@ -36,8 +38,11 @@ import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import edu.wpi.first.wpilibj2.command.sysid.SysIdRoutine;
 import frc.robot.util.LocalADStarAK;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import frc.robot.util.ParallelRunner;
+import frc.robot.util.PoseHistory;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
 
@@ -48,24 +53,59 @@ public class Drive extends SubsystemBase {
   private static final double DRIVE_BASE_RADIUS =
       Math.hypot(TRACK_WIDTH_X / 2.0, TRACK_WIDTH_Y / 2.0);
   private static final double MAX_ANGULAR_SPEED = MAX_LINEAR_SPEED / DRIVE_BASE_RADIUS;
+  private static final Translation2d[] MODULE_TRANSLATIONS =
+      new Translation2d[] {
+        new Translation2d(TRACK_WIDTH_X / 2.0, TRACK_WIDTH_Y / 2.0),
+        new Translation2d(TRACK_WIDTH_X / 2.0, -TRACK_WIDTH_Y / 2.0),
+        new Translation2d(-TRACK_WIDTH_X / 2.0, TRACK_WIDTH_Y / 2.0),
+        new Translation2d(-TRACK_WIDTH_X / 2.0, -TRACK_WIDTH_Y / 2.0)
+      };
+  private static final int POSE_HISTORY_CAPACITY = 512; // ~2 seconds of samples at 250 Hz
+
+  // Integrate the pose on the odometry thread for lower latency, when supported by the IO
+  private static final boolean HIGH_RATE_ODOMETRY = false;
+
+  // Read the gyro and module inputs concurrently instead of one after another. The inputs are
+  // still logged on the main loop in a fixed order, so replay is unaffected.
+  private static final boolean PARALLEL_INPUT_UPDATES = false;
+  private static final double INPUT_UPDATE_DEADLINE_SECS = 0.004;
 
-  static final Lock odometryLock = new ReentrantLock();
   private final GyroIO gyroIO;
   private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
   private final Module[] modules = new Module[4]; // FL, FR, BL, BR
+  private final OdometryResampler odometryResampler = new OdometryResampler();
+  private final PoseHistory poseHistory = new PoseHistory(POSE_HISTORY_CAPACITY);
+  private final double[] poseHistorySample = new double[3];
+  private double lastOdometryTimestamp = Double.NaN; // Of the newest sample in the estimator
+  private double lastPoseResetTimestamp = Double.NEGATIVE_INFINITY;
+  private final AtomicReference<PoseSnapshot> poseSnapshot =
+      new AtomicReference<>(new PoseSnapshot(0, 0.0, new Pose2d(), new ChassisSpeeds()));
   private final SysIdRoutine sysId;
 
-  private SwerveDriveKinematics kinematics = new SwerveDriveKinematics(getModuleTranslations());
+  private SwerveDriveKinematics kinematics = new SwerveDriveKinematics(MODULE_TRANSLATIONS);
+  private final SwerveKinematics4 kinematics4 = new SwerveKinematics4(MODULE_TRANSLATIONS);
+  private final double[] moduleSpeeds = new double[4]; // Scratch space for the kinematics
+  private final double[] moduleAnglesRad = new double[4];
+  private final double[] robotMotion = new double[3];
+  private final OdometryIntegrator odometryIntegrator = new OdometryIntegrator(kinematics4);
+  private final OdometryIntegrator.SampleConsumer odometrySampleConsumer = this::applyOdometry;
   private Rotation2d rawGyroRotation = new Rotation2d();
-  private SwerveModulePosition[] lastModulePositions = // For delta tracking
+  private final SwerveModulePosition[] odometryModulePositions =
       new SwerveModulePosition[] {
         new SwerveModulePosition(),
         new SwerveModulePosition(),
         new SwerveModulePosition(),
         new SwerveModulePosition()
       };
+  private double[] gyroYawsRad = new double[20]; // Grown as needed
   private SwerveDrivePoseEstimator poseEstimator =
-      new SwerveDrivePoseEstimator(kinematics, rawGyroRotation, lastModulePositions, new Pose2d());
+      new SwerveDrivePoseEstimator(
+          kinematics, rawGyroRotation, odometryModulePositions, new Pose2d());
+  private final HighRateOdometry highRateOdometry; // Null when disabled or unsupported
+  private final ParallelRunner inputUpdateRunner; // Null when disabled
+  private final Runnable[] inputUpdateTasks;
+  private long inputUpdateDeadlineMisses = 0;
+  private final Consumer<Pose2d> resetSimulationPoseCallback;
 
   public Drive(
       GyroIO gyroIO,
@@ -73,12 +113,60 @@ public class Drive extends SubsystemBase {
       ModuleIO frModuleIO,
       ModuleIO blModuleIO,
       ModuleIO brModuleIO) {
+    this(gyroIO, flModuleIO, frModuleIO, blModuleIO, brModuleIO, pose -> {});
+  }
+
+  /**
+   * Creates a drive that also moves a simulated robot whenever the pose is reset, so the simulated
+   * ground truth matches the new pose.
+   */
+  public Drive(
+      GyroIO gyroIO,
+      ModuleIO flModuleIO,
+      ModuleIO frModuleIO,
+      ModuleIO blModuleIO,
+      ModuleIO brModuleIO,
+      Consumer<Pose2d> resetSimulationPoseCallback) {
     this.gyroIO = gyroIO;
+    this.resetSimulationPoseCallback = resetSimulationPoseCallback;
     modules[0] = new Module(flModuleIO, 0);
     modules[1] = new Module(frModuleIO, 1);
     modules[2] = new Module(blModuleIO, 2);
     modules[3] = new Module(brModuleIO, 3);
 
+    // Set up high rate odometry if every module supports it
+    ModuleIO[] moduleIOs = new ModuleIO[] {flModuleIO, frModuleIO, blModuleIO, brModuleIO};
+    HighRateOdometry.ModuleSource[] highRateSources = new HighRateOdometry.ModuleSource[4];
+    boolean highRateSupported = true;
+    for (int i = 0; i < 4; i++) {
+      highRateSources[i] = moduleIOs[i].getHighRateSource();
+      highRateSupported &= highRateSources[i] != null;
+    }
+    highRateOdometry =
+        HIGH_RATE_ODOMETRY && highRateSupported
+            ? new HighRateOdometry(
+                highRateSources,
+                gyroIO.getHighRateSource(),
+                new SwerveKinematics4(MODULE_TRANSLATIONS),
+                Module.WHEEL_RADIUS,
+                poseSnapshot)
+            : null;
+
+    if (PARALLEL_INPUT_UPDATES) {
+      inputUpdateRunner = new ParallelRunner("DriveInputUpdate", 5);
+      inputUpdateTasks =
+          new Runnable[] {
+            () -> gyroIO.updateInputs(gyroInputs),
+            modules[0]::updateInputs,
+            modules[1]::updateInputs,
+            modules[2]::updateInputs,
+            modules[3]::updateInputs
+          };
+    } else {
+      inputUpdateRunner = null;
+      inputUpdateTasks = null;
+    }
+
     // Start threads (no-op for each if no signals have been created)
     PhoenixOdometryThread.getInstance().start();
     SparkMaxOdometryThread.getInstance().start();
@@ -87,7 +175,7 @@ public class Drive extends SubsystemBase {
     AutoBuilder.configureHolonomic(
         this::getPose,
         this::setPose,
-        () -> kinematics.toChassisSpeeds(getModuleStates()),
+        this::getChassisSpeeds,
         this::runVelocity,
         new HolonomicPathFollowerConfig(
             MAX_LINEAR_SPEED, DRIVE_BASE_RADIUS, new ReplanningConfig()),
@@ -125,13 +213,25 @@ public class Drive extends SubsystemBase {
   }
 
   public void periodic() {
-    odometryLock.lock(); // Prevents odometry updates while reading data
-    gyroIO.updateInputs(gyroInputs);
-    for (var module : modules) {
-      module.updateInputs();
+    // Odometry samples are handed off through lock-free queues, so the
+    // odometry threads keep sampling while the inputs are read
+    long inputUpdateStart = Logger.getRealTimestamp();
+    if (inputUpdateRunner != null) {
+      if (!inputUpdateRunner.runAll(inputUpdateTasks, INPUT_UPDATE_DEADLINE_SECS)) {
+        inputUpdateDeadlineMisses++;
+      }
+      Logger.recordOutput("Drive/InputUpdateDeadlineMisses", inputUpdateDeadlineMisses);
+    } else {
+      gyroIO.updateInputs(gyroInputs);
+      for (var module : modules) {
+        module.updateInputs();
+      }
     }
-    odometryLock.unlock();
+    Logger.recordOutput(
+        "Drive/InputUpdateMs", (Logger.getRealTimestamp() - inputUpdateStart) / 1000.0);
     Logger.processInputs("Drive/Gyro", gyroInputs);
+    PhoenixOdometryThread.getInstance().periodic();
+    SparkMaxOdometryThread.getInstance().getStats().periodic("Odometry/SparkMaxThread");
     for (var module : modules) {
       module.periodic();
     }
@@ -148,37 +248,85 @@ public class Drive extends SubsystemBase {
       Logger.recordOutput("SwerveStates/SetpointsOptimized", new SwerveModuleState[] {});
     }
 
+    // Place the module and gyro samples on a common timeline
+    for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
+      Module module = modules[moduleIndex];
+      odometryResampler.addModuleSamples(
+          moduleIndex,
+          module.getOdometryTimestamps(),
+          module.getOdometryDrivePositionsMeters(),
+          module.getOdometryTurnPositionsRad(),
+          module.getOdometryTimestamps().length);
+    }
+    int gyroCount =
+        Math.min(gyroInputs.odometryYawTimestamps.length, gyroInputs.odometryYawPositions.length);
+    if (gyroCount > gyroYawsRad.length) {
+      gyroYawsRad = new double[gyroCount];
+    }
+    for (int i = 0; i < gyroCount; i++) {
+      gyroYawsRad[i] = gyroInputs.odometryYawPositions[i].getRadians();
+    }
+    odometryResampler.addGyroSamples(gyroInputs.odometryYawTimestamps, gyroYawsRad, gyroCount);
+    odometryResampler.update(gyroInputs.connected);
+
     // Update odometry
-    double[] sampleTimestamps =
-        modules[0].getOdometryTimestamps(); // All signals are sampled together
-    int sampleCount = sampleTimestamps.length;
-    for (int i = 0; i < sampleCount; i++) {
-      // Read wheel positions and deltas from each module
-      SwerveModulePosition[] modulePositions = new SwerveModulePosition[4];
-      SwerveModulePosition[] moduleDeltas = new SwerveModulePosition[4];
+    odometryIntegrator.integrate(odometryResampler, odometrySampleConsumer);
+    int sampleCount = odometryResampler.getSampleCount();
+
+    // Update the high rate odometry, which publishes the snapshots once it is aligned
+    boolean highRatePublishing = false;
+    if (highRateOdometry != null) {
       for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
-        modulePositions[moduleIndex] = modules[moduleIndex].getOdometryPositions()[i];
-        moduleDeltas[moduleIndex] =
-            new SwerveModulePosition(
-                modulePositions[moduleIndex].distanceMeters
-                    - lastModulePositions[moduleIndex].distanceMeters,
-                modulePositions[moduleIndex].angle);
-        lastModulePositions[moduleIndex] = modulePositions[moduleIndex];
+        highRateOdometry.setTurnOffset(moduleIndex, modules[moduleIndex].getTurnOffsetRad());
       }
-
-      // Update gyro angle
-      if (gyroInputs.connected) {
-        // Use the real gyro angle
-        rawGyroRotation = gyroInputs.odometryYawPositions[i];
-      } else {
-        // Use the angle delta from the kinematics and module deltas
-        Twist2d twist = kinematics.toTwist2d(moduleDeltas);
-        rawGyroRotation = rawGyroRotation.plus(new Rotation2d(twist.dtheta));
+      highRateOdometry.periodic(
+          sampleCount > 0 ? odometryResampler.getTimestamp(sampleCount - 1) : Double.NaN,
+          getPose());
+      Pose2d correction = highRateOdometry.getCorrection();
+      if (correction != null) {
+        Logger.recordOutput("Odometry/HighRate/Correction", correction);
+        Logger.recordOutput("Odometry/HighRate/Pose", poseSnapshot.get().pose);
+        highRatePublishing = true;
       }
+    }
+    if (!highRatePublishing) {
+      publishPoseSnapshot();
+    }
+  }
 
-      // Apply update
-      poseEstimator.updateWithTime(sampleTimestamps[i], rawGyroRotation, modulePositions);
+  /**
+   * Applies one integrated odometry sample to the pose estimator. The estimator keeps references to
+   * the rotations it is given, so new ones are only created when an angle changes.
+   */
+  private void applyOdometry(
+      double timestamp, double yawRad, double[] distancesMeters, double[] anglesRad) {
+    for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
+      // The position objects are reused since the pose estimator copies them
+      SwerveModulePosition position = odometryModulePositions[moduleIndex];
+      position.distanceMeters = distancesMeters[moduleIndex];
+      if (anglesRad[moduleIndex] != position.angle.getRadians()) {
+        position.angle = new Rotation2d(anglesRad[moduleIndex]);
+      }
+    }
+    if (yawRad != rawGyroRotation.getRadians()) {
+      rawGyroRotation = new Rotation2d(yawRad);
     }
+    Pose2d pose = poseEstimator.updateWithTime(timestamp, rawGyroRotation, odometryModulePositions);
+    poseHistory.add(timestamp, pose.getX(), pose.getY(), pose.getRotation().getRadians());
+    lastOdometryTimestamp = timestamp;
+  }
+
+  /**
+   * Publishes the current pose and velocity for other threads. Main loop only.
+   *
+   * <p>The snapshot is stamped with the newest odometry sample, which is the time that the
+   * estimated pose describes and shares its time base with the snapshots published by the high rate
+   * odometry.
+   */
+  private void publishPoseSnapshot() {
+    double timestamp =
+        Double.isNaN(lastOdometryTimestamp) ? Logger.getTimestamp() / 1e6 : lastOdometryTimestamp;
+    PoseSnapshot.publish(poseSnapshot, timestamp, getPose(), getChassisSpeeds());
   }
 
   /**
@@ -189,12 +337,20 @@ public class Drive extends SubsystemBase {
   public void runVelocity(ChassisSpeeds speeds) {
     // Calculate module setpoints
     ChassisSpeeds discreteSpeeds = ChassisSpeeds.discretize(speeds, 0.02);
-    SwerveModuleState[] setpointStates = kinematics.toSwerveModuleStates(discreteSpeeds);
-    SwerveDriveKinematics.desaturateWheelSpeeds(setpointStates, MAX_LINEAR_SPEED);
+    kinematics4.toModuleStates(
+        discreteSpeeds.vxMetersPerSecond,
+        discreteSpeeds.vyMetersPerSecond,
+        discreteSpeeds.omegaRadiansPerSecond,
+        moduleSpeeds,
+        moduleAnglesRad);
+    SwerveKinematics4.desaturateWheelSpeeds(moduleSpeeds, MAX_LINEAR_SPEED);
 
     // Send setpoints to modules
+    SwerveModuleState[] setpointStates = new SwerveModuleState[4];
     SwerveModuleState[] optimizedSetpointStates = new SwerveModuleState[4];
     for (int i = 0; i < 4; i++) {
+      setpointStates[i] =
+          new SwerveModuleState(moduleSpeeds[i], new Rotation2d(moduleAnglesRad[i]));
       // The module returns the optimized state, useful for logging
       optimizedSetpointStates[i] = modules[i].runSetpoint(setpointStates[i]);
     }
@@ -214,11 +370,11 @@ public class Drive extends SubsystemBase {
    * return to their normal orientations the next time a nonzero velocity is requested.
    */
   public void stopWithX() {
-    Rotation2d[] headings = new Rotation2d[4];
+    double[] headingsRad = new double[4];
     for (int i = 0; i < 4; i++) {
-      headings[i] = getModuleTranslations()[i].getAngle();
+      headingsRad[i] = MODULE_TRANSLATIONS[i].getAngle().getRadians();
     }
-    kinematics.resetHeadings(headings);
+    kinematics4.resetHeadings(headingsRad);
     stop();
   }
 
@@ -242,6 +398,16 @@ public class Drive extends SubsystemBase {
     return states;
   }
 
+  /** Returns the measured robot-relative velocity. */
+  private ChassisSpeeds getChassisSpeeds() {
+    for (int i = 0; i < 4; i++) {
+      moduleSpeeds[i] = modules[i].getVelocityMetersPerSec();
+      moduleAnglesRad[i] = modules[i].getAngle().getRadians();
+    }
+    kinematics4.toChassisSpeeds(moduleSpeeds, moduleAnglesRad, robotMotion);
+    return new ChassisSpeeds(robotMotion[0], robotMotion[1], robotMotion[2]);
+  }
+
   /** Returns the module positions (turn angles and drive positions) for all of the modules. */
   private SwerveModulePosition[] getModulePositions() {
     SwerveModulePosition[] states = new SwerveModulePosition[4];
@@ -257,24 +423,85 @@ public class Drive extends SubsystemBase {
     return poseEstimator.getEstimatedPosition();
   }
 
+  /**
+   * Returns the latest published pose and velocity. Unlike {@link #getPose()}, this is safe to call
+   * from any thread and never blocks.
+   */
+  public PoseSnapshot getPoseSnapshot() {
+    return poseSnapshot.get();
+  }
+
   /** Returns the current odometry rotation. */
   public Rotation2d getRotation() {
     return getPose().getRotation();
   }
 
+  /**
+   * Returns the estimated pose at a past timestamp, interpolated from the recent odometry samples.
+   * Returns the latest sample for timestamps in the future and nothing for timestamps older than
+   * the pose history.
+   *
+   * @param timestamp The timestamp in seconds, using the same time base as the odometry samples.
+   */
+  public Optional<Pose2d> getPoseAt(double timestamp) {
+    if (!poseHistory.getPoseAt(timestamp, poseHistorySample)) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new Pose2d(
+            poseHistorySample[0], poseHistorySample[1], new Rotation2d(poseHistorySample[2])));
+  }
+
+  /**
+   * Writes the estimated pose at a past timestamp to the output array as {x, y, theta} without
+   * allocating. See {@link #getPoseAt(double)}.
+   *
+   * @return False if the timestamp is older than the pose history.
+   */
+  public boolean getPoseAt(double timestamp, double[] out) {
+    return poseHistory.getPoseAt(timestamp, out);
+  }
+
   /** Resets the current odometry pose. */
   public void setPose(Pose2d pose) {
+    resetSimulationPoseCallback.accept(pose);
     poseEstimator.resetPosition(rawGyroRotation, getModulePositions(), pose);
+    poseHistory.clear(); // Earlier poses are no longer in the same frame
+    lastPoseResetTimestamp =
+        Double.isNaN(lastOdometryTimestamp) ? Logger.getTimestamp() / 1e6 : lastOdometryTimestamp;
+    if (highRateOdometry != null) {
+      highRateOdometry.resetCorrection(pose);
+    }
+    publishPoseSnapshot();
   }
 
   /**
-   * Adds a vision measurement to the pose estimator.
+   * Adds a vision measurement to the pose estimator. Measurements taken before the last pose reset
+   * are ignored, since they are in the old frame.
    *
    * @param visionPose The pose of the robot as measured by the vision camera.
    * @param timestamp The timestamp of the vision measurement in seconds.
    */
   public void addVisionMeasurement(Pose2d visionPose, double timestamp) {
-    poseEstimator.addVisionMeasurement(visionPose, timestamp);
+    if (timestamp >= lastPoseResetTimestamp) {
+      poseEstimator.addVisionMeasurement(visionPose, timestamp);
+    }
+  }
+
+  /**
+   * Adds a vision measurement to the pose estimator. Measurements taken before the last pose reset
+   * are ignored, since they are in the old frame.
+   *
+   * @param visionPose The pose of the robot as measured by the vision camera.
+   * @param timestamp The timestamp of the vision measurement in seconds.
+   * @param visionMeasurementStdDevs The standard deviations of the measurement in meters and
+   *     radians (x, y, theta).
+   */
+  public void addVisionMeasurement(
+      Pose2d visionPose, double timestamp, Matrix<N3, N1> visionMeasurementStdDevs) {
+    if (timestamp >= lastPoseResetTimestamp) {
+      poseEstimator.addVisionMeasurement(visionPose, timestamp, visionMeasurementStdDevs);
+    }
   }
 
   /** Returns the maximum linear speed in meters per sec. */
@@ -287,13 +514,8 @@ public class Drive extends SubsystemBase {
     return MAX_ANGULAR_SPEED;
   }
 
-  /** Returns an array of module translations. */
+  /** Returns a copy of the array of module translations. */
   public static Translation2d[] getModuleTranslations() {
-    return new Translation2d[] {
-      new Translation2d(TRACK_WIDTH_X / 2.0, TRACK_WIDTH_Y / 2.0),
-      new Translation2d(TRACK_WIDTH_X / 2.0, -TRACK_WIDTH_Y / 2.0),
-      new Translation2d(-TRACK_WIDTH_X / 2.0, TRACK_WIDTH_Y / 2.0),
-      new Translation2d(-TRACK_WIDTH_X / 2.0, -TRACK_WIDTH_Y / 2.0)
-    };
+    return MODULE_TRANSLATIONS.clone();
   }
 }
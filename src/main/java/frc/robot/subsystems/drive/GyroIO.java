@@ -27,4 +27,12 @@ public interface GyroIO {
   }
 
   public default void updateInputs(GyroIOInputs inputs) {}
+
+  /**
+   * Returns access to the latest odometry samples from the odometry thread, or null if this
+   * implementation does not sample odometry on a separate thread.
+   */
+  public default HighRateOdometry.GyroSource getHighRateSource() {
+    return null;
+  }
 }
@@ -13,63 +13,83 @@
 
 package frc.robot.subsystems.drive;
 
-import com.ctre.phoenix6.BaseStatusSignal;
-import com.ctre.phoenix6.StatusCode;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.configs.Pigeon2Configuration;
 import com.ctre.phoenix6.hardware.Pigeon2;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.CanBusBudget.Priority;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.PhoenixSignalRegistry;
+import frc.robot.util.SamplingStats;
 import java.util.OptionalDouble;
-import java.util.Queue;
 
 /** IO implementation for Pigeon2 */
 public class GyroIOPigeon2 implements GyroIO {
   private final Pigeon2 pigeon = new Pigeon2(20);
   private final StatusSignal<Double> yaw = pigeon.getYaw();
-  private final Queue<Double> yawPositionQueue;
-  private final Queue<Double> yawTimestampQueue;
+  private final StatusSignal<Double> odometryYaw; // Refreshed by the odometry thread
+  private final DoubleRingBuffer yawPositionQueue;
+  private final DoubleRingBuffer yawTimestampQueue;
+  private final double[] yawPositionSamples; // Scratch space for draining raw samples
+  private final SamplingStats.SampleAges sampleAges;
   private final StatusSignal<Double> yawVelocity = pigeon.getAngularVelocityZWorld();
+  private final PhoenixSignalRegistry.SignalGroup signals;
 
   public GyroIOPigeon2(boolean phoenixDrive) {
     pigeon.getConfigurator().apply(new Pigeon2Configuration());
     pigeon.getConfigurator().setYaw(0.0);
-    yaw.setUpdateFrequency(Module.ODOMETRY_FREQUENCY);
-    yawVelocity.setUpdateFrequency(100.0);
+    CanBusBudget.getInstance()
+        .register(pigeon, "Gyro/Yaw", Priority.CRITICAL, Module.ODOMETRY_FREQUENCY, yaw);
+    CanBusBudget.getInstance()
+        .register(pigeon, "Gyro/YawVelocity", Priority.TELEMETRY, 100.0, yawVelocity);
     pigeon.optimizeBusUtilization();
+    signals = PhoenixSignalRegistry.getInstance().register(pigeon, yaw, yawVelocity);
+    // The odometry thread refreshes its own copy of the yaw signal so it never
+    // races with the refresh by the signal registry
+    odometryYaw = yaw.clone();
     if (phoenixDrive) {
-      yawTimestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue();
-      yawPositionQueue =
-          PhoenixOdometryThread.getInstance().registerSignal(pigeon, pigeon.getYaw());
+      yawPositionQueue = PhoenixOdometryThread.getInstance().registerSignal(pigeon, odometryYaw);
+      yawTimestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue(odometryYaw);
+      sampleAges = PhoenixOdometryThread.getInstance().getStats(odometryYaw).addConsumer("Gyro");
     } else {
+      sampleAges = SparkMaxOdometryThread.getInstance().getStats().addConsumer("Gyro");
       yawTimestampQueue = SparkMaxOdometryThread.getInstance().makeTimestampQueue();
       yawPositionQueue =
           SparkMaxOdometryThread.getInstance()
               .registerSignal(
                   () -> {
-                    boolean valid = yaw.refresh().getStatus().isOK();
+                    boolean valid = odometryYaw.refresh().getStatus().isOK();
                     if (valid) {
-                      return OptionalDouble.of(yaw.getValueAsDouble());
+                      return OptionalDouble.of(odometryYaw.getValueAsDouble());
                     } else {
                       return OptionalDouble.empty();
                     }
                   });
     }
+    yawPositionSamples = new double[yawPositionQueue.capacity()];
   }
 
   @Override
   public void updateInputs(GyroIOInputs inputs) {
-    inputs.connected = BaseStatusSignal.refreshAll(yaw, yawVelocity).equals(StatusCode.OK);
+    inputs.connected = signals.isOK();
     inputs.yawPosition = Rotation2d.fromDegrees(yaw.getValueAsDouble());
     inputs.yawVelocityRadPerSec = Units.degreesToRadians(yawVelocity.getValueAsDouble());
 
-    inputs.odometryYawTimestamps =
-        yawTimestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    inputs.odometryYawPositions =
-        yawPositionQueue.stream()
-            .map((Double value) -> Rotation2d.fromDegrees(value))
-            .toArray(Rotation2d[]::new);
-    yawTimestampQueue.clear();
-    yawPositionQueue.clear();
+    int sampleCount = yawTimestampQueue.size();
+    inputs.odometryYawTimestamps = new double[sampleCount];
+    inputs.odometryYawPositions = new Rotation2d[sampleCount];
+    yawTimestampQueue.drainTo(inputs.odometryYawTimestamps);
+    sampleAges.record(inputs.odometryYawTimestamps);
+    yawPositionQueue.drainTo(yawPositionSamples, 0, sampleCount);
+    for (int i = 0; i < sampleCount; i++) {
+      inputs.odometryYawPositions[i] = Rotation2d.fromDegrees(yawPositionSamples[i]);
+    }
+  }
+
+  @Override
+  public HighRateOdometry.GyroSource getHighRateSource() {
+    return () -> Units.degreesToRadians(odometryYaw.getValueAsDouble());
   }
 }
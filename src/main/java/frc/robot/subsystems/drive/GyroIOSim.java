@@ -0,0 +1,31 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+/**
+ * Physics sim implementation of gyro IO. The yaw is integrated from the motion of the module sims
+ * by the shared {@link SimOdometrySampler}, which also provides the high rate samples.
+ */
+public class GyroIOSim implements GyroIO {
+  private final SimOdometrySampler sampler;
+
+  public GyroIOSim(SimOdometrySampler sampler) {
+    this.sampler = sampler;
+  }
+
+  @Override
+  public void updateInputs(GyroIOInputs inputs) {
+    sampler.updateGyroInputs(inputs);
+  }
+}
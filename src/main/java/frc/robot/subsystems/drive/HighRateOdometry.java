@@ -0,0 +1,255 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.PoseHistory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Integrates the wheel odometry on the odometry thread as each sample arrives, so the published
+ * pose is at most one sample old instead of one loop cycle.
+ *
+ * <p>The integrated pose is in its own frame, since vision measurements and pose resets are only
+ * applied to the pose estimator on the main loop. Each cycle the main loop compares the estimated
+ * pose with the integrated pose at the same timestamp and publishes the correction between the two
+ * frames, which the odometry thread applies to every new sample before publishing it as a {@link
+ * PoseSnapshot}. The pose estimator remains the source of truth and is unaffected by this class, so
+ * replay is unchanged.
+ *
+ * <p>All modules and the gyro should be sampled by the same odometry thread (e.g. on one CAN bus).
+ */
+public class HighRateOdometry {
+  /** Access to the latest samples of a module from the odometry thread. */
+  public static interface ModuleSource {
+    /** Returns the drive position from the latest sample in radians (odometry thread only). */
+    public double getDrivePositionRad();
+
+    /** Returns the relative turn position from the latest sample in radians (odometry thread). */
+    public double getTurnPositionRad();
+
+    /**
+     * Adds a listener that the odometry thread calls with the timestamp of each valid sample, which
+     * must match the timestamps of the samples given to the pose estimator.
+     */
+    public void addSampleListener(DoubleConsumer listener);
+  }
+
+  /** Access to the latest samples of a gyro from the odometry thread. */
+  public static interface GyroSource {
+    /** Returns the yaw from the latest sample in radians (odometry thread only). */
+    public double getYawRad();
+  }
+
+  private final ModuleSource[] moduleSources;
+  private final GyroSource gyroSource; // Null to integrate the heading from the wheels
+  private final SwerveKinematics4 kinematics; // Owned by the odometry thread
+  private final double wheelRadiusMeters;
+  private final AtomicReference<PoseSnapshot> output;
+
+  // Written by the main loop
+  private final AtomicLongArray turnOffsetsRadBits = new AtomicLongArray(4);
+  private final AtomicReference<Pose2d> correction = new AtomicReference<>(null);
+
+  // Integration state, odometry thread only
+  private boolean initialized = false;
+  private final double[] lastDrivePositionsMeters = new double[4];
+  private final double[] turnAnglesRad = new double[4];
+  private final double[] moduleDeltas = new double[4];
+  private final double[] twist = new double[3];
+  private double lastYawRad = 0.0;
+  private double lastTimestamp = 0.0;
+  private double x = 0.0;
+  private double y = 0.0;
+  private double theta = 0.0;
+
+  // Integrated poses handed to the main loop
+  private final DoubleRingBuffer timestampQueue = new DoubleRingBuffer(20);
+  private final DoubleRingBuffer xQueue = new DoubleRingBuffer(20);
+  private final DoubleRingBuffer yQueue = new DoubleRingBuffer(20);
+  private final DoubleRingBuffer thetaQueue = new DoubleRingBuffer(20);
+  private final PoseHistory history = new PoseHistory(64); // Main loop only
+  private final double[] historySample = new double[3];
+  private final double[] drainScratch = new double[1];
+
+  /**
+   * Creates a high rate integrator and registers it with the odometry thread of the first module.
+   *
+   * @param moduleSources The sources for each module (FL, FR, BL, BR).
+   * @param gyroSource The gyro source, or null to integrate the heading from the wheels.
+   * @param kinematics The kinematics for the modules, used only by the odometry thread.
+   * @param wheelRadiusMeters The wheel radius in meters.
+   * @param output The reference that the corrected poses are published to.
+   */
+  public HighRateOdometry(
+      ModuleSource[] moduleSources,
+      GyroSource gyroSource,
+      SwerveKinematics4 kinematics,
+      double wheelRadiusMeters,
+      AtomicReference<PoseSnapshot> output) {
+    this.moduleSources = moduleSources;
+    this.gyroSource = gyroSource;
+    this.kinematics = kinematics;
+    this.wheelRadiusMeters = wheelRadiusMeters;
+    this.output = output;
+    for (int i = 0; i < 4; i++) {
+      turnOffsetsRadBits.set(i, Double.doubleToRawLongBits(Double.NaN));
+    }
+    moduleSources[0].addSampleListener(this::onSample);
+  }
+
+  /** Sets the offset from the relative turn position to the module angle (main loop only). */
+  public void setTurnOffset(int moduleIndex, double offsetRad) {
+    turnOffsetsRadBits.set(moduleIndex, Double.doubleToRawLongBits(offsetRad));
+  }
+
+  /**
+   * Reads the integrated poses from the odometry thread and updates the correction from the
+   * integrated frame to the estimator frame. Should be called once per cycle (main loop only).
+   *
+   * @param timestamp The timestamp of the latest estimated pose, or NaN if there is no new
+   *     estimate.
+   * @param estimatedPose The estimated pose at the timestamp.
+   */
+  public void periodic(double timestamp, Pose2d estimatedPose) {
+    while (timestampQueue.size() > 0) {
+      // Values are published before timestamps, so each queue has a value
+      double sampleTimestamp = drainOne(timestampQueue);
+      history.add(sampleTimestamp, drainOne(xQueue), drainOne(yQueue), drainOne(thetaQueue));
+    }
+    if (!Double.isNaN(timestamp) && history.getPoseAt(timestamp, historySample)) {
+      setCorrection(estimatedPose);
+    }
+  }
+
+  /**
+   * Aligns the latest integrated pose with a new estimated pose, e.g. after the pose is reset (main
+   * loop only).
+   */
+  public void resetCorrection(Pose2d estimatedPose) {
+    double newest = history.getNewestTimestamp();
+    if (!Double.isNaN(newest) && history.getPoseAt(newest, historySample)) {
+      setCorrection(estimatedPose);
+    }
+  }
+
+  /** Sets the correction that maps the integrated pose in "historySample" onto the estimate. */
+  private void setCorrection(Pose2d estimatedPose) {
+    double rotation = estimatedPose.getRotation().getRadians() - historySample[2];
+    double cos = Math.cos(rotation);
+    double sin = Math.sin(rotation);
+    correction.set(
+        new Pose2d(
+            estimatedPose.getX() - (cos * historySample[0] - sin * historySample[1]),
+            estimatedPose.getY() - (sin * historySample[0] + cos * historySample[1]),
+            new Rotation2d(rotation)));
+  }
+
+  /** Returns the correction from the integrated frame to the estimator frame, or null if none. */
+  public Pose2d getCorrection() {
+    return correction.get();
+  }
+
+  private double drainOne(DoubleRingBuffer queue) {
+    queue.drainTo(drainScratch, 0, 1);
+    return drainScratch[0];
+  }
+
+  /** Integrates one sample (odometry thread only). */
+  private void onSample(double timestamp) {
+    for (int i = 0; i < 4; i++) {
+      double offset = Double.longBitsToDouble(turnOffsetsRadBits.get(i));
+      if (Double.isNaN(offset)) {
+        return; // Module angles are not known yet
+      }
+      turnAnglesRad[i] = moduleSources[i].getTurnPositionRad() + offset;
+    }
+    double yaw = gyroSource != null ? gyroSource.getYawRad() : 0.0;
+
+    if (!initialized) {
+      for (int i = 0; i < 4; i++) {
+        lastDrivePositionsMeters[i] = moduleSources[i].getDrivePositionRad() * wheelRadiusMeters;
+      }
+      lastYawRad = yaw;
+      lastTimestamp = timestamp;
+      theta = yaw;
+      initialized = true;
+      return;
+    }
+
+    // Find the robot-relative twist from the module displacements
+    for (int i = 0; i < 4; i++) {
+      double position = moduleSources[i].getDrivePositionRad() * wheelRadiusMeters;
+      moduleDeltas[i] = position - lastDrivePositionsMeters[i];
+      lastDrivePositionsMeters[i] = position;
+    }
+    kinematics.toTwist(moduleDeltas, turnAnglesRad, twist);
+    double dx = twist[0];
+    double dy = twist[1];
+    double dtheta = twist[2];
+    if (gyroSource != null) {
+      dtheta = MathUtil.angleModulus(yaw - lastYawRad);
+      lastYawRad = yaw;
+    }
+
+    // Apply the twist along a constant curvature arc (same as "Pose2d.exp")
+    double s;
+    double c;
+    if (Math.abs(dtheta) < 1e-9) {
+      s = 1.0 - dtheta * dtheta / 6.0;
+      c = 0.5 * dtheta;
+    } else {
+      s = Math.sin(dtheta) / dtheta;
+      c = (1.0 - Math.cos(dtheta)) / dtheta;
+    }
+    double localX = dx * s - dy * c;
+    double localY = dx * c + dy * s;
+    double cosTheta = Math.cos(theta);
+    double sinTheta = Math.sin(theta);
+    x += localX * cosTheta - localY * sinTheta;
+    y += localX * sinTheta + localY * cosTheta;
+    theta = MathUtil.angleModulus(theta + dtheta);
+
+    // Hand the integrated pose to the main loop, timestamps last
+    if (!timestampQueue.isFull() && !xQueue.isFull() && !yQueue.isFull() && !thetaQueue.isFull()) {
+      xQueue.offer(x);
+      yQueue.offer(y);
+      thetaQueue.offer(theta);
+      timestampQueue.offer(timestamp);
+    }
+
+    // Publish the corrected pose
+    double dt = timestamp - lastTimestamp;
+    lastTimestamp = timestamp;
+    Pose2d currentCorrection = correction.get();
+    if (currentCorrection != null) {
+      double correctionCos = currentCorrection.getRotation().getCos();
+      double correctionSin = currentCorrection.getRotation().getSin();
+      PoseSnapshot.publish(
+          output,
+          timestamp,
+          new Pose2d(
+              currentCorrection.getX() + correctionCos * x - correctionSin * y,
+              currentCorrection.getY() + correctionSin * x + correctionCos * y,
+              new Rotation2d(theta + currentCorrection.getRotation().getRadians())),
+          dt > 0.0 ? new ChassisSpeeds(dx / dt, dy / dt, dtheta / dt) : new ChassisSpeeds());
+    }
+  }
+}
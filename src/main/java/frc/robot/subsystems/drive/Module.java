@@ -13,7 +13,6 @@
 
 package frc.robot.subsystems.drive;
 
-import edu.wpi.first.math.controller.PIDController;
 import edu.wpi.first.math.controller.SimpleMotorFeedforward;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
@@ -23,7 +22,7 @@ import frc.robot.Constants;
 import org.littletonrobotics.junction.Logger;
 
 public class Module {
-  private static final double WHEEL_RADIUS = Units.inchesToMeters(2.0);
+  static final double WHEEL_RADIUS = Units.inchesToMeters(2.0);
   static final double ODOMETRY_FREQUENCY = 250.0;
 
   private final ModuleIO io;
@@ -31,12 +30,11 @@ public class Module {
   private final int index;
 
   private final SimpleMotorFeedforward driveFeedforward;
-  private final PIDController driveFeedback;
-  private final PIDController turnFeedback;
   private Rotation2d angleSetpoint = null; // Setpoint for closed loop control, null for open loop
   private Double speedSetpoint = null; // Setpoint for closed loop control, null for open loop
   private Rotation2d turnRelativeOffset = null; // Relative + Offset = Absolute
-  private SwerveModulePosition[] odometryPositions = new SwerveModulePosition[] {};
+  private double[] odometryDrivePositionsMeters = new double[20]; // Grown as needed
+  private double[] odometryTurnPositionsRad = new double[20];
 
   public Module(ModuleIO io, int index) {
     this.io = io;
@@ -48,28 +46,26 @@ public class Module {
       case REAL:
       case REPLAY:
         driveFeedforward = new SimpleMotorFeedforward(0.1, 0.13);
-        driveFeedback = new PIDController(0.05, 0.0, 0.0);
-        turnFeedback = new PIDController(7.0, 0.0, 0.0);
+        io.configureDrivePID(0.05, 0.0, 0.0);
+        io.configureTurnPID(7.0, 0.0, 0.0);
         break;
       case SIM:
         driveFeedforward = new SimpleMotorFeedforward(0.0, 0.13);
-        driveFeedback = new PIDController(0.1, 0.0, 0.0);
-        turnFeedback = new PIDController(10.0, 0.0, 0.0);
+        io.configureDrivePID(0.1, 0.0, 0.0);
+        io.configureTurnPID(10.0, 0.0, 0.0);
         break;
       default:
         driveFeedforward = new SimpleMotorFeedforward(0.0, 0.0);
-        driveFeedback = new PIDController(0.0, 0.0, 0.0);
-        turnFeedback = new PIDController(0.0, 0.0, 0.0);
         break;
     }
 
-    turnFeedback.enableContinuousInput(-Math.PI, Math.PI);
     setBrakeMode(true);
   }
 
   /**
    * Update inputs without running the rest of the periodic logic. This is useful since these
-   * updates need to be properly thread-locked.
+   * updates are timed together with the gyro inputs. May be called from a worker thread, as long as
+   * it finishes before "periodic".
    */
   public void updateInputs() {
     io.updateInputs(inputs);
@@ -84,10 +80,12 @@ public class Module {
       turnRelativeOffset = inputs.turnAbsolutePosition.minus(inputs.turnPosition);
     }
 
-    // Run closed loop turn control
+    // Run closed loop turn control on the motor controller
     if (angleSetpoint != null) {
-      io.setTurnVoltage(
-          turnFeedback.calculate(getAngle().getRadians(), angleSetpoint.getRadians()));
+      // The motor controller works with the relative position
+      if (turnRelativeOffset != null) {
+        io.setTurnPosition(angleSetpoint.minus(turnRelativeOffset));
+      }
 
       // Run closed loop drive control
       // Only allowed if closed loop turn control is running
@@ -97,28 +95,36 @@ public class Module {
         // When the error is 90°, the velocity setpoint should be 0. As the wheel turns
         // towards the setpoint, its velocity should increase. This is achieved by
         // taking the component of the velocity in the direction of the setpoint.
-        double adjustSpeedSetpoint = speedSetpoint * Math.cos(turnFeedback.getPositionError());
+        double adjustSpeedSetpoint =
+            speedSetpoint * Math.cos(angleSetpoint.minus(getAngle()).getRadians());
 
-        // Run drive controller
+        // Run drive controller on the motor controller, with the feedforward from the RIO
         double velocityRadPerSec = adjustSpeedSetpoint / WHEEL_RADIUS;
-        io.setDriveVoltage(
-            driveFeedforward.calculate(velocityRadPerSec)
-                + driveFeedback.calculate(inputs.driveVelocityRadPerSec, velocityRadPerSec));
+        io.setDriveVelocity(velocityRadPerSec, driveFeedforward.calculate(velocityRadPerSec));
       }
     }
 
     // Calculate positions for odometry
     int sampleCount = inputs.odometryTimestamps.length; // All signals are sampled together
-    odometryPositions = new SwerveModulePosition[sampleCount];
+    if (sampleCount > odometryDrivePositionsMeters.length) {
+      odometryDrivePositionsMeters = new double[sampleCount];
+      odometryTurnPositionsRad = new double[sampleCount];
+    }
+    double turnOffsetRad = turnRelativeOffset != null ? turnRelativeOffset.getRadians() : 0.0;
     for (int i = 0; i < sampleCount; i++) {
-      double positionMeters = inputs.odometryDrivePositionsRad[i] * WHEEL_RADIUS;
-      Rotation2d angle =
-          inputs.odometryTurnPositions[i].plus(
-              turnRelativeOffset != null ? turnRelativeOffset : new Rotation2d());
-      odometryPositions[i] = new SwerveModulePosition(positionMeters, angle);
+      odometryDrivePositionsMeters[i] = inputs.odometryDrivePositionsRad[i] * WHEEL_RADIUS;
+      odometryTurnPositionsRad[i] = inputs.odometryTurnPositions[i].getRadians() + turnOffsetRad;
     }
   }
 
+  /**
+   * Returns the offset from the relative turn position to the module angle in radians, or NaN if
+   * the absolute position has not been read yet.
+   */
+  public double getTurnOffsetRad() {
+    return turnRelativeOffset != null ? turnRelativeOffset.getRadians() : Double.NaN;
+  }
+
   /** Runs the module with the specified setpoint state. Returns the optimized state. */
   public SwerveModuleState runSetpoint(SwerveModuleState state) {
     // Optimize state based on current angle
@@ -187,9 +193,20 @@ public class Module {
     return new SwerveModuleState(getVelocityMetersPerSec(), getAngle());
   }
 
-  /** Returns the module positions received this cycle. */
-  public SwerveModulePosition[] getOdometryPositions() {
-    return odometryPositions;
+  /**
+   * Returns the drive positions in meters received this cycle. Only the first {@link
+   * #getOdometryTimestamps()}.length entries are valid, and the array is reused between cycles.
+   */
+  public double[] getOdometryDrivePositionsMeters() {
+    return odometryDrivePositionsMeters;
+  }
+
+  /**
+   * Returns the turn angles in radians received this cycle. Only the first {@link
+   * #getOdometryTimestamps()}.length entries are valid, and the array is reused between cycles.
+   */
+  public double[] getOdometryTurnPositionsRad() {
+    return odometryTurnPositionsRad;
   }
 
   /** Returns the timestamps of the samples received this cycle. */
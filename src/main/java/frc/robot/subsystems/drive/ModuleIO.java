@@ -44,9 +44,37 @@ public interface ModuleIO {
   /** Run the turn motor at the specified voltage. */
   public default void setTurnVoltage(double volts) {}
 
+  /**
+   * Run the drive motor at the specified velocity using the closed loop on the motor controller.
+   *
+   * @param velocityRadPerSec The wheel velocity in radians per second.
+   * @param ffVolts The feedforward voltage added to the closed loop output.
+   */
+  public default void setDriveVelocity(double velocityRadPerSec, double ffVolts) {}
+
+  /**
+   * Run the turn motor to the specified relative position (the same frame as the "turnPosition"
+   * input) using the closed loop on the motor controller. The shortest path is always taken.
+   */
+  public default void setTurnPosition(Rotation2d position) {}
+
+  /** Set the drive velocity PID constants, in volts per radian per second of the wheel. */
+  public default void configureDrivePID(double kP, double kI, double kD) {}
+
+  /** Set the turn position PID constants, in volts per radian of the module. */
+  public default void configureTurnPID(double kP, double kI, double kD) {}
+
   /** Enable or disable brake mode on the drive motor. */
   public default void setDriveBrakeMode(boolean enable) {}
 
   /** Enable or disable brake mode on the turn motor. */
   public default void setTurnBrakeMode(boolean enable) {}
+
+  /**
+   * Returns access to the latest odometry samples from the odometry thread, or null if this
+   * implementation does not sample odometry on a separate thread.
+   */
+  public default HighRateOdometry.ModuleSource getHighRateSource() {
+    return null;
+  }
 }
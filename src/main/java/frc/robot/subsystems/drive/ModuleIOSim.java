@@ -14,59 +14,134 @@
 package frc.robot.subsystems.drive;
 
 import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.controller.PIDController;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.system.plant.DCMotor;
-import edu.wpi.first.wpilibj.Timer;
-import edu.wpi.first.wpilibj.simulation.DCMotorSim;
+import frc.robot.util.FixedStepMotorSim;
 
 /**
  * Physics sim implementation of module IO.
  *
- * <p>Uses two flywheel sims for the drive and turn motors, with the absolute position initialized
- * to a random value. The flywheel sims are not physically accurate, but provide a decent
- * approximation for the behavior of the module.
+ * <p>Uses two DC motor sims for the drive and turn motors, with the absolute position initialized
+ * to a random value. The motor sims are not physically accurate, but provide a decent approximation
+ * for the behavior of the module.
+ *
+ * <p>The closed loop controllers stand in for the ones on the motor controllers. The physics and
+ * the controllers are stepped together at the step rate of the shared {@link SimOdometrySampler},
+ * which also provides the high rate odometry samples.
  */
 public class ModuleIOSim implements ModuleIO {
-  private static final double LOOP_PERIOD_SECS = 0.02;
+  private final SimOdometrySampler sampler;
+  private final int index;
 
-  private DCMotorSim driveSim = new DCMotorSim(DCMotor.getNEO(1), 6.75, 0.025);
-  private DCMotorSim turnSim = new DCMotorSim(DCMotor.getNEO(1), 150.0 / 7.0, 0.004);
+  private final FixedStepMotorSim driveSim;
+  private final FixedStepMotorSim turnSim;
 
   private final Rotation2d turnAbsoluteInitPosition = new Rotation2d(Math.random() * 2.0 * Math.PI);
+  private final PIDController driveFeedback;
+  private final PIDController turnFeedback;
+
+  private boolean driveClosedLoop = false;
+  private boolean turnClosedLoop = false;
+  private double driveFFVolts = 0.0;
   private double driveAppliedVolts = 0.0;
   private double turnAppliedVolts = 0.0;
 
+  /** Creates a module sim. Modules must be created in the order FL, FR, BL, BR. */
+  public ModuleIOSim(SimOdometrySampler sampler) {
+    this.sampler = sampler;
+    double stepSecs = sampler.getStepSecs();
+    driveSim = new FixedStepMotorSim(DCMotor.getNEO(1), 6.75, 0.025, stepSecs);
+    turnSim = new FixedStepMotorSim(DCMotor.getNEO(1), 150.0 / 7.0, 0.004, stepSecs);
+    driveFeedback = new PIDController(0.0, 0.0, 0.0, stepSecs);
+    turnFeedback = new PIDController(0.0, 0.0, 0.0, stepSecs);
+    turnFeedback.enableContinuousInput(-Math.PI, Math.PI);
+    index = sampler.addModule(this);
+  }
+
   @Override
   public void updateInputs(ModuleIOInputs inputs) {
-    driveSim.update(LOOP_PERIOD_SECS);
-    turnSim.update(LOOP_PERIOD_SECS);
+    sampler.updateModuleInputs(index, inputs);
 
-    inputs.drivePositionRad = driveSim.getAngularPositionRad();
-    inputs.driveVelocityRadPerSec = driveSim.getAngularVelocityRadPerSec();
+    inputs.drivePositionRad = driveSim.getPositionRad();
+    inputs.driveVelocityRadPerSec = driveSim.getVelocityRadPerSec();
     inputs.driveAppliedVolts = driveAppliedVolts;
     inputs.driveCurrentAmps = new double[] {Math.abs(driveSim.getCurrentDrawAmps())};
 
     inputs.turnAbsolutePosition =
-        new Rotation2d(turnSim.getAngularPositionRad()).plus(turnAbsoluteInitPosition);
-    inputs.turnPosition = new Rotation2d(turnSim.getAngularPositionRad());
-    inputs.turnVelocityRadPerSec = turnSim.getAngularVelocityRadPerSec();
+        new Rotation2d(turnSim.getPositionRad()).plus(turnAbsoluteInitPosition);
+    inputs.turnPosition = new Rotation2d(turnSim.getPositionRad());
+    inputs.turnVelocityRadPerSec = turnSim.getVelocityRadPerSec();
     inputs.turnAppliedVolts = turnAppliedVolts;
     inputs.turnCurrentAmps = new double[] {Math.abs(turnSim.getCurrentDrawAmps())};
+  }
+
+  /** Runs the closed loops and advances the physics by one step (called by the sampler). */
+  void step() {
+    if (driveClosedLoop) {
+      driveAppliedVolts =
+          MathUtil.clamp(
+              driveFeedback.calculate(driveSim.getVelocityRadPerSec()) + driveFFVolts, -12.0, 12.0);
+      driveSim.setInputVoltage(driveAppliedVolts);
+    }
+    if (turnClosedLoop) {
+      turnAppliedVolts =
+          MathUtil.clamp(turnFeedback.calculate(turnSim.getPositionRad()), -12.0, 12.0);
+      turnSim.setInputVoltage(turnAppliedVolts);
+    }
+    driveSim.step();
+    turnSim.step();
+  }
+
+  /** Returns the drive position in radians. */
+  double getDrivePositionRad() {
+    return driveSim.getPositionRad();
+  }
 
-    inputs.odometryTimestamps = new double[] {Timer.getFPGATimestamp()};
-    inputs.odometryDrivePositionsRad = new double[] {inputs.drivePositionRad};
-    inputs.odometryTurnPositions = new Rotation2d[] {inputs.turnPosition};
+  /** Returns the relative turn position in radians. */
+  double getTurnPositionRad() {
+    return turnSim.getPositionRad();
+  }
+
+  /** Returns the true module angle in radians, matching the absolute encoder. */
+  double getTurnAngleRad() {
+    return turnSim.getPositionRad() + turnAbsoluteInitPosition.getRadians();
   }
 
   @Override
   public void setDriveVoltage(double volts) {
+    driveClosedLoop = false;
     driveAppliedVolts = MathUtil.clamp(volts, -12.0, 12.0);
     driveSim.setInputVoltage(driveAppliedVolts);
   }
 
   @Override
   public void setTurnVoltage(double volts) {
+    turnClosedLoop = false;
     turnAppliedVolts = MathUtil.clamp(volts, -12.0, 12.0);
     turnSim.setInputVoltage(turnAppliedVolts);
   }
+
+  @Override
+  public void setDriveVelocity(double velocityRadPerSec, double ffVolts) {
+    driveClosedLoop = true;
+    driveFeedback.setSetpoint(velocityRadPerSec);
+    driveFFVolts = ffVolts;
+  }
+
+  @Override
+  public void setTurnPosition(Rotation2d position) {
+    turnClosedLoop = true;
+    turnFeedback.setSetpoint(position.getRadians());
+  }
+
+  @Override
+  public void configureDrivePID(double kP, double kI, double kD) {
+    driveFeedback.setPID(kP, kI, kD);
+  }
+
+  @Override
+  public void configureTurnPID(double kP, double kI, double kD) {
+    turnFeedback.setPID(kP, kI, kD);
+  }
 }
@@ -13,18 +13,28 @@
 
 package frc.robot.subsystems.drive;
 
+import com.revrobotics.CANSparkBase.ControlType;
 import com.revrobotics.CANSparkBase.IdleMode;
 import com.revrobotics.CANSparkLowLevel.MotorType;
 import com.revrobotics.CANSparkLowLevel.PeriodicFrame;
 import com.revrobotics.CANSparkMax;
 import com.revrobotics.REVLibError;
 import com.revrobotics.RelativeEncoder;
+import com.revrobotics.SparkPIDController;
+import com.revrobotics.SparkPIDController.ArbFFUnits;
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.AnalogInput;
 import edu.wpi.first.wpilibj.RobotController;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.CanBusBudget.Priority;
+import frc.robot.util.ControlRequestFilter;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.SamplingStats;
+import frc.robot.util.SparkMaxFlash;
 import java.util.OptionalDouble;
-import java.util.Queue;
+import java.util.function.DoubleConsumer;
 
 /**
  * Module IO implementation for SparkMax drive motor controller, SparkMax turn motor controller (NEO
@@ -42,16 +52,27 @@ public class ModuleIOSparkMax implements ModuleIO {
   // Gear ratios for SDS MK4i L2, adjust as necessary
   private static final double DRIVE_GEAR_RATIO = (50.0 / 14.0) * (17.0 / 27.0) * (45.0 / 15.0);
   private static final double TURN_GEAR_RATIO = 150.0 / 7.0;
+  private static final double STATUS0_FREQUENCY = 100.0;
+  private static final double STATUS1_FREQUENCY = 50.0;
 
   private final CANSparkMax driveSparkMax;
   private final CANSparkMax turnSparkMax;
 
   private final RelativeEncoder driveEncoder;
   private final RelativeEncoder turnRelativeEncoder;
+  private final SparkPIDController drivePID;
+  private final SparkPIDController turnPID;
   private final AnalogInput turnAbsoluteEncoder;
-  private final Queue<Double> timestampQueue;
-  private final Queue<Double> drivePositionQueue;
-  private final Queue<Double> turnPositionQueue;
+  private final DoubleRingBuffer timestampQueue;
+  private final DoubleRingBuffer drivePositionQueue;
+  private final DoubleRingBuffer turnPositionQueue;
+  private final double[] turnPositionSamples; // Scratch space for draining raw samples
+  private final SamplingStats.SampleAges sampleAges;
+  private double lastSampledDrivePosition = 0.0; // Odometry thread only
+  private double lastSampledTurnPosition = 0.0; // Odometry thread only
+
+  private final ControlRequestFilter driveRequestFilter = new ControlRequestFilter(1e-3, 1e-3);
+  private final ControlRequestFilter turnRequestFilter = new ControlRequestFilter(1e-3, 1e-3);
 
   private final boolean isTurnMotorInverted = true;
   private final Rotation2d absoluteEncoderOffset;
@@ -94,6 +115,8 @@ public class ModuleIOSparkMax implements ModuleIO {
 
     driveEncoder = driveSparkMax.getEncoder();
     turnRelativeEncoder = turnSparkMax.getEncoder();
+    drivePID = driveSparkMax.getPIDController();
+    turnPID = turnSparkMax.getPIDController();
 
     turnSparkMax.setInverted(isTurnMotorInverted);
     driveSparkMax.setSmartCurrentLimit(40);
@@ -109,20 +132,59 @@ public class ModuleIOSparkMax implements ModuleIO {
     turnRelativeEncoder.setMeasurementPeriod(10);
     turnRelativeEncoder.setAverageDepth(2);
 
-    driveSparkMax.setCANTimeout(0);
-    turnSparkMax.setCANTimeout(0);
+    // The turn closed loop works in motor rotations, so wrap at one module rotation
+    turnPID.setPositionPIDWrappingEnabled(true);
+    turnPID.setPositionPIDWrappingMinInput(0.0);
+    turnPID.setPositionPIDWrappingMaxInput(TURN_GEAR_RATIO);
 
-    driveSparkMax.setPeriodicFramePeriod(
-        PeriodicFrame.kStatus2, (int) (1000.0 / Module.ODOMETRY_FREQUENCY));
-    turnSparkMax.setPeriodicFramePeriod(
-        PeriodicFrame.kStatus2, (int) (1000.0 / Module.ODOMETRY_FREQUENCY));
+    // Status 0 has the applied output, status 1 the velocity and current, and status 2 the position
+    CanBusBudget budget = CanBusBudget.getInstance();
+    String name = "Module" + index + "/";
+    budget.register(
+        driveSparkMax,
+        name + "DriveStatus2",
+        Priority.CRITICAL,
+        Module.ODOMETRY_FREQUENCY,
+        PeriodicFrame.kStatus2);
+    budget.register(
+        turnSparkMax,
+        name + "TurnStatus2",
+        Priority.CRITICAL,
+        Module.ODOMETRY_FREQUENCY,
+        PeriodicFrame.kStatus2);
+    budget.register(
+        driveSparkMax,
+        name + "DriveStatus0",
+        Priority.TELEMETRY,
+        STATUS0_FREQUENCY,
+        PeriodicFrame.kStatus0);
+    budget.register(
+        turnSparkMax,
+        name + "TurnStatus0",
+        Priority.TELEMETRY,
+        STATUS0_FREQUENCY,
+        PeriodicFrame.kStatus0);
+    budget.register(
+        driveSparkMax,
+        name + "DriveStatus1",
+        Priority.CRITICAL, // The drive velocity is control feedback, as on the TalonFX modules
+        STATUS1_FREQUENCY,
+        PeriodicFrame.kStatus1);
+    budget.register(
+        turnSparkMax,
+        name + "TurnStatus1",
+        Priority.TELEMETRY,
+        STATUS1_FREQUENCY,
+        PeriodicFrame.kStatus1);
     timestampQueue = SparkMaxOdometryThread.getInstance().makeTimestampQueue();
+    sampleAges = SparkMaxOdometryThread.getInstance().getStats().addConsumer("Module" + index);
     drivePositionQueue =
         SparkMaxOdometryThread.getInstance()
             .registerSignal(
                 () -> {
                   double value = driveEncoder.getPosition();
                   if (driveSparkMax.getLastError() == REVLibError.kOk) {
+                    lastSampledDrivePosition = value;
                     return OptionalDouble.of(value);
                   } else {
                     return OptionalDouble.empty();
@@ -134,14 +196,28 @@ public class ModuleIOSparkMax implements ModuleIO {
                 () -> {
                   double value = turnRelativeEncoder.getPosition();
                   if (driveSparkMax.getLastError() == REVLibError.kOk) {
+                    lastSampledTurnPosition = value;
                     return OptionalDouble.of(value);
                   } else {
                     return OptionalDouble.empty();
                   }
                 });
+    turnPositionSamples = new double[turnPositionQueue.capacity()];
+
+    // Lists the flashed settings above, so the flash is only written when they change
+    SparkMaxFlash.burnIfChanged(
+        driveSparkMax,
+        "drive;currentLimit=40;voltageComp=12.0;measurementPeriod=10;averageDepth=2");
+    SparkMaxFlash.burnIfChanged(
+        turnSparkMax,
+        "turn;inverted="
+            + isTurnMotorInverted
+            + ";currentLimit=30;voltageComp=12.0;measurementPeriod=10;averageDepth=2;wrapMax="
+            + TURN_GEAR_RATIO);
 
-    driveSparkMax.burnFlash();
-    turnSparkMax.burnFlash();
+    // Configuration is confirmed up to here, later calls must not block the main loop
+    driveSparkMax.setCANTimeout(0);
+    turnSparkMax.setCANTimeout(0);
   }
 
   @Override
@@ -165,29 +241,94 @@ public class ModuleIOSparkMax implements ModuleIO {
     inputs.turnAppliedVolts = turnSparkMax.getAppliedOutput() * turnSparkMax.getBusVoltage();
     inputs.turnCurrentAmps = new double[] {turnSparkMax.getOutputCurrent()};
 
-    inputs.odometryTimestamps =
-        timestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    inputs.odometryDrivePositionsRad =
-        drivePositionQueue.stream()
-            .mapToDouble((Double value) -> Units.rotationsToRadians(value) / DRIVE_GEAR_RATIO)
-            .toArray();
-    inputs.odometryTurnPositions =
-        turnPositionQueue.stream()
-            .map((Double value) -> Rotation2d.fromRotations(value / TURN_GEAR_RATIO))
-            .toArray(Rotation2d[]::new);
-    timestampQueue.clear();
-    drivePositionQueue.clear();
-    turnPositionQueue.clear();
+    int sampleCount = timestampQueue.size();
+    inputs.odometryTimestamps = new double[sampleCount];
+    inputs.odometryDrivePositionsRad = new double[sampleCount];
+    inputs.odometryTurnPositions = new Rotation2d[sampleCount];
+    timestampQueue.drainTo(inputs.odometryTimestamps);
+    sampleAges.record(inputs.odometryTimestamps);
+    drivePositionQueue.drainTo(inputs.odometryDrivePositionsRad);
+    turnPositionQueue.drainTo(turnPositionSamples, 0, sampleCount);
+    for (int i = 0; i < sampleCount; i++) {
+      inputs.odometryDrivePositionsRad[i] =
+          Units.rotationsToRadians(inputs.odometryDrivePositionsRad[i]) / DRIVE_GEAR_RATIO;
+      inputs.odometryTurnPositions[i] =
+          Rotation2d.fromRotations(turnPositionSamples[i] / TURN_GEAR_RATIO);
+    }
+  }
+
+  @Override
+  public HighRateOdometry.ModuleSource getHighRateSource() {
+    return new HighRateOdometry.ModuleSource() {
+      @Override
+      public double getDrivePositionRad() {
+        return Units.rotationsToRadians(lastSampledDrivePosition) / DRIVE_GEAR_RATIO;
+      }
+
+      @Override
+      public double getTurnPositionRad() {
+        return Units.rotationsToRadians(lastSampledTurnPosition) / TURN_GEAR_RATIO;
+      }
+
+      @Override
+      public void addSampleListener(DoubleConsumer listener) {
+        SparkMaxOdometryThread.getInstance().addSampleListener(listener);
+      }
+    };
   }
 
   @Override
   public void setDriveVoltage(double volts) {
-    driveSparkMax.setVoltage(volts);
+    if (driveRequestFilter.shouldSend(ControlType.kVoltage, volts)) {
+      driveSparkMax.setVoltage(volts);
+    }
   }
 
   @Override
   public void setTurnVoltage(double volts) {
-    turnSparkMax.setVoltage(volts);
+    if (turnRequestFilter.shouldSend(ControlType.kVoltage, volts)) {
+      turnSparkMax.setVoltage(volts);
+    }
+  }
+
+  @Override
+  public void setDriveVelocity(double velocityRadPerSec, double ffVolts) {
+    double motorRPM =
+        Units.radiansPerSecondToRotationsPerMinute(velocityRadPerSec) * DRIVE_GEAR_RATIO;
+    if (driveRequestFilter.shouldSend(ControlType.kVelocity, motorRPM, ffVolts)) {
+      drivePID.setReference(motorRPM, ControlType.kVelocity, 0, ffVolts, ArbFFUnits.kVoltage);
+    }
+  }
+
+  @Override
+  public void setTurnPosition(Rotation2d position) {
+    double motorRotations =
+        MathUtil.inputModulus(position.getRotations(), 0.0, 1.0) * TURN_GEAR_RATIO;
+    if (turnRequestFilter.shouldSend(ControlType.kPosition, motorRotations)) {
+      turnPID.setReference(motorRotations, ControlType.kPosition);
+    }
+  }
+
+  @Override
+  public void configureDrivePID(double kP, double kI, double kD) {
+    // Convert from volts per wheel rad/sec to duty cycle (12 V compensated) per motor RPM. The
+    // integral and derivative are per 1 ms controller period.
+    double scale = Units.rotationsPerMinuteToRadiansPerSecond(1.0) / DRIVE_GEAR_RATIO / 12.0;
+    drivePID.setP(kP * scale, 0);
+    drivePID.setI(kI * scale * 0.001, 0);
+    drivePID.setD(kD * scale / 0.001, 0);
+    drivePID.setFF(0.0, 0);
+  }
+
+  @Override
+  public void configureTurnPID(double kP, double kI, double kD) {
+    // Convert from volts per module radian to duty cycle (12 V compensated) per motor rotation.
+    // The integral and derivative are per 1 ms controller period.
+    double scale = 2.0 * Math.PI / TURN_GEAR_RATIO / 12.0;
+    turnPID.setP(kP * scale, 0);
+    turnPID.setI(kI * scale * 0.001, 0);
+    turnPID.setD(kD * scale / 0.001, 0);
+    turnPID.setFF(0.0, 0);
   }
 
   @Override
@@ -13,19 +13,29 @@
 
 package frc.robot.subsystems.drive;
 
-import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.configs.CANcoderConfiguration;
 import com.ctre.phoenix6.configs.MotorOutputConfigs;
+import com.ctre.phoenix6.configs.Slot0Configs;
 import com.ctre.phoenix6.configs.TalonFXConfiguration;
+import com.ctre.phoenix6.controls.PositionVoltage;
+import com.ctre.phoenix6.controls.VelocityVoltage;
 import com.ctre.phoenix6.controls.VoltageOut;
 import com.ctre.phoenix6.hardware.CANcoder;
 import com.ctre.phoenix6.hardware.TalonFX;
+import com.ctre.phoenix6.signals.FeedbackSensorSourceValue;
 import com.ctre.phoenix6.signals.InvertedValue;
 import com.ctre.phoenix6.signals.NeutralModeValue;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
-import java.util.Queue;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.CanBusBudget.Priority;
+import frc.robot.util.ConfigExecutor;
+import frc.robot.util.ControlRequestFilter;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.PhoenixSignalRegistry;
+import frc.robot.util.SamplingStats;
+import java.util.function.DoubleConsumer;
 
 /**
  * Module IO implementation for Talon FX drive motor controller, Talon FX turn motor controller, and
@@ -34,6 +44,10 @@ import java.util.Queue;
  * <p>NOTE: This implementation should be used as a starting point and adapted to different hardware
  * configurations (e.g. If using an analog encoder, copy from "ModuleIOSparkMax")
  *
+ * <p>The turn motor uses the CANcoder as a fused feedback sensor (requires Phoenix Pro, otherwise
+ * use "RemoteCANcoder"), so its position is the module angle and the turn closed loop runs on the
+ * Talon FX against the absolute angle.
+ *
  * <p>To calibrate the absolute encoder offsets, point the modules straight (such that forward
  * motion on the drive motor will propel the robot forward) and copy the reported values from the
  * absolute encoders using AdvantageScope. These values are logged under
@@ -44,17 +58,21 @@ public class ModuleIOTalonFX implements ModuleIO {
   private final TalonFX turnTalon;
   private final CANcoder cancoder;
 
-  private final Queue<Double> timestampQueue;
+  private final DoubleRingBuffer timestampQueue;
+  private final SamplingStats.SampleAges sampleAges;
 
   private final StatusSignal<Double> drivePosition;
-  private final Queue<Double> drivePositionQueue;
+  private final StatusSignal<Double> odometryDrivePosition; // Refreshed by the odometry thread
+  private final DoubleRingBuffer drivePositionQueue;
   private final StatusSignal<Double> driveVelocity;
   private final StatusSignal<Double> driveAppliedVolts;
   private final StatusSignal<Double> driveCurrent;
 
   private final StatusSignal<Double> turnAbsolutePosition;
   private final StatusSignal<Double> turnPosition;
-  private final Queue<Double> turnPositionQueue;
+  private final StatusSignal<Double> odometryTurnPosition; // Refreshed by the odometry thread
+  private final DoubleRingBuffer turnPositionQueue;
+  private final double[] turnPositionSamples; // Scratch space for draining raw samples
   private final StatusSignal<Double> turnVelocity;
   private final StatusSignal<Double> turnAppliedVolts;
   private final StatusSignal<Double> turnCurrent;
@@ -63,6 +81,13 @@ public class ModuleIOTalonFX implements ModuleIO {
   private final double DRIVE_GEAR_RATIO = (50.0 / 14.0) * (17.0 / 27.0) * (45.0 / 15.0);
   private final double TURN_GEAR_RATIO = 150.0 / 7.0;
 
+  private final VoltageOut driveVoltageRequest = new VoltageOut(0.0);
+  private final VelocityVoltage driveVelocityRequest = new VelocityVoltage(0.0);
+  private final VoltageOut turnVoltageRequest = new VoltageOut(0.0);
+  private final PositionVoltage turnPositionRequest = new PositionVoltage(0.0);
+  private final ControlRequestFilter driveRequestFilter = new ControlRequestFilter(1e-3, 1e-3);
+  private final ControlRequestFilter turnRequestFilter = new ControlRequestFilter(1e-4, 1e-3);
+
   private final boolean isTurnMotorInverted = true;
   private final Rotation2d absoluteEncoderOffset;
 
@@ -102,59 +127,87 @@ public class ModuleIOTalonFX implements ModuleIO {
     driveTalon.getConfigurator().apply(driveConfig);
     setDriveBrakeMode(true);
 
+    var cancoderConfig = new CANcoderConfiguration();
+    cancoderConfig.MagnetSensor.MagnetOffset = -absoluteEncoderOffset.getRotations();
+    cancoder.getConfigurator().apply(cancoderConfig);
+
     var turnConfig = new TalonFXConfiguration();
     turnConfig.CurrentLimits.SupplyCurrentLimit = 30.0;
     turnConfig.CurrentLimits.SupplyCurrentLimitEnable = true;
+    turnConfig.Feedback.FeedbackRemoteSensorID = cancoder.getDeviceID();
+    turnConfig.Feedback.FeedbackSensorSource = FeedbackSensorSourceValue.FusedCANcoder;
+    turnConfig.Feedback.RotorToSensorRatio = TURN_GEAR_RATIO;
+    turnConfig.Feedback.SensorToMechanismRatio = 1.0;
+    turnConfig.ClosedLoopGeneral.ContinuousWrap = true;
     turnTalon.getConfigurator().apply(turnConfig);
     setTurnBrakeMode(true);
 
-    cancoder.getConfigurator().apply(new CANcoderConfiguration());
-
-    timestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue();
-
     drivePosition = driveTalon.getPosition();
-    drivePositionQueue =
-        PhoenixOdometryThread.getInstance().registerSignal(driveTalon, driveTalon.getPosition());
     driveVelocity = driveTalon.getVelocity();
     driveAppliedVolts = driveTalon.getMotorVoltage();
     driveCurrent = driveTalon.getSupplyCurrent();
 
     turnAbsolutePosition = cancoder.getAbsolutePosition();
     turnPosition = turnTalon.getPosition();
+
+    // The odometry thread refreshes its own copies of the position signals so
+    // it never races with the refresh by the signal registry
+    odometryDrivePosition = drivePosition.clone();
+    odometryTurnPosition = turnPosition.clone();
+    drivePositionQueue =
+        PhoenixOdometryThread.getInstance().registerSignal(driveTalon, odometryDrivePosition);
     turnPositionQueue =
-        PhoenixOdometryThread.getInstance().registerSignal(turnTalon, turnTalon.getPosition());
+        PhoenixOdometryThread.getInstance().registerSignal(turnTalon, odometryTurnPosition);
+    turnPositionSamples = new double[turnPositionQueue.capacity()];
+    timestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue(odometryDrivePosition);
+    sampleAges =
+        PhoenixOdometryThread.getInstance()
+            .getStats(odometryDrivePosition)
+            .addConsumer("Module" + index);
+
     turnVelocity = turnTalon.getVelocity();
     turnAppliedVolts = turnTalon.getMotorVoltage();
     turnCurrent = turnTalon.getSupplyCurrent();
 
-    BaseStatusSignal.setUpdateFrequencyForAll(
-        Module.ODOMETRY_FREQUENCY, drivePosition, turnPosition);
-    BaseStatusSignal.setUpdateFrequencyForAll(
+    CanBusBudget budget = CanBusBudget.getInstance();
+    String name = "Module" + index + "/";
+    budget.register(
+        driveTalon,
+        name + "DrivePosition",
+        Priority.CRITICAL,
+        Module.ODOMETRY_FREQUENCY,
+        drivePosition);
+    budget.register(
+        turnTalon,
+        name + "TurnPosition",
+        Priority.CRITICAL,
+        Module.ODOMETRY_FREQUENCY,
+        turnPosition);
+    budget.register(driveTalon, name + "DriveVelocity", Priority.CRITICAL, 50.0, driveVelocity);
+    budget.register(turnTalon, name + "TurnVelocity", Priority.CRITICAL, 50.0, turnVelocity);
+    budget.register(
+        cancoder, name + "TurnAbsolutePosition", Priority.CRITICAL, 50.0, turnAbsolutePosition);
+    budget.register(
+        driveTalon,
+        name + "DriveTelemetry",
+        Priority.TELEMETRY,
         50.0,
-        driveVelocity,
         driveAppliedVolts,
-        driveCurrent,
-        turnAbsolutePosition,
-        turnVelocity,
-        turnAppliedVolts,
-        turnCurrent);
+        driveCurrent);
+    budget.register(
+        turnTalon, name + "TurnTelemetry", Priority.TELEMETRY, 50.0, turnAppliedVolts, turnCurrent);
     driveTalon.optimizeBusUtilization();
     turnTalon.optimizeBusUtilization();
+    PhoenixSignalRegistry.getInstance()
+        .register(driveTalon, drivePosition, driveVelocity, driveAppliedVolts, driveCurrent);
+    PhoenixSignalRegistry.getInstance().register(cancoder, turnAbsolutePosition);
+    PhoenixSignalRegistry.getInstance()
+        .register(turnTalon, turnPosition, turnVelocity, turnAppliedVolts, turnCurrent);
   }
 
   @Override
   public void updateInputs(ModuleIOInputs inputs) {
-    BaseStatusSignal.refreshAll(
-        drivePosition,
-        driveVelocity,
-        driveAppliedVolts,
-        driveCurrent,
-        turnAbsolutePosition,
-        turnPosition,
-        turnVelocity,
-        turnAppliedVolts,
-        turnCurrent);
-
+    // Signals are refreshed by the signal registry at the start of the cycle
     inputs.drivePositionRad =
         Units.rotationsToRadians(drivePosition.getValueAsDouble()) / DRIVE_GEAR_RATIO;
     inputs.driveVelocityRadPerSec =
@@ -162,39 +215,102 @@ public class ModuleIOTalonFX implements ModuleIO {
     inputs.driveAppliedVolts = driveAppliedVolts.getValueAsDouble();
     inputs.driveCurrentAmps = new double[] {driveCurrent.getValueAsDouble()};
 
-    inputs.turnAbsolutePosition =
-        Rotation2d.fromRotations(turnAbsolutePosition.getValueAsDouble())
-            .minus(absoluteEncoderOffset);
-    inputs.turnPosition =
-        Rotation2d.fromRotations(turnPosition.getValueAsDouble() / TURN_GEAR_RATIO);
-    inputs.turnVelocityRadPerSec =
-        Units.rotationsToRadians(turnVelocity.getValueAsDouble()) / TURN_GEAR_RATIO;
+    // The offset is applied by the CANcoder, and the turn motor reports the fused module angle
+    inputs.turnAbsolutePosition = Rotation2d.fromRotations(turnAbsolutePosition.getValueAsDouble());
+    inputs.turnPosition = Rotation2d.fromRotations(turnPosition.getValueAsDouble());
+    inputs.turnVelocityRadPerSec = Units.rotationsToRadians(turnVelocity.getValueAsDouble());
     inputs.turnAppliedVolts = turnAppliedVolts.getValueAsDouble();
     inputs.turnCurrentAmps = new double[] {turnCurrent.getValueAsDouble()};
 
-    inputs.odometryTimestamps =
-        timestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    inputs.odometryDrivePositionsRad =
-        drivePositionQueue.stream()
-            .mapToDouble((Double value) -> Units.rotationsToRadians(value) / DRIVE_GEAR_RATIO)
-            .toArray();
-    inputs.odometryTurnPositions =
-        turnPositionQueue.stream()
-            .map((Double value) -> Rotation2d.fromRotations(value / TURN_GEAR_RATIO))
-            .toArray(Rotation2d[]::new);
-    timestampQueue.clear();
-    drivePositionQueue.clear();
-    turnPositionQueue.clear();
+    int sampleCount = timestampQueue.size();
+    inputs.odometryTimestamps = new double[sampleCount];
+    inputs.odometryDrivePositionsRad = new double[sampleCount];
+    inputs.odometryTurnPositions = new Rotation2d[sampleCount];
+    timestampQueue.drainTo(inputs.odometryTimestamps);
+    sampleAges.record(inputs.odometryTimestamps);
+    drivePositionQueue.drainTo(inputs.odometryDrivePositionsRad);
+    turnPositionQueue.drainTo(turnPositionSamples, 0, sampleCount);
+    for (int i = 0; i < sampleCount; i++) {
+      inputs.odometryDrivePositionsRad[i] =
+          Units.rotationsToRadians(inputs.odometryDrivePositionsRad[i]) / DRIVE_GEAR_RATIO;
+      inputs.odometryTurnPositions[i] = Rotation2d.fromRotations(turnPositionSamples[i]);
+    }
+  }
+
+  @Override
+  public HighRateOdometry.ModuleSource getHighRateSource() {
+    return new HighRateOdometry.ModuleSource() {
+      @Override
+      public double getDrivePositionRad() {
+        return Units.rotationsToRadians(odometryDrivePosition.getValueAsDouble())
+            / DRIVE_GEAR_RATIO;
+      }
+
+      @Override
+      public double getTurnPositionRad() {
+        return Units.rotationsToRadians(odometryTurnPosition.getValueAsDouble());
+      }
+
+      @Override
+      public void addSampleListener(DoubleConsumer listener) {
+        PhoenixOdometryThread.getInstance().addSampleListener(odometryDrivePosition, listener);
+      }
+    };
   }
 
   @Override
   public void setDriveVoltage(double volts) {
-    driveTalon.setControl(new VoltageOut(volts));
+    if (driveRequestFilter.shouldSend(driveVoltageRequest, volts)) {
+      driveTalon.setControl(driveVoltageRequest.withOutput(volts));
+    }
   }
 
   @Override
   public void setTurnVoltage(double volts) {
-    turnTalon.setControl(new VoltageOut(volts));
+    if (turnRequestFilter.shouldSend(turnVoltageRequest, volts)) {
+      turnTalon.setControl(turnVoltageRequest.withOutput(volts));
+    }
+  }
+
+  @Override
+  public void setDriveVelocity(double velocityRadPerSec, double ffVolts) {
+    double motorVelocity = Units.radiansToRotations(velocityRadPerSec) * DRIVE_GEAR_RATIO;
+    if (driveRequestFilter.shouldSend(driveVelocityRequest, motorVelocity, ffVolts)) {
+      driveTalon.setControl(
+          driveVelocityRequest.withVelocity(motorVelocity).withFeedForward(ffVolts));
+    }
+  }
+
+  @Override
+  public void setTurnPosition(Rotation2d position) {
+    double rotations = position.getRotations();
+    if (turnRequestFilter.shouldSend(turnPositionRequest, rotations)) {
+      turnTalon.setControl(turnPositionRequest.withPosition(rotations));
+    }
+  }
+
+  @Override
+  public void configureDrivePID(double kP, double kI, double kD) {
+    // Convert from volts per wheel rad/sec to volts per motor rotation/sec
+    double scale = 2.0 * Math.PI / DRIVE_GEAR_RATIO;
+    var config = new Slot0Configs();
+    config.kP = kP * scale;
+    config.kI = kI * scale;
+    config.kD = kD * scale;
+    ConfigExecutor.getInstance()
+        .submit(driveTalon, "Slot0", () -> driveTalon.getConfigurator().apply(config));
+  }
+
+  @Override
+  public void configureTurnPID(double kP, double kI, double kD) {
+    // Convert from volts per module radian to volts per module rotation
+    double scale = 2.0 * Math.PI;
+    var config = new Slot0Configs();
+    config.kP = kP * scale;
+    config.kI = kI * scale;
+    config.kD = kD * scale;
+    ConfigExecutor.getInstance()
+        .submit(turnTalon, "Slot0", () -> turnTalon.getConfigurator().apply(config));
   }
 
   @Override
@@ -202,7 +318,8 @@ public class ModuleIOTalonFX implements ModuleIO {
     var config = new MotorOutputConfigs();
     config.Inverted = InvertedValue.CounterClockwise_Positive;
     config.NeutralMode = enable ? NeutralModeValue.Brake : NeutralModeValue.Coast;
-    driveTalon.getConfigurator().apply(config);
+    ConfigExecutor.getInstance()
+        .submit(driveTalon, "MotorOutput", () -> driveTalon.getConfigurator().apply(config));
   }
 
   @Override
@@ -213,6 +330,7 @@ public class ModuleIOTalonFX implements ModuleIO {
             ? InvertedValue.Clockwise_Positive
             : InvertedValue.CounterClockwise_Positive;
     config.NeutralMode = enable ? NeutralModeValue.Brake : NeutralModeValue.Coast;
-    turnTalon.getConfigurator().apply(config);
+    ConfigExecutor.getInstance()
+        .submit(turnTalon, "MotorOutput", () -> turnTalon.getConfigurator().apply(config));
   }
 }
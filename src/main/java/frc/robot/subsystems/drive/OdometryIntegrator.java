@@ -0,0 +1,79 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+/**
+ * Turns the aligned odometry samples into pose estimator updates, keeping every delta and the
+ * heading in primitives so that no objects are allocated per sample.
+ *
+ * <p>The pose estimator keeps references to the objects passed to it, so those are created by the
+ * {@link SampleConsumer} (and only when a value changes).
+ */
+public class OdometryIntegrator {
+  /** Receives each integrated sample. The arrays are reused and must not be kept. */
+  @FunctionalInterface
+  public static interface SampleConsumer {
+    public void accept(
+        double timestamp, double yawRad, double[] distancesMeters, double[] anglesRad);
+  }
+
+  private final SwerveKinematics4 kinematics;
+  private final double[] distancesMeters = new double[4];
+  private final double[] anglesRad = new double[4];
+  private final double[] lastDistancesMeters = new double[4]; // For delta tracking
+  private final double[] moduleDeltas = new double[4];
+  private final double[] twist = new double[3];
+  private double yawRad = 0.0;
+
+  public OdometryIntegrator(SwerveKinematics4 kinematics) {
+    this.kinematics = kinematics;
+  }
+
+  /** Returns the integrated (or measured) yaw of the last sample in radians. */
+  public double getYawRad() {
+    return yawRad;
+  }
+
+  /**
+   * Integrates the samples produced by the last update of the resampler.
+   *
+   * @param resampler The resampler with the aligned samples.
+   * @param consumer Receives each sample in order.
+   */
+  public void integrate(OdometryResampler resampler, SampleConsumer consumer) {
+    int sampleCount = resampler.getSampleCount();
+    for (int i = 0; i < sampleCount; i++) {
+      // Read wheel positions and deltas from each module
+      for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
+        double distance = resampler.getModuleDistance(i, moduleIndex);
+        moduleDeltas[moduleIndex] = distance - lastDistancesMeters[moduleIndex];
+        lastDistancesMeters[moduleIndex] = distance;
+        distancesMeters[moduleIndex] = distance;
+        anglesRad[moduleIndex] = resampler.getModuleAngle(i, moduleIndex);
+      }
+
+      // Update gyro angle
+      if (resampler.hasGyroYaw(i)) {
+        // Use the real gyro angle
+        yawRad = resampler.getGyroYaw(i);
+      } else {
+        // Use the angle delta from the kinematics and module deltas
+        kinematics.toTwist(moduleDeltas, anglesRad, twist);
+        yawRad += twist[2];
+      }
+
+      consumer.accept(resampler.getTimestamp(i), yawRad, distancesMeters, anglesRad);
+    }
+  }
+}
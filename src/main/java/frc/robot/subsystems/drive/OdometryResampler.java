@@ -0,0 +1,296 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import java.util.Arrays;
+
+/**
+ * Places the module and gyro odometry samples on a common timeline.
+ *
+ * <p>The timeline follows the module with the most pending samples (normally all modules are
+ * sampled together). Every other stream is linearly interpolated at each timeline point, so the
+ * streams do not need to be in lockstep or even on the same bus. A point is only produced once
+ * every live stream has caught up to it, so samples that arrive late are carried over to the next
+ * cycle instead of being extrapolated. Streams that have not produced a sample for {@link
+ * #STALE_SECS} (e.g. a disconnected device) hold their last value rather than stalling the
+ * timeline.
+ */
+public class OdometryResampler {
+  static final double STALE_SECS = 0.1;
+  private static final double ALIGN_TOLERANCE_SECS = 0.5 / Module.ODOMETRY_FREQUENCY;
+
+  private final Stream[] moduleStreams = {
+    new Stream(false), new Stream(false), new Stream(false), new Stream(false)
+  };
+  private final Stream gyroStream = new Stream(true);
+  private double lastTimestamp = Double.NEGATIVE_INFINITY;
+
+  // Outputs from the last update
+  private int sampleCount = 0;
+  private double[] timestamps = new double[32];
+  private double[][] moduleDistances = new double[4][32];
+  private double[][] moduleAngles = new double[4][32];
+  private boolean[] gyroValid = new boolean[32];
+  private double[] gyroYaws = new double[32];
+  private final double[] interpolated = new double[2];
+
+  /**
+   * Adds the samples received this cycle for a module.
+   *
+   * @param moduleIndex The index of the module.
+   * @param sampleTimestamps The sample timestamps in seconds.
+   * @param distancesMeters The drive positions in meters.
+   * @param anglesRad The turn angles in radians.
+   * @param count The number of samples to read from the arrays.
+   */
+  public void addModuleSamples(
+      int moduleIndex,
+      double[] sampleTimestamps,
+      double[] distancesMeters,
+      double[] anglesRad,
+      int count) {
+    Stream stream = moduleStreams[moduleIndex];
+    for (int i = 0; i < count; i++) {
+      stream.add(sampleTimestamps[i], distancesMeters[i], anglesRad[i]);
+    }
+  }
+
+  /** Adds the gyro samples received this cycle, with yaw angles in radians. */
+  public void addGyroSamples(double[] sampleTimestamps, double[] yawsRad, int count) {
+    for (int i = 0; i < count; i++) {
+      gyroStream.add(sampleTimestamps[i], yawsRad[i], 0.0);
+    }
+  }
+
+  /**
+   * Produces the aligned samples from the pending data. Should be called once per cycle after all
+   * samples have been added.
+   *
+   * @param useGyro Whether the gyro stream is expected to produce samples.
+   */
+  public void update(boolean useGyro) {
+    sampleCount = 0;
+
+    // Follow the module with the most new samples
+    Stream reference = null;
+    int referenceCount = 0;
+    for (Stream stream : moduleStreams) {
+      int count = stream.countAfter(lastTimestamp);
+      if (count > referenceCount) {
+        reference = stream;
+        referenceCount = count;
+      }
+    }
+    if (reference == null) {
+      discardOldSamples();
+      return;
+    }
+
+    int start = reference.size - referenceCount;
+    for (int i = start; i < reference.size; i++) {
+      double timestamp = reference.timestamps[i];
+      if (!isCaughtUp(timestamp, useGyro)) {
+        break; // Wait for the other streams, later points can't be ready either
+      }
+      ensureOutputCapacity(sampleCount + 1);
+      timestamps[sampleCount] = timestamp;
+      for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
+        moduleStreams[moduleIndex].sample(timestamp, interpolated);
+        moduleDistances[moduleIndex][sampleCount] = interpolated[0];
+        moduleAngles[moduleIndex][sampleCount] = interpolated[1];
+      }
+      gyroValid[sampleCount] =
+          useGyro && !gyroStream.isStale(timestamp) && gyroStream.sample(timestamp, interpolated);
+      gyroYaws[sampleCount] = interpolated[0];
+      sampleCount++;
+      lastTimestamp = timestamp;
+    }
+
+    discardOldSamples();
+  }
+
+  /** Keeps only the samples needed to interpolate future points. */
+  private void discardOldSamples() {
+    for (Stream stream : moduleStreams) {
+      stream.discardBefore(Math.max(lastTimestamp, stream.getNewest() - STALE_SECS));
+    }
+    gyroStream.discardBefore(Math.max(lastTimestamp, gyroStream.getNewest() - STALE_SECS));
+  }
+
+  /** Returns whether every live stream has a sample at or after the timestamp. */
+  private boolean isCaughtUp(double timestamp, boolean useGyro) {
+    for (Stream stream : moduleStreams) {
+      if (!stream.isCaughtUp(timestamp)) {
+        return false;
+      }
+    }
+    return !useGyro || gyroStream.isCaughtUp(timestamp);
+  }
+
+  private void ensureOutputCapacity(int capacity) {
+    if (capacity <= timestamps.length) {
+      return;
+    }
+    int newCapacity = timestamps.length * 2;
+    timestamps = Arrays.copyOf(timestamps, newCapacity);
+    for (int i = 0; i < 4; i++) {
+      moduleDistances[i] = Arrays.copyOf(moduleDistances[i], newCapacity);
+      moduleAngles[i] = Arrays.copyOf(moduleAngles[i], newCapacity);
+    }
+    gyroValid = Arrays.copyOf(gyroValid, newCapacity);
+    gyroYaws = Arrays.copyOf(gyroYaws, newCapacity);
+  }
+
+  /** Returns the number of aligned samples produced by the last update. */
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  /** Returns the timestamp of an aligned sample in seconds. */
+  public double getTimestamp(int sampleIndex) {
+    return timestamps[sampleIndex];
+  }
+
+  /** Returns the drive position of a module at an aligned sample in meters. */
+  public double getModuleDistance(int sampleIndex, int moduleIndex) {
+    return moduleDistances[moduleIndex][sampleIndex];
+  }
+
+  /** Returns the turn angle of a module at an aligned sample in radians. */
+  public double getModuleAngle(int sampleIndex, int moduleIndex) {
+    return moduleAngles[moduleIndex][sampleIndex];
+  }
+
+  /** Returns whether a gyro measurement is available for an aligned sample. */
+  public boolean hasGyroYaw(int sampleIndex) {
+    return gyroValid[sampleIndex];
+  }
+
+  /** Returns the gyro yaw at an aligned sample in radians. */
+  public double getGyroYaw(int sampleIndex) {
+    return gyroYaws[sampleIndex];
+  }
+
+  /** Time-ordered samples of a single stream with two values each. */
+  private static class Stream {
+    private final boolean valueIsAngle; // Whether the first value wraps
+    private double[] timestamps = new double[32];
+    private double[] firstValues = new double[32];
+    private double[] secondValues = new double[32];
+    private int size = 0;
+
+    private Stream(boolean valueIsAngle) {
+      this.valueIsAngle = valueIsAngle;
+    }
+
+    private void add(double timestamp, double first, double second) {
+      if (size > 0 && timestamp <= timestamps[size - 1]) {
+        return; // Out of order or duplicate
+      }
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        firstValues = Arrays.copyOf(firstValues, size * 2);
+        secondValues = Arrays.copyOf(secondValues, size * 2);
+      }
+      timestamps[size] = timestamp;
+      firstValues[size] = first;
+      secondValues[size] = second;
+      size++;
+    }
+
+    private double getNewest() {
+      return size > 0 ? timestamps[size - 1] : Double.NEGATIVE_INFINITY;
+    }
+
+    private int countAfter(double timestamp) {
+      int count = 0;
+      for (int i = size - 1; i >= 0 && timestamps[i] > timestamp; i--) {
+        count++;
+      }
+      return count;
+    }
+
+    private boolean isCaughtUp(double timestamp) {
+      if (size == 0 || isStale(timestamp)) {
+        return true; // Nothing to wait for
+      }
+      return timestamps[size - 1] >= timestamp - ALIGN_TOLERANCE_SECS;
+    }
+
+    private boolean isStale(double timestamp) {
+      return size == 0 || timestamps[size - 1] < timestamp - STALE_SECS;
+    }
+
+    /**
+     * Writes the values interpolated at the timestamp, holding the nearest sample outside of the
+     * sampled range. Returns false if the stream has no samples.
+     */
+    private boolean sample(double timestamp, double[] out) {
+      if (size == 0) {
+        out[0] = 0.0;
+        out[1] = 0.0;
+        return false;
+      }
+      if (timestamp <= timestamps[0]) {
+        out[0] = firstValues[0];
+        out[1] = secondValues[0];
+        return true;
+      }
+      if (timestamp >= timestamps[size - 1]) {
+        out[0] = firstValues[size - 1];
+        out[1] = secondValues[size - 1];
+        return true;
+      }
+
+      // Binary search for the samples on either side
+      int low = 0;
+      int high = size - 1;
+      while (high - low > 1) {
+        int mid = (low + high) >>> 1;
+        if (timestamps[mid] <= timestamp) {
+          low = mid;
+        } else {
+          high = mid;
+        }
+      }
+      double t = (timestamp - timestamps[low]) / (timestamps[high] - timestamps[low]);
+      out[0] =
+          valueIsAngle
+              ? interpolateAngle(firstValues[low], firstValues[high], t)
+              : firstValues[low] + (firstValues[high] - firstValues[low]) * t;
+      out[1] = interpolateAngle(secondValues[low], secondValues[high], t);
+      return true;
+    }
+
+    /** Drops samples before the timestamp, keeping the latest one at or before it. */
+    private void discardBefore(double timestamp) {
+      int keepFrom = 0;
+      while (keepFrom + 1 < size && timestamps[keepFrom + 1] <= timestamp) {
+        keepFrom++;
+      }
+      if (keepFrom > 0) {
+        int remaining = size - keepFrom;
+        System.arraycopy(timestamps, keepFrom, timestamps, 0, remaining);
+        System.arraycopy(firstValues, keepFrom, firstValues, 0, remaining);
+        System.arraycopy(secondValues, keepFrom, secondValues, 0, remaining);
+        size = remaining;
+      }
+    }
+
+    private static double interpolateAngle(double start, double end, double t) {
+      return start + MathUtil.angleModulus(end - start) * t;
+    }
+  }
+}
@@ -15,124 +15,273 @@ package frc.robot.subsystems.drive;
 
 import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.CANBus;
+import com.ctre.phoenix6.StatusCode;
 import com.ctre.phoenix6.StatusSignal;
+import com.ctre.phoenix6.Utils;
 import com.ctre.phoenix6.hardware.ParentDevice;
+import edu.wpi.first.wpilibj.Threads;
+import frc.robot.Constants;
+import frc.robot.util.DeadlineScheduler;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.SamplingStats;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleConsumer;
 import org.littletonrobotics.junction.Logger;
 
 /**
  * Provides an interface for asynchronously reading high-frequency measurements to a set of queues.
  *
- * <p>This version is intended for Phoenix 6 devices on both the RIO and CANivore buses. When using
- * a CANivore, the thread uses the "waitForAll" blocking method to enable more consistent sampling.
- * This also allows Phoenix Pro users to benefit from lower latency between devices using CANivore
- * time synchronization.
+ * <p>This version is intended for Phoenix 6 devices on both the RIO and CANivore buses. Each CAN
+ * bus is sampled by its own thread. When using a CANivore, that thread uses the "waitForAll"
+ * blocking method to enable more consistent sampling. This also allows Phoenix Pro users to benefit
+ * from lower latency between devices using CANivore time synchronization. Buses that are not CAN FD
+ * are polled on a fixed schedule instead.
+ *
+ * <p>Each timestamp queue follows one registered signal and records that signal's own timestamp
+ * (from the device or CANivore when available) converted to FPGA time. Streams from different buses
+ * are therefore aligned by timestamp rather than by sample index.
+ *
+ * <p>Samples are handed to the main loop through lock-free ring buffers, so neither thread can
+ * stall the other.
  */
-public class PhoenixOdometryThread extends Thread {
-  private final Lock signalsLock =
-      new ReentrantLock(); // Prevents conflicts when registering signals
-  private BaseStatusSignal[] signals = new BaseStatusSignal[0];
-  private final List<Queue<Double>> queues = new ArrayList<>();
-  private final List<Queue<Double>> timestampQueues = new ArrayList<>();
-  private boolean isCANFD = false;
+public class PhoenixOdometryThread {
+  private final Map<String, BusThread> busThreads = new LinkedHashMap<>();
+  private boolean started = false;
 
   private static PhoenixOdometryThread instance = null;
 
-  public static PhoenixOdometryThread getInstance() {
+  public static synchronized PhoenixOdometryThread getInstance() {
     if (instance == null) {
       instance = new PhoenixOdometryThread();
     }
     return instance;
   }
 
-  private PhoenixOdometryThread() {
-    setName("PhoenixOdometryThread");
-    setDaemon(true);
+  private PhoenixOdometryThread() {}
+
+  /** Starts a sampling thread for each bus with registered signals. */
+  public synchronized void start() {
+    started = true;
+    for (BusThread thread : busThreads.values()) {
+      thread.startIfReady();
+    }
   }
 
-  @Override
-  public void start() {
-    if (timestampQueues.size() > 0) {
-      super.start();
+  public synchronized DoubleRingBuffer registerSignal(
+      ParentDevice device, StatusSignal<Double> signal) {
+    String bus = device.getNetwork().isEmpty() ? "rio" : device.getNetwork();
+    BusThread thread = busThreads.get(bus);
+    if (thread == null) {
+      thread = new BusThread(bus);
+      busThreads.put(bus, thread);
     }
+    return thread.registerSignal(signal);
   }
 
-  public Queue<Double> registerSignal(ParentDevice device, StatusSignal<Double> signal) {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    signalsLock.lock();
-    Drive.odometryLock.lock();
-    try {
-      isCANFD = CANBus.isNetworkFD(device.getNetwork());
-      BaseStatusSignal[] newSignals = new BaseStatusSignal[signals.length + 1];
-      System.arraycopy(signals, 0, newSignals, 0, signals.length);
-      newSignals[signals.length] = signal;
-      signals = newSignals;
-      queues.add(queue);
-    } finally {
-      signalsLock.unlock();
-      Drive.odometryLock.unlock();
+  /**
+   * Creates a queue of sample timestamps for a signal that was passed to {@link
+   * #registerSignal(ParentDevice, StatusSignal)}. Each entry is the FPGA time at which that signal
+   * was measured.
+   */
+  public synchronized DoubleRingBuffer makeTimestampQueue(BaseStatusSignal signal) {
+    DoubleRingBuffer queue = getBusThread(signal).makeTimestampQueue(signal);
+    if (started) {
+      getBusThread(signal).startIfReady();
     }
     return queue;
   }
 
-  public Queue<Double> makeTimestampQueue() {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
-    try {
-      timestampQueues.add(queue);
-    } finally {
-      Drive.odometryLock.unlock();
+  /**
+   * Adds a listener that is called from the sampling thread of a registered signal's bus with the
+   * timestamp of each valid sample, after all of the signals on that bus have been refreshed. The
+   * timestamp is the hardware timestamp of the signal, the same as in its timestamp queue.
+   */
+  public synchronized void addSampleListener(BaseStatusSignal signal, DoubleConsumer listener) {
+    getBusThread(signal).addSampleListener(signal, listener);
+  }
+
+  /** Returns the sampling quality statistics for the bus that samples a registered signal. */
+  public synchronized SamplingStats getStats(BaseStatusSignal signal) {
+    return getBusThread(signal).stats;
+  }
+
+  /** Publishes the sampling quality statistics of every bus. Should be called once per cycle. */
+  public synchronized void periodic() {
+    for (BusThread thread : busThreads.values()) {
+      thread.stats.periodic("Odometry/PhoenixThread/" + thread.bus);
     }
-    return queue;
   }
 
-  @Override
-  public void run() {
-    while (true) {
-      // Wait for updates from all signals
+  private BusThread getBusThread(BaseStatusSignal signal) {
+    for (BusThread thread : busThreads.values()) {
+      if (thread.hasSignal(signal)) {
+        return thread;
+      }
+    }
+    throw new IllegalArgumentException("Signal must be registered first");
+  }
+
+  /** Samples the signals of a single CAN bus. */
+  private static class BusThread extends Thread {
+    private final String bus;
+    private final boolean isCANFD;
+    private final Lock signalsLock =
+        new ReentrantLock(); // Prevents conflicts when registering signals
+    private BaseStatusSignal[] signals = new BaseStatusSignal[0];
+    private final List<DoubleRingBuffer> queues = new ArrayList<>();
+    private final List<DoubleRingBuffer> timestampQueues = new ArrayList<>();
+    private final List<BaseStatusSignal> timestampSignals = new ArrayList<>();
+    private final List<DoubleConsumer> sampleListeners = new ArrayList<>();
+    private final List<BaseStatusSignal> sampleListenerSignals = new ArrayList<>();
+    private final SamplingStats stats = new SamplingStats();
+    private final DeadlineScheduler scheduler =
+        new DeadlineScheduler(1.0 / Module.ODOMETRY_FREQUENCY);
+
+    private BusThread(String bus) {
+      this.bus = bus;
+      isCANFD = CANBus.isNetworkFD(bus);
+      setName("PhoenixOdometryThread-" + bus);
+      setDaemon(true);
+    }
+
+    private void startIfReady() {
+      if (timestampQueues.size() > 0 && getState() == State.NEW) {
+        start();
+      }
+    }
+
+    private boolean hasSignal(BaseStatusSignal signal) {
       signalsLock.lock();
       try {
-        if (isCANFD) {
-          BaseStatusSignal.waitForAll(2.0 / Module.ODOMETRY_FREQUENCY, signals);
-        } else {
-          // "waitForAll" does not support blocking on multiple
-          // signals with a bus that is not CAN FD, regardless
-          // of Pro licensing. No reasoning for this behavior
-          // is provided by the documentation.
-          Thread.sleep((long) (1000.0 / Module.ODOMETRY_FREQUENCY));
-          if (signals.length > 0) BaseStatusSignal.refreshAll(signals);
-        }
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+        return List.of(signals).contains(signal);
       } finally {
         signalsLock.unlock();
       }
+    }
 
-      // Save new data to queues
-      Drive.odometryLock.lock();
+    private DoubleRingBuffer registerSignal(StatusSignal<Double> signal) {
+      DoubleRingBuffer queue = new DoubleRingBuffer(20);
+      signalsLock.lock();
       try {
-        double timestamp = Logger.getRealTimestamp() / 1e6;
-        double totalLatency = 0.0;
-        for (BaseStatusSignal signal : signals) {
-          totalLatency += signal.getTimestamp().getLatency();
-        }
-        if (signals.length > 0) {
-          timestamp -= totalLatency / signals.length;
-        }
-        for (int i = 0; i < signals.length; i++) {
-          queues.get(i).offer(signals[i].getValueAsDouble());
-        }
-        for (int i = 0; i < timestampQueues.size(); i++) {
-          timestampQueues.get(i).offer(timestamp);
-        }
+        BaseStatusSignal[] newSignals = new BaseStatusSignal[signals.length + 1];
+        System.arraycopy(signals, 0, newSignals, 0, signals.length);
+        newSignals[signals.length] = signal;
+        signals = newSignals;
+        queues.add(queue);
+      } finally {
+        signalsLock.unlock();
+      }
+      return queue;
+    }
+
+    private DoubleRingBuffer makeTimestampQueue(BaseStatusSignal signal) {
+      DoubleRingBuffer queue = new DoubleRingBuffer(20);
+      signalsLock.lock();
+      try {
+        timestampQueues.add(queue);
+        timestampSignals.add(signal);
+      } finally {
+        signalsLock.unlock();
+      }
+      return queue;
+    }
+
+    private void addSampleListener(BaseStatusSignal signal, DoubleConsumer listener) {
+      signalsLock.lock();
+      try {
+        sampleListeners.add(listener);
+        sampleListenerSignals.add(signal);
       } finally {
-        Drive.odometryLock.unlock();
+        signalsLock.unlock();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (Constants.odometryThreadPriority > 0) {
+        Threads.setCurrentThreadPriority(true, Constants.odometryThreadPriority);
+      }
+
+      while (true) {
+        // Wait for updates from all signals
+        signalsLock.lock();
+        try {
+          StatusCode status = StatusCode.OK;
+          if (isCANFD) {
+            status = BaseStatusSignal.waitForAll(2.0 / Module.ODOMETRY_FREQUENCY, signals);
+          } else {
+            // "waitForAll" does not support blocking on multiple
+            // signals with a bus that is not CAN FD, regardless
+            // of Pro licensing. No reasoning for this behavior
+            // is provided by the documentation.
+            //
+            // Sleep until an absolute deadline so the refresh time
+            // does not stretch the sampling period.
+            int skipped = scheduler.waitForNextDeadline();
+            if (skipped > 0) {
+              stats.recordSkipped(skipped);
+            }
+            if (signals.length > 0) status = BaseStatusSignal.refreshAll(signals);
+          }
+          if (!status.isOK()) {
+            stats.recordInvalid();
+          }
+
+          // Save new data to queues
+          double fpgaTimestamp = Logger.getRealTimestamp() / 1e6;
+          double fpgaOffset = fpgaTimestamp - Utils.getCurrentTimeSeconds();
+          for (BaseStatusSignal signal : signals) {
+            stats.recordLatency(signal.getTimestamp().getLatency());
+          }
+          stats.recordSample(fpgaTimestamp);
+          if (hasRoomForSample()) {
+            // Values are published before timestamps, so a consumer that sees
+            // N timestamps is guaranteed to find at least N values
+            for (int i = 0; i < signals.length; i++) {
+              queues.get(i).offer(signals[i].getValueAsDouble());
+            }
+            for (int i = 0; i < timestampQueues.size(); i++) {
+              timestampQueues.get(i).offer(getSampleTimestamp(timestampSignals.get(i), fpgaOffset));
+            }
+          } else {
+            stats.recordDropped();
+          }
+          if (status.isOK()) {
+            for (int i = 0; i < sampleListeners.size(); i++) {
+              sampleListeners
+                  .get(i)
+                  .accept(getSampleTimestamp(sampleListenerSignals.get(i), fpgaOffset));
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } finally {
+          signalsLock.unlock();
+        }
+      }
+    }
+
+    /** Returns the hardware timestamp of the latest sample of a signal in FPGA seconds. */
+    private static double getSampleTimestamp(BaseStatusSignal signal, double fpgaOffset) {
+      // Phoenix timestamps share the time base of "Utils.getCurrentTimeSeconds"
+      return signal.getAllTimestamps().getBestTimestamp().getTime() + fpgaOffset;
+    }
+
+    /** Returns whether every queue can accept another sample, so samples are dropped together. */
+    private boolean hasRoomForSample() {
+      for (int i = 0; i < queues.size(); i++) {
+        if (queues.get(i).isFull()) return false;
+      }
+      for (int i = 0; i < timestampQueues.size(); i++) {
+        if (timestampQueues.get(i).isFull()) return false;
       }
+      return true;
     }
   }
 }
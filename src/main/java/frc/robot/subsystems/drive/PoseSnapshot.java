@@ -0,0 +1,61 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable view of the drive state at one update, published by {@link Drive} so that other threads
+ * can read a consistent pose without locking.
+ */
+public class PoseSnapshot {
+  /** Increases by one with each published snapshot. */
+  public final long sequence;
+
+  /** The timestamp of the newest odometry sample in the pose, in FPGA seconds. */
+  public final double timestamp;
+
+  /** The estimated field-relative pose. */
+  public final Pose2d pose;
+
+  /** The measured robot-relative velocity. */
+  public final ChassisSpeeds robotRelativeSpeeds;
+
+  public PoseSnapshot(
+      long sequence, double timestamp, Pose2d pose, ChassisSpeeds robotRelativeSpeeds) {
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.pose = pose;
+    this.robotRelativeSpeeds = robotRelativeSpeeds;
+  }
+
+  /**
+   * Publishes a new snapshot to the reference with the next sequence number. Safe to call from
+   * several threads.
+   */
+  public static void publish(
+      AtomicReference<PoseSnapshot> reference,
+      double timestamp,
+      Pose2d pose,
+      ChassisSpeeds robotRelativeSpeeds) {
+    PoseSnapshot previous;
+    PoseSnapshot next;
+    do {
+      previous = reference.get();
+      next = new PoseSnapshot(previous.sequence + 1, timestamp, pose, robotRelativeSpeeds);
+    } while (!reference.compareAndSet(previous, next));
+  }
+}
@@ -0,0 +1,292 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Stands in for the odometry threads in simulation, producing sample bursts like the real robot.
+ *
+ * <p>The module sims are stepped together here rather than by each module, so the gyro sim can
+ * integrate the yaw from the chassis motion on every physics step. The first input read of each
+ * cycle steps the physics up to the cycle timestamp from the logger, in whole steps with the
+ * remainder carried into the next cycle, so the physics follows the clock even when cycles overrun
+ * or run short. The modules and gyro are sampled on one shared schedule at {@link
+ * Module#ODOMETRY_FREQUENCY}, with each sample time jittered and a fraction of samples dropped for
+ * every stream at once (like a missed CAN frame). Each sample is only handed to the inputs once the
+ * latency has passed, so samples near the end of a cycle arrive in the next one.
+ *
+ * <p>The true pose of the simulated robot is integrated from the same chassis motion, independently
+ * of the pose estimator, as the ground truth for the camera sims.
+ *
+ * <p>The jitter and drops come from a hash of the sample index, so runs are repeatable and every
+ * stream sees the same schedule regardless of the order in which the inputs are read.
+ */
+public class SimOdometrySampler {
+  private static final double PERIOD_SECS = 1.0 / Module.ODOMETRY_FREQUENCY;
+  private static final long SEED = 0x6328501L;
+  private static final int GYRO_STREAM = 4;
+  private static final int STREAM_CAPACITY = 64;
+
+  private final double stepSecs;
+  private final double jitterSecs;
+  private final double latencySecs;
+  private final double dropProbability;
+
+  private final ModuleIOSim[] modules = new ModuleIOSim[4];
+  private int moduleCount = 0;
+  private final SwerveKinematics4 kinematics = new SwerveKinematics4(Drive.getModuleTranslations());
+
+  // Physics state, guarded by this
+  private double lastUpdateTimestamp = Double.NaN;
+  private double startTimestamp = 0.0;
+  private long stepCount = 0; // Steps taken since the start timestamp
+  private long nextSampleIndex = 0;
+  private double yawRad = 0.0;
+  private double xMeters = 0.0;
+  private double yMeters = 0.0;
+  private double headingOffsetRad = 0.0; // From the gyro yaw to the true heading
+  private double yawVelocityRadPerSec = 0.0;
+  private final double[] lastDistancesMeters = new double[4];
+  private final double[] anglesRad = new double[4];
+  private final double[] moduleDeltas = new double[4];
+  private final double[] twist = new double[3];
+  private final double[][] lastValues = new double[5][2];
+  private final double[][] values = new double[5][2];
+  private final Stream[] streams = {
+    new Stream(), new Stream(), new Stream(), new Stream(), new Stream()
+  };
+
+  /**
+   * Creates a sampler that steps the physics at the 1 kHz rate of the motor controllers' onboard
+   * loops.
+   *
+   * @param jitterSecs The maximum offset of each sample from its nominal time, limited to less than
+   *     half of the sampling period.
+   * @param latencySecs The delay from each sample until it is available to the inputs.
+   * @param dropProbability The fraction of samples that are dropped.
+   */
+  public SimOdometrySampler(double jitterSecs, double latencySecs, double dropProbability) {
+    this(0.001, jitterSecs, latencySecs, dropProbability);
+  }
+
+  /**
+   * Creates a sampler.
+   *
+   * @param stepSecs The period of the physics and closed loop steps.
+   * @param jitterSecs The maximum offset of each sample from its nominal time, limited to less than
+   *     half of the sampling period.
+   * @param latencySecs The delay from each sample until it is available to the inputs.
+   * @param dropProbability The fraction of samples that are dropped.
+   */
+  public SimOdometrySampler(
+      double stepSecs, double jitterSecs, double latencySecs, double dropProbability) {
+    this.stepSecs = stepSecs;
+    this.jitterSecs = Math.min(Math.abs(jitterSecs), PERIOD_SECS * 0.49);
+    this.latencySecs = Math.max(latencySecs, 0.0);
+    this.dropProbability = dropProbability;
+  }
+
+  /** Returns the period of the physics steps. */
+  double getStepSecs() {
+    return stepSecs;
+  }
+
+  /** Adds a module sim, returning its index. Modules must be added in the order FL, FR, BL, BR. */
+  synchronized int addModule(ModuleIOSim module) {
+    if (moduleCount >= modules.length) {
+      throw new IllegalStateException("Only four modules can be simulated");
+    }
+    modules[moduleCount] = module;
+    return moduleCount++;
+  }
+
+  /** Fills the odometry inputs of a module with the samples that have arrived. */
+  synchronized void updateModuleInputs(int moduleIndex, ModuleIO.ModuleIOInputs inputs) {
+    update();
+    Stream stream = streams[moduleIndex];
+    int count = stream.getArrivedCount(lastUpdateTimestamp - latencySecs);
+    inputs.odometryTimestamps = new double[count];
+    inputs.odometryDrivePositionsRad = new double[count];
+    inputs.odometryTurnPositions = new Rotation2d[count];
+    for (int i = 0; i < count; i++) {
+      inputs.odometryTimestamps[i] = stream.timestamps[i];
+      inputs.odometryDrivePositionsRad[i] = stream.values[i][0];
+      inputs.odometryTurnPositions[i] = new Rotation2d(stream.values[i][1]);
+    }
+    stream.remove(count);
+  }
+
+  /** Fills the inputs of the gyro with the current yaw and the samples that have arrived. */
+  synchronized void updateGyroInputs(GyroIO.GyroIOInputs inputs) {
+    update();
+    inputs.connected = true;
+    inputs.yawPosition = new Rotation2d(yawRad);
+    inputs.yawVelocityRadPerSec = yawVelocityRadPerSec;
+
+    Stream stream = streams[GYRO_STREAM];
+    int count = stream.getArrivedCount(lastUpdateTimestamp - latencySecs);
+    inputs.odometryYawTimestamps = new double[count];
+    inputs.odometryYawPositions = new Rotation2d[count];
+    for (int i = 0; i < count; i++) {
+      inputs.odometryYawTimestamps[i] = stream.timestamps[i];
+      inputs.odometryYawPositions[i] = new Rotation2d(stream.values[i][0]);
+    }
+    stream.remove(count);
+  }
+
+  /**
+   * Returns the true pose of the simulated robot as of the last physics step. Safe to call from any
+   * thread.
+   */
+  public synchronized Pose2d getTruePose() {
+    return new Pose2d(xMeters, yMeters, new Rotation2d(yawRad + headingOffsetRad));
+  }
+
+  /**
+   * Moves the simulated robot to a pose (e.g. when the estimated pose is reset), without changing
+   * the gyro yaw.
+   */
+  public synchronized void setTruePose(Pose2d pose) {
+    xMeters = pose.getX();
+    yMeters = pose.getY();
+    headingOffsetRad = pose.getRotation().getRadians() - yawRad;
+  }
+
+  /** Steps the physics up to the current cycle, on the first input read of each cycle. */
+  private void update() {
+    double timestamp = Logger.getTimestamp() / 1e6;
+    if (timestamp == lastUpdateTimestamp) {
+      return;
+    }
+    if (Double.isNaN(lastUpdateTimestamp)) {
+      // Start the physics at the first cycle, with the first sample after it
+      startTimestamp = timestamp;
+      nextSampleIndex = (long) Math.floor(timestamp / PERIOD_SECS);
+      while (getSampleTime(nextSampleIndex) <= timestamp) {
+        nextSampleIndex++;
+      }
+      readValues(lastValues);
+    }
+    lastUpdateTimestamp = timestamp;
+
+    // Timestamps are in whole microseconds, so allow for rounding when counting the steps
+    long targetStepCount = (long) Math.floor((timestamp - startTimestamp) / stepSecs + 1e-6);
+    for (; stepCount < targetStepCount; stepCount++) {
+      for (int i = 0; i < moduleCount; i++) {
+        modules[i].step();
+      }
+      if (moduleCount == 4) {
+        // Integrate the yaw from the module displacements
+        for (int i = 0; i < 4; i++) {
+          double distance = modules[i].getDrivePositionRad() * Module.WHEEL_RADIUS;
+          moduleDeltas[i] = distance - lastDistancesMeters[i];
+          lastDistancesMeters[i] = distance;
+          anglesRad[i] = modules[i].getTurnAngleRad();
+        }
+        kinematics.toTwist(moduleDeltas, anglesRad, twist);
+
+        // Move the true pose at the heading halfway through the step
+        double heading = yawRad + headingOffsetRad + twist[2] / 2.0;
+        double cos = Math.cos(heading);
+        double sin = Math.sin(heading);
+        xMeters += twist[0] * cos - twist[1] * sin;
+        yMeters += twist[0] * sin + twist[1] * cos;
+        yawRad += twist[2];
+        yawVelocityRadPerSec = twist[2] / stepSecs;
+      }
+      readValues(values);
+
+      // Record every sample that falls within this step, interpolating between the step ends
+      double stepEnd = startTimestamp + (stepCount + 1) * stepSecs;
+      double sampleTime = getSampleTime(nextSampleIndex);
+      while (sampleTime <= stepEnd) {
+        if (hash(nextSampleIndex, 1) >= dropProbability) {
+          double t = 1.0 - (stepEnd - sampleTime) / stepSecs;
+          for (int stream = 0; stream < streams.length; stream++) {
+            streams[stream].add(
+                sampleTime,
+                lastValues[stream][0] + (values[stream][0] - lastValues[stream][0]) * t,
+                lastValues[stream][1] + (values[stream][1] - lastValues[stream][1]) * t);
+          }
+        }
+        nextSampleIndex++;
+        sampleTime = getSampleTime(nextSampleIndex);
+      }
+      for (int stream = 0; stream < streams.length; stream++) {
+        lastValues[stream][0] = values[stream][0];
+        lastValues[stream][1] = values[stream][1];
+      }
+    }
+  }
+
+  /** Reads the sampled value of every stream (drive and relative turn positions, then the yaw). */
+  private void readValues(double[][] out) {
+    for (int i = 0; i < moduleCount; i++) {
+      out[i][0] = modules[i].getDrivePositionRad();
+      out[i][1] = modules[i].getTurnPositionRad();
+    }
+    out[GYRO_STREAM][0] = yawRad;
+  }
+
+  private double getSampleTime(long index) {
+    return index * PERIOD_SECS + (hash(index, 0) * 2.0 - 1.0) * jitterSecs;
+  }
+
+  /** Returns a uniform value in [0, 1) derived from a sample index (SplitMix64). */
+  private static double hash(long index, long salt) {
+    long z = SEED + index * 2 + salt + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    return (z >>> 11) * 0x1.0p-53;
+  }
+
+  /** Samples of one stream waiting for their latency to pass, oldest first. */
+  private static class Stream {
+    private final double[] timestamps = new double[STREAM_CAPACITY];
+    private final double[][] values = new double[STREAM_CAPACITY][2];
+    private int size = 0;
+
+    private void add(double timestamp, double value0, double value1) {
+      if (size == STREAM_CAPACITY) {
+        remove(1); // Inputs are not being read, keep the newest samples
+      }
+      timestamps[size] = timestamp;
+      values[size][0] = value0;
+      values[size][1] = value1;
+      size++;
+    }
+
+    /** Returns the number of samples taken at or before the time. */
+    private int getArrivedCount(double time) {
+      int count = 0;
+      while (count < size && timestamps[count] <= time) {
+        count++;
+      }
+      return count;
+    }
+
+    private void remove(int count) {
+      for (int i = count; i < size; i++) {
+        timestamps[i - count] = timestamps[i];
+        values[i - count][0] = values[i][0];
+        values[i - count][1] = values[i][1];
+      }
+      size -= count;
+    }
+  }
+}
@@ -14,11 +14,14 @@
 package frc.robot.subsystems.drive;
 
 import edu.wpi.first.wpilibj.Notifier;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.SamplingStats;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.OptionalDouble;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleConsumer;
 import java.util.function.Supplier;
 import org.littletonrobotics.junction.Logger;
 
@@ -27,16 +30,25 @@ import org.littletonrobotics.junction.Logger;
  *
  * <p>This version is intended for devices like the SparkMax that require polling rather than a
  * blocking thread. A Notifier thread is used to gather samples with consistent timing.
+ *
+ * <p>Samples are handed to the main loop through lock-free ring buffers, so neither thread can
+ * stall the other.
  */
 public class SparkMaxOdometryThread {
+  private final Lock signalsLock =
+      new ReentrantLock(); // Prevents conflicts when registering signals
   private List<Supplier<OptionalDouble>> signals = new ArrayList<>();
-  private List<Queue<Double>> queues = new ArrayList<>();
-  private List<Queue<Double>> timestampQueues = new ArrayList<>();
+  private List<DoubleRingBuffer> queues = new ArrayList<>();
+  private List<DoubleRingBuffer> timestampQueues = new ArrayList<>();
+  private List<DoubleConsumer> sampleListeners = new ArrayList<>();
+  private double[] values = new double[0]; // Reused for every sample
+
+  private final SamplingStats stats = new SamplingStats();
 
   private final Notifier notifier;
   private static SparkMaxOdometryThread instance = null;
 
-  public static SparkMaxOdometryThread getInstance() {
+  public static synchronized SparkMaxOdometryThread getInstance() {
     if (instance == null) {
       instance = new SparkMaxOdometryThread();
     }
@@ -48,40 +60,59 @@ public class SparkMaxOdometryThread {
     notifier.setName("SparkMaxOdometryThread");
   }
 
+  /** Returns the sampling quality statistics for this thread. */
+  public SamplingStats getStats() {
+    return stats;
+  }
+
   public void start() {
     if (timestampQueues.size() > 0) {
       notifier.startPeriodic(1.0 / Module.ODOMETRY_FREQUENCY);
     }
   }
 
-  public Queue<Double> registerSignal(Supplier<OptionalDouble> signal) {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
+  public DoubleRingBuffer registerSignal(Supplier<OptionalDouble> signal) {
+    DoubleRingBuffer queue = new DoubleRingBuffer(20);
+    signalsLock.lock();
     try {
       signals.add(signal);
       queues.add(queue);
+      values = new double[signals.size()];
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
     }
     return queue;
   }
 
-  public Queue<Double> makeTimestampQueue() {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
+  public DoubleRingBuffer makeTimestampQueue() {
+    DoubleRingBuffer queue = new DoubleRingBuffer(20);
+    signalsLock.lock();
     try {
       timestampQueues.add(queue);
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
     }
     return queue;
   }
 
-  private void periodic() {
-    Drive.odometryLock.lock();
+  /**
+   * Adds a listener that is called from this thread with the timestamp of each valid sample, after
+   * all of the signals have been read.
+   */
+  public void addSampleListener(DoubleConsumer listener) {
+    signalsLock.lock();
+    try {
+      sampleListeners.add(listener);
+    } finally {
+      signalsLock.unlock();
+    }
+  }
+
+  /** Reads every signal once and queues the sample (called by the notifier). */
+  void periodic() {
+    signalsLock.lock();
     double timestamp = Logger.getRealTimestamp() / 1e6;
     try {
-      double[] values = new double[signals.size()];
       boolean isValid = true;
       for (int i = 0; i < signals.size(); i++) {
         OptionalDouble value = signals.get(i).get();
@@ -92,7 +123,14 @@ public class SparkMaxOdometryThread {
           break;
         }
       }
-      if (isValid) {
+      stats.recordSample(timestamp);
+      if (!isValid) {
+        stats.recordInvalid();
+      } else if (!hasRoomForSample()) {
+        stats.recordDropped();
+      } else {
+        // Values are published before timestamps, so a consumer that sees
+        // N timestamps is guaranteed to find at least N values
         for (int i = 0; i < queues.size(); i++) {
           queues.get(i).offer(values[i]);
         }
@@ -100,8 +138,24 @@ public class SparkMaxOdometryThread {
           timestampQueues.get(i).offer(timestamp);
         }
       }
+      if (isValid) {
+        for (int i = 0; i < sampleListeners.size(); i++) {
+          sampleListeners.get(i).accept(timestamp);
+        }
+      }
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
+    }
+  }
+
+  /** Returns whether every queue can accept another sample, so samples are dropped together. */
+  private boolean hasRoomForSample() {
+    for (int i = 0; i < queues.size(); i++) {
+      if (queues.get(i).isFull()) return false;
+    }
+    for (int i = 0; i < timestampQueues.size(); i++) {
+      if (timestampQueues.get(i).isFull()) return false;
     }
+    return true;
   }
 }
@@ -0,0 +1,177 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Translation2d;
+
+/**
+ * Forward and inverse kinematics for a swerve drive with exactly four modules, working on
+ * caller-owned primitive arrays so that no objects are allocated per call.
+ *
+ * <p>The forward kinematics use the least squares solution of the same system as {@link
+ * edu.wpi.first.math.kinematics.SwerveDriveKinematics}, with the pseudo-inverse solved in closed
+ * form once at construction. Module velocities and displacements are given as a speed (or distance)
+ * along a module angle. Like "SwerveDriveKinematics", the inverse kinematics hold the previous
+ * module angles when the requested velocity is zero.
+ *
+ * <p>This class is not thread safe because of the stored module angles.
+ */
+public class SwerveKinematics4 {
+  private final double[] moduleXs = new double[4];
+  private final double[] moduleYs = new double[4];
+
+  // Rows (vx, vy, omega) of the pseudo-inverse, columns are (FL x, FL y, FR x, ...)
+  private final double[][] forwardCoefficients = new double[3][8];
+
+  private final double[] moduleHeadingsRad = new double[4];
+
+  public SwerveKinematics4(Translation2d... moduleTranslations) {
+    if (moduleTranslations.length != 4) {
+      throw new IllegalArgumentException("Exactly four module translations are required");
+    }
+    for (int i = 0; i < 4; i++) {
+      moduleXs[i] = moduleTranslations[i].getX();
+      moduleYs[i] = moduleTranslations[i].getY();
+    }
+
+    // Each module contributes the rows [1, 0, -y] and [0, 1, x] to the inverse kinematics matrix
+    // A. The pseudo-inverse is (A^T A)^-1 A^T, where A^T A is a symmetric 3x3 matrix.
+    double sumX = 0.0;
+    double sumY = 0.0;
+    double sumSquares = 0.0;
+    for (int i = 0; i < 4; i++) {
+      sumX += moduleXs[i];
+      sumY += moduleYs[i];
+      sumSquares += moduleXs[i] * moduleXs[i] + moduleYs[i] * moduleYs[i];
+    }
+    double[][] normal = {
+      {4.0, 0.0, -sumY},
+      {0.0, 4.0, sumX},
+      {-sumY, sumX, sumSquares}
+    };
+    double[][] inverse = invertSymmetric3x3(normal);
+    for (int i = 0; i < 4; i++) {
+      for (int row = 0; row < 3; row++) {
+        forwardCoefficients[row][i * 2] = inverse[row][0] - inverse[row][2] * moduleYs[i];
+        forwardCoefficients[row][i * 2 + 1] = inverse[row][1] + inverse[row][2] * moduleXs[i];
+      }
+    }
+  }
+
+  /**
+   * Converts a robot-relative velocity to module speeds and angles.
+   *
+   * @param vx The forward velocity in meters per second.
+   * @param vy The leftward velocity in meters per second.
+   * @param omega The counterclockwise angular velocity in radians per second.
+   * @param speedsOut The module speeds in meters per second (FL, FR, BL, BR).
+   * @param anglesRadOut The module angles in radians (FL, FR, BL, BR).
+   */
+  public void toModuleStates(
+      double vx, double vy, double omega, double[] speedsOut, double[] anglesRadOut) {
+    if (vx == 0.0 && vy == 0.0 && omega == 0.0) {
+      for (int i = 0; i < 4; i++) {
+        speedsOut[i] = 0.0;
+        anglesRadOut[i] = moduleHeadingsRad[i];
+      }
+      return;
+    }
+    for (int i = 0; i < 4; i++) {
+      double moduleVx = vx - omega * moduleYs[i];
+      double moduleVy = vy + omega * moduleXs[i];
+      speedsOut[i] = Math.hypot(moduleVx, moduleVy);
+      anglesRadOut[i] = Math.atan2(moduleVy, moduleVx);
+      moduleHeadingsRad[i] = anglesRadOut[i];
+    }
+  }
+
+  /**
+   * Converts module speeds and angles to a robot-relative velocity.
+   *
+   * @param speeds The module speeds in meters per second (FL, FR, BL, BR).
+   * @param anglesRad The module angles in radians (FL, FR, BL, BR).
+   * @param out The velocity as {vx, vy, omega} in meters and radians per second.
+   */
+  public void toChassisSpeeds(double[] speeds, double[] anglesRad, double[] out) {
+    solveForward(speeds, anglesRad, out);
+  }
+
+  /**
+   * Converts module displacements to a robot-relative twist.
+   *
+   * @param distances The distance each module moved in meters (FL, FR, BL, BR).
+   * @param anglesRad The module angles during the movement in radians (FL, FR, BL, BR).
+   * @param out The twist as {dx, dy, dtheta} in meters and radians.
+   */
+  public void toTwist(double[] distances, double[] anglesRad, double[] out) {
+    solveForward(distances, anglesRad, out);
+  }
+
+  /** Sets the module angles that are held when a zero velocity is requested. */
+  public void resetHeadings(double... headingsRad) {
+    System.arraycopy(headingsRad, 0, moduleHeadingsRad, 0, 4);
+  }
+
+  /**
+   * Scales the module speeds down uniformly so that none exceeds the maximum, keeping the ratios
+   * between them.
+   */
+  public static void desaturateWheelSpeeds(double[] speeds, double maxSpeed) {
+    double realMaxSpeed = 0.0;
+    for (int i = 0; i < 4; i++) {
+      realMaxSpeed = Math.max(realMaxSpeed, Math.abs(speeds[i]));
+    }
+    if (realMaxSpeed > maxSpeed) {
+      double scale = maxSpeed / realMaxSpeed;
+      for (int i = 0; i < 4; i++) {
+        speeds[i] *= scale;
+      }
+    }
+  }
+
+  private void solveForward(double[] magnitudes, double[] anglesRad, double[] out) {
+    double x = 0.0;
+    double y = 0.0;
+    double theta = 0.0;
+    for (int i = 0; i < 4; i++) {
+      double moduleX = magnitudes[i] * Math.cos(anglesRad[i]);
+      double moduleY = magnitudes[i] * Math.sin(anglesRad[i]);
+      x += forwardCoefficients[0][i * 2] * moduleX + forwardCoefficients[0][i * 2 + 1] * moduleY;
+      y += forwardCoefficients[1][i * 2] * moduleX + forwardCoefficients[1][i * 2 + 1] * moduleY;
+      theta +=
+          forwardCoefficients[2][i * 2] * moduleX + forwardCoefficients[2][i * 2 + 1] * moduleY;
+    }
+    out[0] = x;
+    out[1] = y;
+    out[2] = theta;
+  }
+
+  private static double[][] invertSymmetric3x3(double[][] m) {
+    double c00 = m[1][1] * m[2][2] - m[1][2] * m[2][1];
+    double c01 = m[1][2] * m[2][0] - m[1][0] * m[2][2];
+    double c02 = m[1][0] * m[2][1] - m[1][1] * m[2][0];
+    double determinant = m[0][0] * c00 + m[0][1] * c01 + m[0][2] * c02;
+    if (Math.abs(determinant) < 1e-12) {
+      throw new IllegalArgumentException("Module translations must not be collinear");
+    }
+    double c11 = m[0][0] * m[2][2] - m[0][2] * m[2][0];
+    double c12 = m[0][1] * m[2][0] - m[0][0] * m[2][1];
+    double c22 = m[0][0] * m[1][1] - m[0][1] * m[1][0];
+    return new double[][] {
+      {c00 / determinant, c01 / determinant, c02 / determinant},
+      {c01 / determinant, c11 / determinant, c12 / determinant},
+      {c02 / determinant, c12 / determinant, c22 / determinant}
+    };
+  }
+}
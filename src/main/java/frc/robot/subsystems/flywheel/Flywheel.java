@@ -21,22 +21,46 @@ import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
 import edu.wpi.first.wpilibj2.command.sysid.SysIdRoutine;
 import frc.robot.Constants;
+import frc.robot.util.SamplingStats;
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
 
 public class Flywheel extends SubsystemBase {
+  // Boost mode runs at full output while the velocity is far below the setpoint, then hands off to
+  // the closed loop once the velocity is predicted to reach the hand-off threshold
+  private static final double BOOST_ENTER_RAD_PER_SEC =
+      Units.rotationsPerMinuteToRadiansPerSecond(150.0);
+  private static final double BOOST_EXIT_RAD_PER_SEC =
+      Units.rotationsPerMinuteToRadiansPerSecond(40.0);
+  private static final double BOOST_LOOKAHEAD_SECS = 0.02; // One cycle of latency
+
   private final FlywheelIO io;
   private final FlywheelIOInputsAutoLogged inputs = new FlywheelIOInputsAutoLogged();
+  private final SamplingStats samplerStats; // Null without a high rate sampler (e.g. replay)
   private final SimpleMotorFeedforward ffModel;
   private final SysIdRoutine sysId;
+  private final ShotDetector shotDetector =
+      new ShotDetector(
+          Units.rotationsPerMinuteToRadiansPerSecond(100.0),
+          Units.rotationsPerMinuteToRadiansPerSecond(30.0),
+          0.1);
+  private double setpointRadPerSec = Double.NaN; // NaN when not running closed loop
+  private boolean boostEnabled = false;
+  private boolean boosting = false;
 
   /** Creates a new Flywheel. */
   public Flywheel(FlywheelIO io) {
+    this(io, Constants.currentMode);
+  }
+
+  /** Creates a new Flywheel tuned for the specified mode (e.g. to test the simulation). */
+  Flywheel(FlywheelIO io, Constants.Mode mode) {
     this.io = io;
+    samplerStats = io.getSamplerStats();
 
     // Switch constants based on mode (the physics simulator is treated as a
     // separate robot with different tuning)
-    switch (Constants.currentMode) {
+    switch (mode) {
       case REAL:
       case REPLAY:
         ffModel = new SimpleMotorFeedforward(0.1, 0.05);
@@ -64,29 +88,123 @@ public class Flywheel extends SubsystemBase {
 
   @Override
   public void periodic() {
+    long inputUpdateStart = Logger.getRealTimestamp();
     io.updateInputs(inputs);
+    Logger.recordOutput(
+        "Flywheel/InputUpdateMs", (Logger.getRealTimestamp() - inputUpdateStart) / 1000.0);
     Logger.processInputs("Flywheel", inputs);
+    if (samplerStats != null) {
+      samplerStats.periodic("Flywheel/Sampler");
+    }
+
+    // Look for shots in the high rate samples
+    int sampleCount =
+        Math.min(inputs.sampleTimestamps.length, inputs.sampleVelocitiesRadPerSec.length);
+    boolean shotStarted = false;
+    for (int i = 0; i < sampleCount; i++) {
+      shotStarted |=
+          shotDetector.addSample(
+              inputs.sampleTimestamps[i], inputs.sampleVelocitiesRadPerSec[i], setpointRadPerSec);
+    }
+    if (boostEnabled) {
+      updateBoost(shotStarted, sampleCount);
+    }
+    Logger.recordOutput("Flywheel/Boosting", boosting);
+    Logger.recordOutput("Flywheel/Shots/Count", shotDetector.getShotCount());
+    Logger.recordOutput("Flywheel/Shots/Recovering", shotDetector.isRecovering());
+    Logger.recordOutput("Flywheel/Shots/LastTimestamp", shotDetector.getLastShotTimestamp());
+    Logger.recordOutput(
+        "Flywheel/Shots/LastDipRPM",
+        Units.radiansPerSecondToRotationsPerMinute(shotDetector.getLastDipRadPerSec()));
+    Logger.recordOutput("Flywheel/Shots/LastRecoveryMs", shotDetector.getLastRecoverySecs() * 1e3);
+  }
+
+  /**
+   * Switches between boosting and the closed loop based on the velocity error. A boost starts when
+   * a shot is detected or the error is large (e.g. spinning up), and ends when the velocity is
+   * predicted to be within the hand-off threshold by the time the next command takes effect.
+   */
+  private void updateBoost(boolean shotStarted, int sampleCount) {
+    double velocity = inputs.velocityRadPerSec;
+    double acceleration = 0.0;
+    if (sampleCount > 0) {
+      velocity = inputs.sampleVelocitiesRadPerSec[sampleCount - 1];
+    }
+    if (sampleCount > 1) {
+      double dt = inputs.sampleTimestamps[sampleCount - 1] - inputs.sampleTimestamps[0];
+      if (dt > 0.0) {
+        acceleration = (velocity - inputs.sampleVelocitiesRadPerSec[0]) / dt;
+      }
+    }
+
+    double error = setpointRadPerSec - velocity;
+    double predictedError = setpointRadPerSec - (velocity + acceleration * BOOST_LOOKAHEAD_SECS);
+    if (!boosting && (shotStarted || error > BOOST_ENTER_RAD_PER_SEC)) {
+      boosting = true;
+      io.setBoost();
+    } else if (boosting && predictedError < BOOST_EXIT_RAD_PER_SEC) {
+      boosting = false;
+      io.setVelocity(setpointRadPerSec, ffModel.calculate(setpointRadPerSec));
+    }
   }
 
   /** Run open loop at the specified voltage. */
   public void runVolts(double volts) {
+    setpointRadPerSec = Double.NaN;
+    boostEnabled = false;
+    boosting = false;
     io.setVoltage(volts);
   }
 
   /** Run closed loop at the specified velocity. */
   public void runVelocity(double velocityRPM) {
     var velocityRadPerSec = Units.rotationsPerMinuteToRadiansPerSecond(velocityRPM);
+    setpointRadPerSec = velocityRadPerSec;
+    boostEnabled = false;
+    boosting = false;
     io.setVelocity(velocityRadPerSec, ffModel.calculate(velocityRadPerSec));
 
     // Log flywheel setpoint
     Logger.recordOutput("Flywheel/SetpointRPM", velocityRPM);
   }
 
+  /**
+   * Run closed loop at the specified velocity, boosting at full output to spin up and to recover
+   * from shots. Only positive velocities are boosted.
+   */
+  public void runVelocityWithBoost(double velocityRPM) {
+    runVelocity(velocityRPM);
+    boostEnabled = setpointRadPerSec > 0.0;
+  }
+
   /** Stops the flywheel. */
   public void stop() {
+    setpointRadPerSec = Double.NaN;
+    boostEnabled = false;
+    boosting = false;
     io.stop();
   }
 
+  /** Simulates a game piece passing through the flywheel (simulation only). */
+  public void simulateShot() {
+    io.simulateShot();
+  }
+
+  /** Returns the number of shots detected. */
+  public int getShotCount() {
+    return shotDetector.getShotCount();
+  }
+
+  /** Returns whether the flywheel is recovering from a shot. */
+  public boolean isRecoveringFromShot() {
+    return shotDetector.isRecovering();
+  }
+
+  /** Returns the recovery time of the latest shot in seconds, or NaN if still recovering. */
+  public double getLastShotRecoverySecs() {
+    return shotDetector.getLastRecoverySecs();
+  }
+
   /** Returns a command to run a quasistatic test in the specified direction. */
   public Command sysIdQuasistatic(SysIdRoutine.Direction direction) {
     return sysId.quasistatic(direction);
@@ -13,6 +13,7 @@
 
 package frc.robot.subsystems.flywheel;
 
+import frc.robot.util.SamplingStats;
 import org.littletonrobotics.junction.AutoLog;
 
 public interface FlywheelIO {
@@ -22,6 +23,11 @@ public interface FlywheelIO {
     public double velocityRadPerSec = 0.0;
     public double appliedVolts = 0.0;
     public double[] currentAmps = new double[] {};
+
+    // High rate samples since the last update, see "FlywheelSampler"
+    public double[] sampleTimestamps = new double[] {};
+    public double[] sampleVelocitiesRadPerSec = new double[] {};
+    public double[] sampleCurrentsAmps = new double[] {};
   }
 
   /** Updates the set of loggable inputs. */
@@ -33,9 +39,22 @@ public interface FlywheelIO {
   /** Run closed loop at the specified velocity. */
   public default void setVelocity(double velocityRadPerSec, double ffVolts) {}
 
+  /** Run at full forward output to recover velocity as quickly as possible. */
+  public default void setBoost() {
+    setVoltage(12.0);
+  }
+
   /** Stop in open loop. */
   public default void stop() {}
 
   /** Set velocity PID constants. */
   public default void configurePID(double kP, double kI, double kD) {}
+
+  /** Simulates a game piece passing through the flywheel (simulation only). */
+  public default void simulateShot() {}
+
+  /** Returns the quality statistics of the high rate sampler, or null if there is none. */
+  public default SamplingStats getSamplerStats() {
+    return null;
+  }
 }
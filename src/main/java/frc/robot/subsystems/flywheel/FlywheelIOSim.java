@@ -16,32 +16,101 @@ package frc.robot.subsystems.flywheel;
 import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.controller.PIDController;
 import edu.wpi.first.math.system.plant.DCMotor;
-import edu.wpi.first.wpilibj.simulation.FlywheelSim;
+import frc.robot.util.FixedStepMotorSim;
+import org.littletonrobotics.junction.Logger;
 
+/**
+ * Simulates the flywheel with its closed loop running on the motor controller.
+ *
+ * <p>Each input read steps the physics and the closed loop up to the cycle timestamp from the
+ * logger, in whole steps with the remainder carried into the next cycle, so the physics follows the
+ * clock even when cycles overrun or run short. The high rate samples are taken on a fixed schedule
+ * at {@link FlywheelSampler#FREQUENCY}, each with the state at the end of the step it falls in.
+ */
 public class FlywheelIOSim implements FlywheelIO {
-  private FlywheelSim sim = new FlywheelSim(DCMotor.getNEO(1), 1.5, 0.004);
-  private PIDController pid = new PIDController(0.0, 0.0, 0.0);
+  private static final double SAMPLE_PERIOD_SECS = 1.0 / FlywheelSampler.FREQUENCY;
+
+  // A game piece brakes the flywheel with a constant torque while in contact
+  private static final double MOI = 0.004;
+  private static final double SHOT_TORQUE = 4.0; // N*m at the flywheel
+  private static final double SHOT_CONTACT_SECS = 0.02;
+
+  private final double stepSecs;
+  private final FixedStepMotorSim sim;
+  private final PIDController pid;
 
   private boolean closedLoop = false;
   private double ffVolts = 0.0;
   private double appliedVolts = 0.0;
+  private double shotContactRemainingSecs = 0.0;
+
+  private double startTimestamp = Double.NaN;
+  private long stepCount = 0; // Steps taken since the start timestamp
+  private long sampleCount = 0; // Samples taken since the start timestamp
+
+  /** Creates a flywheel sim stepped at the 1 kHz rate of the motor controller's closed loop. */
+  public FlywheelIOSim() {
+    this(0.001);
+  }
+
+  /**
+   * Creates a flywheel sim.
+   *
+   * @param stepSecs The period of the physics and closed loop steps.
+   */
+  public FlywheelIOSim(double stepSecs) {
+    this.stepSecs = stepSecs;
+    sim = new FixedStepMotorSim(DCMotor.getNEO(1), 1.5, MOI, stepSecs);
+    pid = new PIDController(0.0, 0.0, 0.0, stepSecs);
+  }
 
   @Override
   public void updateInputs(FlywheelIOInputs inputs) {
-    if (closedLoop) {
-      appliedVolts =
-          MathUtil.clamp(pid.calculate(sim.getAngularVelocityRadPerSec()) + ffVolts, -12.0, 12.0);
-      sim.setInputVoltage(appliedVolts);
+    double timestamp = Logger.getTimestamp() / 1e6;
+    if (Double.isNaN(startTimestamp)) {
+      startTimestamp = timestamp; // Start the physics at the first cycle
     }
 
-    sim.update(0.02);
+    // Timestamps are in whole microseconds, so allow for rounding when counting the steps
+    long targetStepCount = (long) Math.floor((timestamp - startTimestamp) / stepSecs + 1e-6);
+    int count = (int) (getSampleCountAfter(targetStepCount) - sampleCount);
+    inputs.sampleTimestamps = new double[count];
+    inputs.sampleVelocitiesRadPerSec = new double[count];
+    inputs.sampleCurrentsAmps = new double[count];
+    int sample = 0;
+    for (; stepCount < targetStepCount; stepCount++) {
+      // Emulate the closed loop running on the motor controller
+      if (closedLoop) {
+        appliedVolts =
+            MathUtil.clamp(pid.calculate(sim.getVelocityRadPerSec()) + ffVolts, -12.0, 12.0);
+        sim.setInputVoltage(appliedVolts);
+      }
+
+      // Brake only while spinning forward, so the flywheel is not driven backwards
+      boolean inContact = shotContactRemainingSecs > 0.0 && sim.getVelocityRadPerSec() > 0.0;
+      sim.setLoadTorque(inContact ? SHOT_TORQUE : 0.0);
+      shotContactRemainingSecs -= stepSecs;
+      sim.step();
 
-    inputs.positionRad = 0.0;
-    inputs.velocityRadPerSec = sim.getAngularVelocityRadPerSec();
+      long samplesAfterStep = getSampleCountAfter(stepCount + 1);
+      for (; sampleCount < samplesAfterStep; sampleCount++, sample++) {
+        inputs.sampleTimestamps[sample] = startTimestamp + (sampleCount + 1) * SAMPLE_PERIOD_SECS;
+        inputs.sampleVelocitiesRadPerSec[sample] = sim.getVelocityRadPerSec();
+        inputs.sampleCurrentsAmps[sample] = sim.getCurrentDrawAmps();
+      }
+    }
+
+    inputs.positionRad = sim.getPositionRad();
+    inputs.velocityRadPerSec = sim.getVelocityRadPerSec();
     inputs.appliedVolts = appliedVolts;
     inputs.currentAmps = new double[] {sim.getCurrentDrawAmps()};
   }
 
+  /** Returns the number of samples scheduled up to the end of a step. */
+  private long getSampleCountAfter(long steps) {
+    return (long) Math.floor(steps * stepSecs / SAMPLE_PERIOD_SECS + 1e-6);
+  }
+
   @Override
   public void setVoltage(double volts) {
     closedLoop = false;
@@ -65,4 +134,9 @@ public class FlywheelIOSim implements FlywheelIO {
   public void configurePID(double kP, double kI, double kD) {
     pid.setPID(kP, kI, kD);
   }
+
+  @Override
+  public void simulateShot() {
+    shotContactRemainingSecs = SHOT_CONTACT_SECS;
+  }
 }
@@ -15,11 +15,19 @@ package frc.robot.subsystems.flywheel;
 
 import com.revrobotics.CANSparkBase.ControlType;
 import com.revrobotics.CANSparkLowLevel.MotorType;
+import com.revrobotics.CANSparkLowLevel.PeriodicFrame;
 import com.revrobotics.CANSparkMax;
+import com.revrobotics.REVLibError;
 import com.revrobotics.RelativeEncoder;
 import com.revrobotics.SparkPIDController;
 import com.revrobotics.SparkPIDController.ArbFFUnits;
 import edu.wpi.first.math.util.Units;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.CanBusBudget.Priority;
+import frc.robot.util.ControlRequestFilter;
+import frc.robot.util.SamplingStats;
+import frc.robot.util.SparkMaxFlash;
+import java.util.OptionalDouble;
 
 /**
  * NOTE: To use the Spark Flex / NEO Vortex, replace all instances of "CANSparkMax" with
@@ -27,11 +35,15 @@ import edu.wpi.first.math.util.Units;
  */
 public class FlywheelIOSparkMax implements FlywheelIO {
   private static final double GEAR_RATIO = 1.5;
+  private static final double STATUS0_FREQUENCY = 100.0;
+  private static final double TELEMETRY_FREQUENCY = 50.0;
 
   private final CANSparkMax leader = new CANSparkMax(0, MotorType.kBrushless);
   private final CANSparkMax follower = new CANSparkMax(1, MotorType.kBrushless);
   private final RelativeEncoder encoder = leader.getEncoder();
   private final SparkPIDController pid = leader.getPIDController();
+  private final ControlRequestFilter requestFilter = new ControlRequestFilter(1e-3, 1e-3);
+  private final FlywheelSampler sampler;
 
   public FlywheelIOSparkMax() {
     leader.restoreFactoryDefaults();
@@ -46,8 +58,70 @@ public class FlywheelIOSparkMax implements FlywheelIO {
     leader.enableVoltageCompensation(12.0);
     leader.setSmartCurrentLimit(30);
 
-    leader.burnFlash();
-    follower.burnFlash();
+    // Shorten the velocity filter so a shot dip is not averaged away
+    encoder.setMeasurementPeriod(8);
+    encoder.setAverageDepth(2);
+
+    // The follower mirrors the applied output in the leader's status 0
+    CanBusBudget budget = CanBusBudget.getInstance();
+    budget.register(
+        leader,
+        "Flywheel/LeaderStatus0",
+        Priority.CRITICAL,
+        STATUS0_FREQUENCY,
+        PeriodicFrame.kStatus0);
+    budget.register(
+        leader,
+        "Flywheel/LeaderStatus1",
+        Priority.CRITICAL,
+        FlywheelSampler.FREQUENCY,
+        PeriodicFrame.kStatus1);
+    budget.register(
+        leader,
+        "Flywheel/LeaderStatus2",
+        Priority.TELEMETRY,
+        TELEMETRY_FREQUENCY,
+        PeriodicFrame.kStatus2);
+    budget.register(
+        follower,
+        "Flywheel/FollowerStatus0",
+        Priority.TELEMETRY,
+        STATUS0_FREQUENCY,
+        PeriodicFrame.kStatus0);
+    budget.register(
+        follower,
+        "Flywheel/FollowerStatus1",
+        Priority.TELEMETRY,
+        TELEMETRY_FREQUENCY,
+        PeriodicFrame.kStatus1);
+
+    // Lists the flashed settings above, so the flash is only written when they change
+    SparkMaxFlash.burnIfChanged(
+        leader,
+        "flywheelLeader;inverted=false;voltageComp=12.0;currentLimit=30;measurementPeriod=8;"
+            + "averageDepth=2");
+    SparkMaxFlash.burnIfChanged(follower, "flywheelFollower;follow=0;inverted=false");
+
+    // Sample the leader velocity and current for shot detection
+    sampler =
+        new FlywheelSampler(
+            () -> {
+              double value = encoder.getVelocity();
+              if (leader.getLastError() == REVLibError.kOk) {
+                return OptionalDouble.of(
+                    Units.rotationsPerMinuteToRadiansPerSecond(value / GEAR_RATIO));
+              } else {
+                return OptionalDouble.empty();
+              }
+            },
+            () -> {
+              double value = leader.getOutputCurrent();
+              if (leader.getLastError() == REVLibError.kOk) {
+                return OptionalDouble.of(value);
+              } else {
+                return OptionalDouble.empty();
+              }
+            });
   }
 
   @Override
@@ -57,26 +131,28 @@ public class FlywheelIOSparkMax implements FlywheelIO {
         Units.rotationsPerMinuteToRadiansPerSecond(encoder.getVelocity() / GEAR_RATIO);
     inputs.appliedVolts = leader.getAppliedOutput() * leader.getBusVoltage();
     inputs.currentAmps = new double[] {leader.getOutputCurrent(), follower.getOutputCurrent()};
+    sampler.updateInputs(inputs);
   }
 
   @Override
   public void setVoltage(double volts) {
-    leader.setVoltage(volts);
+    if (requestFilter.shouldSend(ControlType.kVoltage, volts)) {
+      leader.setVoltage(volts);
+    }
   }
 
   @Override
   public void setVelocity(double velocityRadPerSec, double ffVolts) {
-    pid.setReference(
-        Units.radiansPerSecondToRotationsPerMinute(velocityRadPerSec) * GEAR_RATIO,
-        ControlType.kVelocity,
-        0,
-        ffVolts,
-        ArbFFUnits.kVoltage);
+    double motorRPM = Units.radiansPerSecondToRotationsPerMinute(velocityRadPerSec) * GEAR_RATIO;
+    if (requestFilter.shouldSend(ControlType.kVelocity, motorRPM, ffVolts)) {
+      pid.setReference(motorRPM, ControlType.kVelocity, 0, ffVolts, ArbFFUnits.kVoltage);
+    }
   }
 
   @Override
   public void stop() {
     leader.stopMotor();
+    requestFilter.reset();
   }
 
   @Override
@@ -86,4 +162,9 @@ public class FlywheelIOSparkMax implements FlywheelIO {
     pid.setD(kD, 0);
     pid.setFF(0, 0);
   }
+
+  @Override
+  public SamplingStats getSamplerStats() {
+    return sampler.getStats();
+  }
 }
@@ -13,20 +13,31 @@
 
 package frc.robot.subsystems.flywheel;
 
-import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.configs.Slot0Configs;
 import com.ctre.phoenix6.configs.TalonFXConfiguration;
 import com.ctre.phoenix6.controls.Follower;
+import com.ctre.phoenix6.controls.TorqueCurrentFOC;
 import com.ctre.phoenix6.controls.VelocityVoltage;
 import com.ctre.phoenix6.controls.VoltageOut;
 import com.ctre.phoenix6.hardware.TalonFX;
 import com.ctre.phoenix6.signals.NeutralModeValue;
 import edu.wpi.first.math.util.Units;
+import frc.robot.util.CanBusBudget;
+import frc.robot.util.CanBusBudget.Priority;
+import frc.robot.util.ConfigExecutor;
+import frc.robot.util.ControlRequestFilter;
+import frc.robot.util.PhoenixSignalRegistry;
+import frc.robot.util.SamplingStats;
+import java.util.OptionalDouble;
 
 public class FlywheelIOTalonFX implements FlywheelIO {
   private static final double GEAR_RATIO = 1.5;
 
+  // Boost with torque current instead of voltage, which requires Phoenix Pro
+  private static final boolean TORQUE_CURRENT_BOOST = false;
+  private static final double BOOST_CURRENT_AMPS = 60.0;
+
   private final TalonFX leader = new TalonFX(0);
   private final TalonFX follower = new TalonFX(1);
 
@@ -35,6 +46,14 @@ public class FlywheelIOTalonFX implements FlywheelIO {
   private final StatusSignal<Double> leaderAppliedVolts = leader.getMotorVoltage();
   private final StatusSignal<Double> leaderCurrent = leader.getSupplyCurrent();
   private final StatusSignal<Double> followerCurrent = follower.getSupplyCurrent();
+  private final StatusSignal<Double> samplerVelocity; // Refreshed by the sampler
+  private final StatusSignal<Double> samplerCurrent; // Refreshed by the sampler
+  private final FlywheelSampler sampler;
+
+  private final VoltageOut voltageRequest = new VoltageOut(0.0);
+  private final VelocityVoltage velocityRequest = new VelocityVoltage(0.0).withEnableFOC(true);
+  private final TorqueCurrentFOC boostRequest = new TorqueCurrentFOC(BOOST_CURRENT_AMPS);
+  private final ControlRequestFilter requestFilter = new ControlRequestFilter(1e-3, 1e-3);
 
   public FlywheelIOTalonFX() {
     var config = new TalonFXConfiguration();
@@ -45,46 +64,88 @@ public class FlywheelIOTalonFX implements FlywheelIO {
     follower.getConfigurator().apply(config);
     follower.setControl(new Follower(leader.getDeviceID(), false));
 
-    BaseStatusSignal.setUpdateFrequencyForAll(
-        50.0, leaderPosition, leaderVelocity, leaderAppliedVolts, leaderCurrent, followerCurrent);
+    CanBusBudget budget = CanBusBudget.getInstance();
+    budget.register(leader, "Flywheel/LeaderPosition", Priority.CRITICAL, 50.0, leaderPosition);
+    budget.register(
+        leader,
+        "Flywheel/LeaderSampled",
+        Priority.CRITICAL,
+        FlywheelSampler.FREQUENCY,
+        leaderVelocity,
+        leaderCurrent);
+    budget.register(
+        leader, "Flywheel/LeaderTelemetry", Priority.TELEMETRY, 50.0, leaderAppliedVolts);
+    budget.register(
+        follower, "Flywheel/FollowerTelemetry", Priority.TELEMETRY, 50.0, followerCurrent);
     leader.optimizeBusUtilization();
     follower.optimizeBusUtilization();
+    PhoenixSignalRegistry.getInstance()
+        .register(leader, leaderPosition, leaderVelocity, leaderAppliedVolts, leaderCurrent);
+    PhoenixSignalRegistry.getInstance().register(follower, followerCurrent);
+
+    // The sampler refreshes its own copies of the signals so it never races
+    // with the refresh by the signal registry
+    samplerVelocity = leaderVelocity.clone();
+    samplerCurrent = leaderCurrent.clone();
+    sampler =
+        new FlywheelSampler(
+            () -> {
+              if (samplerVelocity.refresh().getStatus().isOK()) {
+                return OptionalDouble.of(
+                    Units.rotationsToRadians(samplerVelocity.getValueAsDouble()) / GEAR_RATIO);
+              } else {
+                return OptionalDouble.empty();
+              }
+            },
+            () -> {
+              if (samplerCurrent.refresh().getStatus().isOK()) {
+                return OptionalDouble.of(samplerCurrent.getValueAsDouble());
+              } else {
+                return OptionalDouble.empty();
+              }
+            });
   }
 
   @Override
   public void updateInputs(FlywheelIOInputs inputs) {
-    BaseStatusSignal.refreshAll(
-        leaderPosition, leaderVelocity, leaderAppliedVolts, leaderCurrent, followerCurrent);
+    // Signals are refreshed by the signal registry at the start of the cycle
     inputs.positionRad = Units.rotationsToRadians(leaderPosition.getValueAsDouble()) / GEAR_RATIO;
     inputs.velocityRadPerSec =
         Units.rotationsToRadians(leaderVelocity.getValueAsDouble()) / GEAR_RATIO;
     inputs.appliedVolts = leaderAppliedVolts.getValueAsDouble();
     inputs.currentAmps =
         new double[] {leaderCurrent.getValueAsDouble(), followerCurrent.getValueAsDouble()};
+    sampler.updateInputs(inputs);
   }
 
   @Override
   public void setVoltage(double volts) {
-    leader.setControl(new VoltageOut(volts));
+    if (requestFilter.shouldSend(voltageRequest, volts)) {
+      leader.setControl(voltageRequest.withOutput(volts));
+    }
   }
 
   @Override
   public void setVelocity(double velocityRadPerSec, double ffVolts) {
-    leader.setControl(
-        new VelocityVoltage(
-            Units.radiansToRotations(velocityRadPerSec),
-            0.0,
-            true,
-            ffVolts,
-            0,
-            false,
-            false,
-            false));
+    double velocity = Units.radiansToRotations(velocityRadPerSec);
+    if (requestFilter.shouldSend(velocityRequest, velocity, ffVolts)) {
+      leader.setControl(velocityRequest.withVelocity(velocity).withFeedForward(ffVolts));
+    }
+  }
+
+  @Override
+  public void setBoost() {
+    if (!TORQUE_CURRENT_BOOST) {
+      setVoltage(12.0);
+    } else if (requestFilter.shouldSend(boostRequest, BOOST_CURRENT_AMPS)) {
+      leader.setControl(boostRequest);
+    }
   }
 
   @Override
   public void stop() {
     leader.stopMotor();
+    requestFilter.reset();
   }
 
   @Override
@@ -93,6 +154,12 @@ public class FlywheelIOTalonFX implements FlywheelIO {
     config.kP = kP;
     config.kI = kI;
     config.kD = kD;
-    leader.getConfigurator().apply(config);
+    ConfigExecutor.getInstance()
+        .submit(leader, "Slot0", () -> leader.getConfigurator().apply(config));
+  }
+
+  @Override
+  public SamplingStats getSamplerStats() {
+    return sampler.getStats();
   }
 }
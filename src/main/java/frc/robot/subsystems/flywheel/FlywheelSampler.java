@@ -0,0 +1,91 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.flywheel;
+
+import edu.wpi.first.wpilibj.Notifier;
+import frc.robot.util.DoubleRingBuffer;
+import frc.robot.util.SamplingStats;
+import java.util.OptionalDouble;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Samples the flywheel velocity and current on a Notifier thread at {@link #FREQUENCY}, fast enough
+ * to resolve the short velocity dip when a game piece passes through.
+ *
+ * <p>This follows the same pattern as the SparkMax odometry thread: the signals are polled, and
+ * samples are handed to the main loop through lock-free ring buffers with values published before
+ * timestamps.
+ */
+public class FlywheelSampler {
+  public static final double FREQUENCY = 500.0;
+
+  private final Supplier<OptionalDouble> velocitySignal;
+  private final Supplier<OptionalDouble> currentSignal;
+  private final DoubleRingBuffer timestampQueue = new DoubleRingBuffer(50);
+  private final DoubleRingBuffer velocityQueue = new DoubleRingBuffer(50);
+  private final DoubleRingBuffer currentQueue = new DoubleRingBuffer(50);
+  private final SamplingStats stats = new SamplingStats();
+  private final SamplingStats.SampleAges sampleAges = stats.addConsumer("Flywheel");
+  private final Notifier notifier;
+
+  /**
+   * Creates a sampler, which starts sampling immediately.
+   *
+   * @param velocitySignal Reads the flywheel velocity in radians per second, or returns empty if
+   *     the read failed (sampling thread only).
+   * @param currentSignal Reads the motor current in amps, or returns empty if the read failed.
+   */
+  public FlywheelSampler(
+      Supplier<OptionalDouble> velocitySignal, Supplier<OptionalDouble> currentSignal) {
+    this.velocitySignal = velocitySignal;
+    this.currentSignal = currentSignal;
+    notifier = new Notifier(this::sample);
+    notifier.setName("FlywheelSampler");
+    notifier.startPeriodic(1.0 / FREQUENCY);
+  }
+
+  /** Moves the queued samples into the inputs (main loop only). */
+  public void updateInputs(FlywheelIO.FlywheelIOInputs inputs) {
+    int sampleCount = timestampQueue.size();
+    inputs.sampleTimestamps = new double[sampleCount];
+    inputs.sampleVelocitiesRadPerSec = new double[sampleCount];
+    inputs.sampleCurrentsAmps = new double[sampleCount];
+    timestampQueue.drainTo(inputs.sampleTimestamps);
+    velocityQueue.drainTo(inputs.sampleVelocitiesRadPerSec, 0, sampleCount);
+    currentQueue.drainTo(inputs.sampleCurrentsAmps, 0, sampleCount);
+    sampleAges.record(inputs.sampleTimestamps);
+  }
+
+  /** Returns the sampling quality statistics, which the subsystem publishes. */
+  public SamplingStats getStats() {
+    return stats;
+  }
+
+  private void sample() {
+    double timestamp = Logger.getRealTimestamp() / 1e6;
+    OptionalDouble velocity = velocitySignal.get();
+    OptionalDouble current = currentSignal.get();
+    stats.recordSample(timestamp);
+    if (velocity.isEmpty() || current.isEmpty()) {
+      stats.recordInvalid();
+    } else if (timestampQueue.isFull() || velocityQueue.isFull() || currentQueue.isFull()) {
+      stats.recordDropped();
+    } else {
+      velocityQueue.offer(velocity.getAsDouble());
+      currentQueue.offer(current.getAsDouble());
+      timestampQueue.offer(timestamp);
+    }
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.flywheel;
+
+/**
+ * Detects shots from a stream of flywheel velocity samples. A shot starts when the velocity drops
+ * below the setpoint by more than a threshold after being settled at the setpoint, and ends when
+ * the velocity recovers to within a tolerance of the setpoint.
+ *
+ * <p>The velocity takes several samples to fall from the tolerance to the threshold, so a dip only
+ * counts as a shot if it reaches the threshold within {@link #DIP_WINDOW_SECS} of leaving the
+ * tolerance. A slower sag, or any change of the setpoint, means the flywheel is no longer settled.
+ *
+ * <p>The detector is fed the logged samples on the main loop, so it behaves identically in replay.
+ * It allocates nothing per sample.
+ */
+public class ShotDetector {
+  private static final double DIP_WINDOW_SECS = 0.05;
+
+  private enum State {
+    /** Not at the setpoint, or no setpoint. */
+    UNSETTLED,
+    /** Within the tolerance of the setpoint and ready to detect a shot. */
+    READY,
+    /** In a velocity dip, waiting to recover. */
+    RECOVERING
+  }
+
+  private final double dipThresholdRadPerSec;
+  private final double recoveryToleranceRadPerSec;
+  private final double settleSecs;
+
+  private State state = State.UNSETTLED;
+  private double setpointRadPerSec = Double.NaN;
+  private double settledSince = Double.NaN;
+  private double dipStart = Double.NaN; // When the velocity left the tolerance while ready
+  private int shotCount = 0;
+  private double shotTimestamp = Double.NaN;
+  private double minVelocityRadPerSec = 0.0;
+  private double lastShotTimestamp = Double.NaN;
+  private double lastDipRadPerSec = 0.0;
+  private double lastRecoverySecs = Double.NaN;
+
+  /**
+   * Creates a shot detector.
+   *
+   * @param dipThresholdRadPerSec How far below the setpoint the velocity must drop to count as a
+   *     shot.
+   * @param recoveryToleranceRadPerSec How close to the setpoint the velocity must be to count as
+   *     settled or recovered.
+   * @param settleSecs How long the velocity must be settled before a shot can be detected.
+   */
+  public ShotDetector(
+      double dipThresholdRadPerSec, double recoveryToleranceRadPerSec, double settleSecs) {
+    this.dipThresholdRadPerSec = dipThresholdRadPerSec;
+    this.recoveryToleranceRadPerSec = recoveryToleranceRadPerSec;
+    this.settleSecs = settleSecs;
+  }
+
+  /**
+   * Processes one velocity sample.
+   *
+   * @param timestamp The timestamp of the sample in seconds.
+   * @param velocityRadPerSec The measured velocity.
+   * @param setpointRadPerSec The velocity setpoint, or NaN if not running closed loop.
+   * @return Whether a new shot started at this sample.
+   */
+  public boolean addSample(double timestamp, double velocityRadPerSec, double setpointRadPerSec) {
+    if (setpointRadPerSec != this.setpointRadPerSec) {
+      // No setpoint, or a new one (NaN never compares equal, so no setpoint stays unsettled)
+      this.setpointRadPerSec = setpointRadPerSec;
+      state = State.UNSETTLED;
+      settledSince = Double.NaN;
+    }
+    double error = setpointRadPerSec - velocityRadPerSec;
+    switch (state) {
+      case UNSETTLED:
+        if (Math.abs(error) <= recoveryToleranceRadPerSec) {
+          if (Double.isNaN(settledSince)) {
+            settledSince = timestamp;
+          } else if (timestamp - settledSince >= settleSecs) {
+            state = State.READY;
+            dipStart = Double.NaN;
+          }
+        } else {
+          settledSince = Double.NaN;
+        }
+        return false;
+
+      case READY:
+        if (Math.abs(error) <= recoveryToleranceRadPerSec) {
+          dipStart = Double.NaN;
+          return false;
+        }
+        if (Double.isNaN(dipStart)) {
+          dipStart = timestamp;
+        }
+        if (error > dipThresholdRadPerSec && timestamp - dipStart <= DIP_WINDOW_SECS) {
+          // The shot started when the velocity began to drop
+          state = State.RECOVERING;
+          shotCount++;
+          shotTimestamp = dipStart;
+          minVelocityRadPerSec = velocityRadPerSec;
+          lastShotTimestamp = dipStart;
+          lastDipRadPerSec = error;
+          lastRecoverySecs = Double.NaN;
+          return true;
+        } else if (timestamp - dipStart > DIP_WINDOW_SECS) {
+          // Drifted without a sharp dip
+          state = State.UNSETTLED;
+          settledSince = Double.NaN;
+        }
+        return false;
+
+      case RECOVERING:
+        if (velocityRadPerSec < minVelocityRadPerSec) {
+          minVelocityRadPerSec = velocityRadPerSec;
+          lastDipRadPerSec = setpointRadPerSec - velocityRadPerSec;
+        }
+        if (Math.abs(error) <= recoveryToleranceRadPerSec) {
+          lastRecoverySecs = timestamp - shotTimestamp;
+          state = State.READY;
+          dipStart = Double.NaN;
+        }
+        return false;
+
+      default:
+        return false;
+    }
+  }
+
+  /** Returns whether the flywheel is recovering from a shot. */
+  public boolean isRecovering() {
+    return state == State.RECOVERING;
+  }
+
+  /** Returns the number of shots detected. */
+  public int getShotCount() {
+    return shotCount;
+  }
+
+  /** Returns the timestamp of the latest shot in seconds, or NaN if none. */
+  public double getLastShotTimestamp() {
+    return lastShotTimestamp;
+  }
+
+  /** Returns the largest velocity drop below the setpoint during the latest shot. */
+  public double getLastDipRadPerSec() {
+    return lastDipRadPerSec;
+  }
+
+  /** Returns the recovery time of the latest shot in seconds, or NaN if still recovering. */
+  public double getLastRecoverySecs() {
+    return lastRecoverySecs;
+  }
+}
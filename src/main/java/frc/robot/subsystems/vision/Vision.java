@@ -0,0 +1,198 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import edu.wpi.first.wpilibj2.command.SubsystemBase;
+import frc.robot.subsystems.drive.Drive;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Fuses the pose estimates from a set of cameras into the drive pose estimator.
+ *
+ * <p>Each cycle, the results received from every camera are filtered and the accepted results are
+ * passed to the pose estimator as one batch sorted by timestamp, with standard deviations based on
+ * the tag count and distance. Multi-tag results are also trusted less the further they are from the
+ * odometry pose at the same time. Filtering runs on the logged inputs so that it is replayed
+ * exactly.
+ */
+public class Vision extends SubsystemBase {
+  /** The names of the cameras, in the order of the IO implementations. */
+  public static final String[] CAMERA_NAMES = new String[] {"Front", "Back"};
+
+  private static final double FIELD_LENGTH_METERS = 16.541;
+  private static final double FIELD_WIDTH_METERS = 8.211;
+  private static final double MAX_AMBIGUITY = 0.3;
+  private static final double MAX_Z_ERROR_METERS = 0.75;
+  private static final double MAX_SINGLE_TAG_JUMP_METERS = 1.0;
+
+  // Multi-tag standard deviations grow with the square of the jump from odometry over this scale,
+  // so an outlier barely moves the estimate but repeated results still correct a bad pose
+  private static final double MULTI_TAG_JUMP_SCALE_METERS = 0.5;
+
+  // Standard deviations at 1 meter with one tag, scaled by distance squared over tag count
+  private static final double LINEAR_STD_DEV_BASELINE = 0.02;
+  private static final double ANGULAR_STD_DEV_BASELINE = 0.06;
+
+  /** The pose estimator that the measurements are fused into, normally the drive. */
+  public static interface Estimator {
+    /** Writes the estimated pose at a past timestamp as {x, y, theta}, returns false if unknown. */
+    public boolean getPoseAt(double timestamp, double[] out);
+
+    /** Adds a vision measurement with the specified standard deviations. */
+    public void addVisionMeasurement(Pose2d visionPose, double timestamp, Matrix<N3, N1> stdDevs);
+  }
+
+  private final Estimator estimator;
+  private final VisionIO[] io;
+  private final VisionIOInputsAutoLogged[] inputs;
+  private final List<Measurement> measurements = new ArrayList<>();
+  private final List<Pose3d> acceptedPoses = new ArrayList<>();
+  private final List<Pose3d> rejectedPoses = new ArrayList<>();
+  private final double[] referencePose = new double[3];
+
+  public Vision(Drive drive, VisionIO... io) {
+    this(
+        new Estimator() {
+          @Override
+          public boolean getPoseAt(double timestamp, double[] out) {
+            return drive.getPoseAt(timestamp, out);
+          }
+
+          @Override
+          public void addVisionMeasurement(
+              Pose2d visionPose, double timestamp, Matrix<N3, N1> stdDevs) {
+            drive.addVisionMeasurement(visionPose, timestamp, stdDevs);
+          }
+        },
+        io);
+  }
+
+  /** Creates a vision subsystem that fuses into any estimator (e.g. a stand-in for tests). */
+  public Vision(Estimator estimator, VisionIO... io) {
+    if (io.length != CAMERA_NAMES.length) {
+      throw new IllegalArgumentException("Expected one IO implementation per camera");
+    }
+    this.estimator = estimator;
+    this.io = io;
+    inputs = new VisionIOInputsAutoLogged[io.length];
+    for (int i = 0; i < io.length; i++) {
+      inputs[i] = new VisionIOInputsAutoLogged();
+    }
+  }
+
+  @Override
+  public void periodic() {
+    measurements.clear();
+    for (int cameraIndex = 0; cameraIndex < io.length; cameraIndex++) {
+      String key = "Vision/" + CAMERA_NAMES[cameraIndex];
+      VisionIOInputsAutoLogged cameraInputs = inputs[cameraIndex];
+      io[cameraIndex].updateInputs(cameraInputs);
+      Logger.processInputs(key, cameraInputs);
+
+      acceptedPoses.clear();
+      rejectedPoses.clear();
+      int count =
+          Math.min(
+              Math.min(cameraInputs.timestamps.length, cameraInputs.robotPoses.length),
+              Math.min(
+                  Math.min(cameraInputs.ambiguities.length, cameraInputs.tagCounts.length),
+                  cameraInputs.averageTagDistancesMeters.length));
+      for (int i = 0; i < count; i++) {
+        double timestamp = cameraInputs.timestamps[i];
+        Pose3d robotPose = cameraInputs.robotPoses[i];
+        int tagCount = cameraInputs.tagCounts[i];
+        if (!isValid(timestamp, robotPose, cameraInputs.ambiguities[i], tagCount)) {
+          rejectedPoses.add(robotPose);
+          continue;
+        }
+        acceptedPoses.add(robotPose);
+
+        double distance = cameraInputs.averageTagDistancesMeters[i];
+        double stdDevFactor = distance * distance / tagCount;
+        if (tagCount > 1) {
+          double jumpFactor = getJumpMeters(timestamp, robotPose) / MULTI_TAG_JUMP_SCALE_METERS;
+          stdDevFactor *= 1.0 + jumpFactor * jumpFactor;
+        }
+        measurements.add(
+            new Measurement(
+                timestamp,
+                robotPose.toPose2d(),
+                VecBuilder.fill(
+                    LINEAR_STD_DEV_BASELINE * stdDevFactor,
+                    LINEAR_STD_DEV_BASELINE * stdDevFactor,
+                    ANGULAR_STD_DEV_BASELINE * stdDevFactor)));
+      }
+      Logger.recordOutput(key + "/AcceptedPoses", acceptedPoses.toArray(new Pose3d[0]));
+      Logger.recordOutput(key + "/RejectedPoses", rejectedPoses.toArray(new Pose3d[0]));
+    }
+
+    // Apply the accepted measurements in time order
+    measurements.sort(Comparator.comparingDouble(measurement -> measurement.timestamp));
+    for (Measurement measurement : measurements) {
+      estimator.addVisionMeasurement(
+          measurement.robotPose, measurement.timestamp, measurement.stdDevs);
+    }
+    Logger.recordOutput("Vision/AcceptedCount", measurements.size());
+  }
+
+  /** Returns whether a camera result passes the outlier checks. */
+  private boolean isValid(double timestamp, Pose3d robotPose, double ambiguity, int tagCount) {
+    if (tagCount < 1 || (tagCount == 1 && ambiguity > MAX_AMBIGUITY)) {
+      return false;
+    }
+
+    // Must be on the field and near the floor
+    if (Math.abs(robotPose.getZ()) > MAX_Z_ERROR_METERS
+        || robotPose.getX() < 0.0
+        || robotPose.getX() > FIELD_LENGTH_METERS
+        || robotPose.getY() < 0.0
+        || robotPose.getY() > FIELD_WIDTH_METERS) {
+      return false;
+    }
+
+    // Single tag results must be close to the odometry pose at the same time. Multi-tag
+    // results are only trusted less (see periodic), so vision can still correct a bad initial pose.
+    return tagCount > 1 || getJumpMeters(timestamp, robotPose) <= MAX_SINGLE_TAG_JUMP_METERS;
+  }
+
+  /** Returns the distance from the odometry pose at the same time, or zero if it is unknown. */
+  private double getJumpMeters(double timestamp, Pose3d robotPose) {
+    if (!estimator.getPoseAt(timestamp, referencePose)) {
+      return 0.0;
+    }
+    return Math.hypot(robotPose.getX() - referencePose[0], robotPose.getY() - referencePose[1]);
+  }
+
+  /** An accepted pose measurement. */
+  private static class Measurement {
+    private final double timestamp;
+    private final Pose2d robotPose;
+    private final Matrix<N3, N1> stdDevs;
+
+    private Measurement(double timestamp, Pose2d robotPose, Matrix<N3, N1> stdDevs) {
+      this.timestamp = timestamp;
+      this.robotPose = robotPose;
+      this.stdDevs = stdDevs;
+    }
+  }
+}
@@ -0,0 +1,40 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import org.littletonrobotics.junction.AutoLog;
+
+/**
+ * IO layer for a single camera that estimates the robot pose from AprilTags.
+ *
+ * <p>Implementations should collect results on a background thread (e.g. from a camera library
+ * callback) and return every result received since the last call in {@link
+ * #updateInputs(VisionIOInputs)}, so the main loop never waits on the camera. Each result is one
+ * entry in the parallel arrays of the inputs.
+ */
+public interface VisionIO {
+  @AutoLog
+  public static class VisionIOInputs {
+    public boolean connected = false;
+    public double[] timestamps = new double[] {};
+    public Pose3d[] robotPoses = new Pose3d[] {};
+    public double[] ambiguities = new double[] {};
+    public int[] tagCounts = new int[] {};
+    public double[] averageTagDistancesMeters = new double[] {};
+  }
+
+  /** Updates the set of loggable inputs. */
+  public default void updateInputs(VisionIOInputs inputs) {}
+}
@@ -0,0 +1,161 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Simulated camera IO implementation.
+ *
+ * <p>Captures frames on a background thread at a fixed frame rate by adding noise to the pose from
+ * the supplier, and delivers each frame after a fixed latency. A small fraction of frames are
+ * outliers like those from a real camera: a single tag solved to a pose meters away (e.g. a flipped
+ * solution), half of them flagged by a high ambiguity. The random source is seeded, so a run with
+ * the same robot motion sees the same frames.
+ */
+public class VisionIOSim implements VisionIO {
+  private static final double FRAME_PERIOD_SECS = 1.0 / 30.0;
+  private static final double LATENCY_SECS = 0.035;
+  private static final double OUTLIER_PROBABILITY = 0.02;
+  private static final double MIN_OUTLIER_OFFSET_METERS = 1.5;
+  private static final double MAX_OUTLIER_OFFSET_METERS = 4.0;
+
+  private final Supplier<Pose2d> poseSupplier;
+  private final double noiseStdDevMeters;
+  private final Random random; // Only used by the capture thread
+  private final ConcurrentLinkedQueue<Frame> pendingFrames = new ConcurrentLinkedQueue<>();
+  private final List<Frame> readyFrames = new ArrayList<>();
+  private final Notifier notifier;
+
+  /**
+   * Creates a simulated camera.
+   *
+   * @param name The name of the camera, used for the capture thread.
+   * @param poseSupplier Supplies the true robot pose, must be safe to call from another thread.
+   * @param noiseStdDevMeters The standard deviation of the position noise at a distance of 1 meter.
+   * @param seed The seed of the noise and outliers, different for each camera.
+   */
+  public VisionIOSim(
+      String name, Supplier<Pose2d> poseSupplier, double noiseStdDevMeters, long seed) {
+    this.poseSupplier = poseSupplier;
+    this.noiseStdDevMeters = noiseStdDevMeters;
+    random = new Random(seed);
+    notifier = new Notifier(this::captureFrame);
+    notifier.setName("VisionIOSim-" + name);
+    notifier.startPeriodic(FRAME_PERIOD_SECS);
+  }
+
+  @Override
+  public void updateInputs(VisionIOInputs inputs) {
+    double now = Timer.getFPGATimestamp();
+    readyFrames.clear();
+    Frame frame;
+    while ((frame = pendingFrames.peek()) != null && frame.deliveryTimestamp <= now) {
+      readyFrames.add(pendingFrames.poll());
+    }
+
+    int count = readyFrames.size();
+    inputs.connected = true;
+    inputs.timestamps = new double[count];
+    inputs.robotPoses = new Pose3d[count];
+    inputs.ambiguities = new double[count];
+    inputs.tagCounts = new int[count];
+    inputs.averageTagDistancesMeters = new double[count];
+    for (int i = 0; i < count; i++) {
+      Frame ready = readyFrames.get(i);
+      inputs.timestamps[i] = ready.timestamp;
+      inputs.robotPoses[i] = ready.robotPose;
+      inputs.ambiguities[i] = ready.ambiguity;
+      inputs.tagCounts[i] = ready.tagCount;
+      inputs.averageTagDistancesMeters[i] = ready.averageTagDistanceMeters;
+    }
+  }
+
+  private void captureFrame() {
+    double timestamp = Timer.getFPGATimestamp();
+    Pose2d truePose = poseSupplier.get();
+
+    double distance = 1.0 + random.nextDouble() * 4.0;
+    int tagCount;
+    double ambiguity;
+    Pose3d robotPose;
+    if (random.nextDouble() < OUTLIER_PROBABILITY) {
+      // A wrong solution for a single tag, which is not always ambiguous
+      tagCount = 1;
+      ambiguity =
+          random.nextBoolean() ? 0.4 + random.nextDouble() * 0.6 : random.nextDouble() * 0.2;
+      double offset =
+          MIN_OUTLIER_OFFSET_METERS
+              + random.nextDouble() * (MAX_OUTLIER_OFFSET_METERS - MIN_OUTLIER_OFFSET_METERS);
+      double direction = random.nextDouble() * 2.0 * Math.PI;
+      robotPose =
+          new Pose3d(
+              truePose.getX() + offset * Math.cos(direction),
+              truePose.getY() + offset * Math.sin(direction),
+              0.0,
+              new Rotation3d(
+                  0.0, 0.0, truePose.getRotation().getRadians() + random.nextGaussian() * 0.5));
+    } else {
+      tagCount = 1 + random.nextInt(3);
+      ambiguity = tagCount > 1 ? 0.0 : random.nextDouble() * 0.4;
+      double noise = noiseStdDevMeters * distance / Math.sqrt(tagCount);
+      robotPose =
+          new Pose3d(
+              truePose.getX() + random.nextGaussian() * noise,
+              truePose.getY() + random.nextGaussian() * noise,
+              random.nextGaussian() * noise * 0.1,
+              new Rotation3d(
+                  0.0,
+                  0.0,
+                  truePose.getRotation().getRadians() + random.nextGaussian() * noise * 0.1));
+    }
+
+    pendingFrames.add(
+        new Frame(timestamp + LATENCY_SECS, timestamp, robotPose, ambiguity, tagCount, distance));
+  }
+
+  /** A captured frame waiting to be delivered. */
+  private static class Frame {
+    private final double deliveryTimestamp;
+    private final double timestamp;
+    private final Pose3d robotPose;
+    private final double ambiguity;
+    private final int tagCount;
+    private final double averageTagDistanceMeters;
+
+    private Frame(
+        double deliveryTimestamp,
+        double timestamp,
+        Pose3d robotPose,
+        double ambiguity,
+        int tagCount,
+        double averageTagDistanceMeters) {
+      this.deliveryTimestamp = deliveryTimestamp;
+      this.timestamp = timestamp;
+      this.robotPose = robotPose;
+      this.ambiguity = ambiguity;
+      this.tagCount = tagCount;
+      this.averageTagDistanceMeters = averageTagDistanceMeters;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import com.pathplanner.lib.auto.AutoBuilder;
+import com.pathplanner.lib.commands.PathPlannerAuto;
+import com.pathplanner.lib.path.PathPlannerPath;
+import edu.wpi.first.hal.AllianceStationID;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.wpilibj.simulation.DriverStationSim;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import edu.wpi.first.wpilibj2.command.Command;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Runs every PathPlanner auto to completion in a headless simulation, as fast as the CPU allows,
+ * then prints a report and exits. Enabled by setting the "AUTO_SIM" environment variable (e.g. with
+ * the "simulateAutos" Gradle task) while in SIM mode.
+ *
+ * <p>The robot code must not wait for the loop period (see "setUseTiming"). The simulated clock is
+ * paused and stepped by exactly one loop period per cycle, so the physics and every timestamp stay
+ * consistent no matter how long each cycle takes in real time.
+ *
+ * <p>For each auto, the report contains the simulated duration, the error between the final pose
+ * and the end of the last path, and the real time taken by each loop cycle. The error is measured
+ * from the true pose of the simulated robot, so the result does not depend on how well the pose
+ * estimator did; the error of the estimated pose is reported alongside it. An auto that does not
+ * finish within {@link #TIMEOUT_SECS}, or ends further from the end of its last path than {@link
+ * #MAX_TRANSLATION_ERROR_METERS} or {@link #MAX_ROTATION_ERROR_DEG}, fails the run. If the
+ * "AUTO_SIM_RESULTS" environment variable is set, the report and the exit status are also written
+ * to the file it names, so the build can check them.
+ */
+public class AutoSimRunner {
+  private static final String ENVIRONMENT_VARIABLE = "AUTO_SIM";
+  private static final String RESULTS_ENVIRONMENT_VARIABLE = "AUTO_SIM_RESULTS";
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  private static final double TIMEOUT_SECS = 30.0;
+  private static final int SETTLE_CYCLES = 10; // Disabled cycles before each auto
+  private static final double MAX_TRANSLATION_ERROR_METERS = 0.15;
+  private static final double MAX_ROTATION_ERROR_DEG = 10.0;
+
+  private final Supplier<Pose2d> truePoseSupplier;
+  private final Supplier<Pose2d> estimatedPoseSupplier;
+  private final List<String> autoNames;
+  private final List<String> reportLines = new ArrayList<>();
+  private boolean failed = false;
+
+  // State of the current auto
+  private int autoIndex = 0;
+  private int settleCyclesRemaining = SETTLE_CYCLES;
+  private Command command = null;
+  private double startTimestamp = 0.0;
+  private long lastCycleNanos = 0;
+  private double[] loopTimesMs = new double[1024]; // Grown as needed
+  private int loopCount = 0;
+
+  /** Returns whether a headless run of the autos was requested. */
+  public static boolean isRequested() {
+    return System.getenv(ENVIRONMENT_VARIABLE) != null;
+  }
+
+  /**
+   * Creates a runner and takes control of the simulated clock and driver station.
+   *
+   * @param truePoseSupplier Supplies the true pose of the simulated robot, which the results are
+   *     checked against.
+   * @param estimatedPoseSupplier Supplies the estimated pose of the robot, for the report only.
+   */
+  public AutoSimRunner(Supplier<Pose2d> truePoseSupplier, Supplier<Pose2d> estimatedPoseSupplier) {
+    this.truePoseSupplier = truePoseSupplier;
+    this.estimatedPoseSupplier = estimatedPoseSupplier;
+    autoNames = AutoBuilder.getAllAutoNames();
+    SimHooks.pauseTiming();
+
+    // Paths are drawn for the blue alliance, so they are run without flipping
+    DriverStationSim.setAllianceStationId(AllianceStationID.Blue1);
+    DriverStationSim.setDsAttached(true);
+    setEnabled(false);
+  }
+
+  /** Advances the runner and the simulated clock. Should be called at the end of each cycle. */
+  public void periodic() {
+    if (autoIndex >= autoNames.size()) {
+      finish();
+      return;
+    }
+    String name = autoNames.get(autoIndex);
+
+    if (command == null) {
+      // Let the robot settle while disabled, then start the auto
+      if (settleCyclesRemaining > 0) {
+        settleCyclesRemaining--;
+      } else {
+        command = AutoBuilder.buildAuto(name);
+        command.schedule();
+        setEnabled(true);
+        startTimestamp = Logger.getTimestamp() / 1e6;
+        lastCycleNanos = System.nanoTime();
+        loopCount = 0;
+      }
+    } else {
+      long cycleNanos = System.nanoTime();
+      if (loopCount == loopTimesMs.length) {
+        loopTimesMs = Arrays.copyOf(loopTimesMs, loopCount * 2);
+      }
+      loopTimesMs[loopCount++] = (cycleNanos - lastCycleNanos) / 1e6;
+      lastCycleNanos = cycleNanos;
+
+      double duration = Logger.getTimestamp() / 1e6 - startTimestamp;
+      boolean timedOut = duration > TIMEOUT_SECS;
+      if (!command.isScheduled() || timedOut) {
+        command.cancel();
+        setEnabled(false);
+        report(name, duration, timedOut);
+        command = null;
+        settleCyclesRemaining = SETTLE_CYCLES;
+        autoIndex++;
+      }
+    }
+
+    SimHooks.stepTiming(LOOP_PERIOD_SECS);
+  }
+
+  /** Records the results of an auto. */
+  private void report(String name, double durationSecs, boolean timedOut) {
+    // Compare the true and estimated poses with the end of the last path
+    double translationError = Double.NaN;
+    double rotationErrorDeg = Double.NaN;
+    double estimatedTranslationError = Double.NaN;
+    List<PathPlannerPath> paths = PathPlannerAuto.getPathGroupFromAutoFile(name);
+    if (!paths.isEmpty()) {
+      PathPlannerPath lastPath = paths.get(paths.size() - 1);
+      List<Pose2d> pathPoses = lastPath.getPathPoses();
+      Translation2d endTranslation = pathPoses.get(pathPoses.size() - 1).getTranslation();
+      Pose2d pose = truePoseSupplier.get();
+      translationError = pose.getTranslation().getDistance(endTranslation);
+      rotationErrorDeg =
+          Math.abs(pose.getRotation().minus(lastPath.getGoalEndState().getRotation()).getDegrees());
+      estimatedTranslationError =
+          estimatedPoseSupplier.get().getTranslation().getDistance(endTranslation);
+    }
+
+    // Autos without paths have no target, and NaN errors never exceed the limits
+    boolean missedTarget =
+        translationError > MAX_TRANSLATION_ERROR_METERS
+            || rotationErrorDeg > MAX_ROTATION_ERROR_DEG;
+    failed |= timedOut || missedTarget;
+
+    // Loop time statistics
+    double[] sortedLoopTimes = Arrays.copyOf(loopTimesMs, loopCount);
+    Arrays.sort(sortedLoopTimes);
+    double meanLoopMs = Arrays.stream(sortedLoopTimes).average().orElse(0.0);
+    double p99LoopMs = loopCount > 0 ? sortedLoopTimes[(int) ((loopCount - 1) * 0.99)] : 0.0;
+    double maxLoopMs = loopCount > 0 ? sortedLoopTimes[loopCount - 1] : 0.0;
+
+    String key = "AutoSim/" + name + "/";
+    Logger.recordOutput(key + "DurationSecs", durationSecs);
+    Logger.recordOutput(key + "TimedOut", timedOut);
+    Logger.recordOutput(key + "TranslationErrorMeters", translationError);
+    Logger.recordOutput(key + "RotationErrorDeg", rotationErrorDeg);
+    Logger.recordOutput(key + "EstimatedTranslationErrorMeters", estimatedTranslationError);
+    Logger.recordOutput(key + "MissedTarget", missedTarget);
+    Logger.recordOutput(key + "MeanLoopMs", meanLoopMs);
+    Logger.recordOutput(key + "P99LoopMs", p99LoopMs);
+    Logger.recordOutput(key + "MaxLoopMs", maxLoopMs);
+    reportLines.add(
+        String.format(
+            "%-30s %8.2f s %s  true error %6.3f m %6.1f deg (estimate %6.3f m)"
+                + "  loop mean %6.3f p99 %6.3f max %6.3f ms",
+            name,
+            durationSecs,
+            timedOut ? "TIMEOUT" : missedTarget ? "MISSED " : "done   ",
+            translationError,
+            rotationErrorDeg,
+            estimatedTranslationError,
+            meanLoopMs,
+            p99LoopMs,
+            maxLoopMs));
+  }
+
+  /** Prints the report and exits, with a nonzero status if any auto failed. */
+  private void finish() {
+    int status = failed ? 1 : 0;
+    String header =
+        "Simulated "
+            + autoNames.size()
+            + " autos, with errors from the true simulated pose to the end of the last path:";
+    System.out.println(header);
+    for (String line : reportLines) {
+      System.out.println("  " + line);
+    }
+
+    String resultsPath = System.getenv(RESULTS_ENVIRONMENT_VARIABLE);
+    if (resultsPath != null) {
+      List<String> lines = new ArrayList<>();
+      lines.add(header);
+      lines.addAll(reportLines);
+      lines.add("Exit status " + status);
+      try {
+        Files.write(Path.of(resultsPath), lines);
+      } catch (IOException e) {
+        System.err.println("Failed to write the auto simulation results: " + e.getMessage());
+        status = 1;
+      }
+    }
+    System.exit(status);
+  }
+
+  private static void setEnabled(boolean enabled) {
+    DriverStationSim.setAutonomous(true);
+    DriverStationSim.setEnabled(enabled);
+    DriverStationSim.notifyNewData();
+  }
+}
@@ -0,0 +1,258 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.CANBus;
+import com.ctre.phoenix6.hardware.ParentDevice;
+import com.revrobotics.CANSparkLowLevel.PeriodicFrame;
+import com.revrobotics.CANSparkMax;
+import edu.wpi.first.wpilibj.RobotController;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleConsumer;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Owns the status frame rates of every CAN device and keeps the projected load of each bus under a
+ * threshold.
+ *
+ * <p>IO implementations register each group of status frames with a priority and a requested rate
+ * instead of setting the rate directly. The requested rate is applied immediately. Once every
+ * device is registered, {@link #applyRates()} projects the load of each bus and, if it is above
+ * {@link #LOAD_THRESHOLD}, slows the telemetry frames on that bus by a common factor until it fits.
+ * Critical frames (e.g. odometry and control feedback) are never slowed.
+ *
+ * <p>The projection assumes one frame per signal and a fixed number of bits per frame, so it is an
+ * estimate. The projected and measured utilization of each bus are both logged for comparison.
+ *
+ * <p>Rates are written to the devices outside of the lock, since each write waits on the bus and
+ * devices register from several threads during a parallel startup.
+ */
+public class CanBusBudget {
+  /** Fraction of the bus capacity that the projected load should stay under. */
+  public static final double LOAD_THRESHOLD = 0.6;
+
+  private static final double MIN_TELEMETRY_HZ = 4.0;
+  private static final double BITS_PER_FRAME = 150.0; // Extended ID, 8 data bytes and stuffing
+  private static final double CAN_BITS_PER_SEC = 1e6;
+  private static final double CAN_FD_BITS_PER_SEC = 2e6; // Effective, with a faster data phase
+  private static final int MEASURE_PERIOD_CYCLES = 50; // Reading the bus status waits on a JNI call
+
+  /** How a group of status frames may be treated when the bus is overloaded. */
+  public static enum Priority {
+    /** Never slowed, e.g. odometry and control feedback. */
+    CRITICAL,
+    /** Slowed when the bus is overloaded, e.g. voltages and currents for logging. */
+    TELEMETRY
+  }
+
+  private final Map<String, List<FrameGroup>> busGroups = new LinkedHashMap<>(); // Guarded by this
+  private Map<String, List<FrameGroup>> busGroupsCopy = null; // Guarded by this, null when stale
+  private final Map<String, Double> measuredUtilizations = new HashMap<>(); // Main loop only
+  private int cyclesUntilMeasure = 0; // Main loop only
+
+  private static CanBusBudget instance = null;
+
+  public static synchronized CanBusBudget getInstance() {
+    if (instance == null) {
+      instance = new CanBusBudget();
+    }
+    return instance;
+  }
+
+  private CanBusBudget() {}
+
+  /**
+   * Registers a group of status frames and applies the requested rate.
+   *
+   * @param bus The name of the CAN bus, "rio" for the roboRIO bus.
+   * @param name The name of the group in the log.
+   * @param priority Whether the group may be slowed.
+   * @param requestedHz The rate to use when the bus is not overloaded.
+   * @param frameCount The number of frames sent at the rate.
+   * @param setFrequency Applies a rate in Hz to the device.
+   */
+  public void register(
+      String bus,
+      String name,
+      Priority priority,
+      double requestedHz,
+      int frameCount,
+      DoubleConsumer setFrequency) {
+    FrameGroup group = new FrameGroup(name, priority, requestedHz, frameCount, setFrequency);
+    synchronized (this) {
+      busGroups.computeIfAbsent(bus, key -> new ArrayList<>()).add(group);
+      busGroupsCopy = null;
+    }
+    group.apply(requestedHz);
+  }
+
+  /** Registers a group of Phoenix 6 status signals from one device. */
+  public void register(
+      ParentDevice device,
+      String name,
+      Priority priority,
+      double requestedHz,
+      BaseStatusSignal... signals) {
+    register(
+        getBusName(device),
+        name,
+        priority,
+        requestedHz,
+        signals.length,
+        hz -> BaseStatusSignal.setUpdateFrequencyForAll(hz, signals));
+  }
+
+  /** Registers a periodic status frame of a SparkMax, which is always on the roboRIO bus. */
+  public void register(
+      CANSparkMax sparkMax,
+      String name,
+      Priority priority,
+      double requestedHz,
+      PeriodicFrame frame) {
+    register(
+        "rio",
+        name,
+        priority,
+        requestedHz,
+        1,
+        hz -> sparkMax.setPeriodicFramePeriod(frame, (int) Math.round(1000.0 / hz)));
+  }
+
+  /**
+   * Projects the load of each bus and slows the telemetry frames of any bus above the threshold.
+   * Should be called once after every device has been constructed.
+   */
+  public void applyRates() {
+    Map<String, List<FrameGroup>> snapshot = getBusGroups();
+    for (Map.Entry<String, List<FrameGroup>> entry : snapshot.entrySet()) {
+      double budgetFramesPerSec = LOAD_THRESHOLD * getCapacityFramesPerSec(entry.getKey());
+      double telemetryFramesPerSec = 0.0;
+      for (FrameGroup group : entry.getValue()) {
+        if (group.priority == Priority.CRITICAL) {
+          budgetFramesPerSec -= group.requestedHz * group.frameCount;
+        } else {
+          telemetryFramesPerSec += group.requestedHz * group.frameCount;
+        }
+      }
+
+      // Slow every telemetry group by the same factor, down to the minimum rate
+      double scale = 1.0;
+      if (telemetryFramesPerSec > budgetFramesPerSec) {
+        scale = Math.max(budgetFramesPerSec, 0.0) / telemetryFramesPerSec;
+      }
+      for (FrameGroup group : entry.getValue()) {
+        if (group.priority == Priority.TELEMETRY) {
+          double minHz = Math.min(group.requestedHz, MIN_TELEMETRY_HZ);
+          double hz = Math.max(group.requestedHz * scale, minHz);
+          if (hz != group.appliedHz) {
+            group.apply(hz);
+          }
+        }
+        Logger.recordOutput(
+            "CANBudget/" + entry.getKey() + "/RatesHz/" + group.name, group.appliedHz);
+      }
+      Logger.recordOutput("CANBudget/" + entry.getKey() + "/TelemetryScale", scale);
+    }
+  }
+
+  /**
+   * Logs the projected and measured utilization of each bus. Should be called once per cycle. The
+   * measured utilization is only read from the bus once per second.
+   */
+  public void periodic() {
+    boolean measure = --cyclesUntilMeasure <= 0;
+    if (measure) {
+      cyclesUntilMeasure = MEASURE_PERIOD_CYCLES;
+    }
+    Map<String, List<FrameGroup>> snapshot = getBusGroups();
+    for (Map.Entry<String, List<FrameGroup>> entry : snapshot.entrySet()) {
+      String bus = entry.getKey();
+      double framesPerSec = 0.0;
+      for (FrameGroup group : entry.getValue()) {
+        framesPerSec += group.appliedHz * group.frameCount;
+      }
+      double projectedUtilization = framesPerSec / getCapacityFramesPerSec(bus);
+      Logger.recordOutput("CANBudget/" + bus + "/ProjectedUtilization", projectedUtilization);
+      if (measure || !measuredUtilizations.containsKey(bus)) {
+        measuredUtilizations.put(bus, getMeasuredUtilization(bus));
+      }
+      double measuredUtilization = measuredUtilizations.get(bus);
+      Logger.recordOutput("CANBudget/" + bus + "/MeasuredUtilization", measuredUtilization);
+    }
+  }
+
+  /**
+   * Returns a copy of the registered groups, so that they can be used outside of the lock. The copy
+   * is only rebuilt after a registration.
+   */
+  private synchronized Map<String, List<FrameGroup>> getBusGroups() {
+    if (busGroupsCopy == null) {
+      busGroupsCopy = new LinkedHashMap<>();
+      for (Map.Entry<String, List<FrameGroup>> entry : busGroups.entrySet()) {
+        busGroupsCopy.put(entry.getKey(), List.copyOf(entry.getValue()));
+      }
+    }
+    return busGroupsCopy;
+  }
+
+  private static String getBusName(ParentDevice device) {
+    return device.getNetwork().isEmpty() ? "rio" : device.getNetwork();
+  }
+
+  private static double getCapacityFramesPerSec(String bus) {
+    boolean isCANFD = !bus.equals("rio") && CANBus.isNetworkFD(bus);
+    return (isCANFD ? CAN_FD_BITS_PER_SEC : CAN_BITS_PER_SEC) / BITS_PER_FRAME;
+  }
+
+  private static double getMeasuredUtilization(String bus) {
+    if (bus.equals("rio")) {
+      return RobotController.getCANStatus().percentBusUtilization;
+    } else {
+      return CANBus.getStatus(bus).BusUtilization;
+    }
+  }
+
+  /** A group of status frames that share a rate. */
+  private static class FrameGroup {
+    private final String name;
+    private final Priority priority;
+    private final double requestedHz;
+    private final int frameCount;
+    private final DoubleConsumer setFrequency;
+    private volatile double appliedHz = 0.0;
+
+    private FrameGroup(
+        String name,
+        Priority priority,
+        double requestedHz,
+        int frameCount,
+        DoubleConsumer setFrequency) {
+      this.name = name;
+      this.priority = priority;
+      this.requestedHz = requestedHz;
+      this.frameCount = frameCount;
+      this.setFrequency = setFrequency;
+    }
+
+    private void apply(double hz) {
+      setFrequency.accept(hz);
+      appliedHz = hz;
+    }
+  }
+}
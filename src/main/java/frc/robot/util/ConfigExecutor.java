@@ -0,0 +1,249 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.hardware.ParentDevice;
+import edu.wpi.first.wpilibj.DriverStation;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Runs blocking device configuration writes on a background thread so that they never stall the
+ * main loop.
+ *
+ * <p>Each write is identified by a key naming the device and the configuration it changes (e.g.
+ * "TalonFX/rio/3/MotorOutput"). A write that is submitted while an earlier write with the same key
+ * is still queued replaces it, since only the latest value matters. Writes that fail are retried a
+ * few times before giving up, waiting in the queue between attempts so that other writes still run.
+ * Writes with different keys run in the order they were first queued.
+ *
+ * <p>Writes submitted before the first call to {@link #periodic()} are construction-time
+ * configuration, so they are applied immediately on the calling thread and the device is configured
+ * before the first cycle. Only their retries run in the background.
+ */
+public class ConfigExecutor {
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final Map<String, PendingWrite> pendingWrites = new LinkedHashMap<>(); // Guarded by this
+  private final AtomicLong completedCount = new AtomicLong();
+  private final AtomicLong retriedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final long retryDelayNanos;
+  private volatile boolean started = false;
+  private final Thread thread;
+
+  private static ConfigExecutor instance = null;
+
+  public static synchronized ConfigExecutor getInstance() {
+    if (instance == null) {
+      instance = new ConfigExecutor();
+    }
+    return instance;
+  }
+
+  private ConfigExecutor() {
+    this(RETRY_DELAY_NANOS);
+  }
+
+  /** Creates an executor with its own thread and a specific retry delay (e.g. for tests). */
+  ConfigExecutor(long retryDelayNanos) {
+    this.retryDelayNanos = retryDelayNanos;
+    thread = new Thread(this::run, "ConfigExecutor");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queues a configuration write, replacing any queued write with the same key. Before the first
+   * cycle, the write is first attempted on the calling thread instead.
+   *
+   * @param key Identifies the device and configuration that the write changes.
+   * @param write Performs the blocking write and returns whether it succeeded.
+   * @return A future that completes with whether the write (or the write that replaced it)
+   *     eventually succeeded.
+   */
+  public CompletableFuture<Boolean> submit(String key, BooleanSupplier write) {
+    if (!started) {
+      // Construction-time configuration, apply it before returning
+      if (runWrite(key, write)) {
+        completedCount.incrementAndGet();
+        return CompletableFuture.completedFuture(true);
+      }
+      synchronized (this) {
+        PendingWrite pending = enqueue(key, write);
+        pending.attempts = 1;
+        pending.readyTimeNanos = System.nanoTime() + retryDelayNanos;
+        retriedCount.incrementAndGet();
+        return pending.future;
+      }
+    }
+    synchronized (this) {
+      return enqueue(key, write).future;
+    }
+  }
+
+  /**
+   * Queues a configuration write to a Phoenix device, replacing any queued write of the same
+   * configuration to that device.
+   *
+   * @param device The device to configure.
+   * @param configName The name of the configuration group that the write changes.
+   * @param write Performs the blocking write and returns its status.
+   * @return A future that completes with whether the write eventually succeeded.
+   */
+  public CompletableFuture<Boolean> submit(
+      ParentDevice device, String configName, Supplier<StatusCode> write) {
+    String key =
+        device.getClass().getSimpleName()
+            + "/"
+            + device.getNetwork()
+            + "/"
+            + device.getDeviceID()
+            + "/"
+            + configName;
+    return submit(key, () -> write.get().isOK());
+  }
+
+  /** Returns the number of writes waiting to run. */
+  public synchronized int getPendingCount() {
+    return pendingWrites.size();
+  }
+
+  /**
+   * Logs the state of the executor. Should be called once per cycle. Writes submitted after the
+   * first call run in the background.
+   */
+  public void periodic() {
+    started = true;
+    Logger.recordOutput("ConfigExecutor/PendingWrites", getPendingCount());
+    Logger.recordOutput("ConfigExecutor/CompletedWrites", completedCount.get());
+    Logger.recordOutput("ConfigExecutor/RetriedWrites", retriedCount.get());
+    Logger.recordOutput("ConfigExecutor/FailedWrites", failedCount.get());
+  }
+
+  private void run() {
+    while (true) {
+      try {
+        PendingWrite pending = takeNext();
+        if (runWrite(pending.key, pending.write)) {
+          completedCount.incrementAndGet();
+          pending.future.complete(true);
+        } else if (!requeue(pending)) {
+          failedCount.incrementAndGet();
+          DriverStation.reportWarning(
+              "Configuration write \"" + pending.key + "\" failed after retries", false);
+          pending.future.complete(false);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Runs a write and returns whether it succeeded, reporting any exception. */
+  private static boolean runWrite(String key, BooleanSupplier write) {
+    try {
+      return write.getAsBoolean();
+    } catch (RuntimeException e) {
+      DriverStation.reportError(
+          "Configuration write \"" + key + "\" threw an exception", e.getStackTrace());
+      return false;
+    }
+  }
+
+  /** Queues a write to run as soon as possible, replacing any queued write with the same key. */
+  private PendingWrite enqueue(String key, BooleanSupplier write) {
+    PendingWrite pending = pendingWrites.get(key);
+    if (pending != null) {
+      // Keep the queue position and future, but only run the latest write
+      pending.write = write;
+      pending.attempts = 0;
+      pending.readyTimeNanos = System.nanoTime();
+      return pending;
+    }
+    pending = new PendingWrite(key, write);
+    pendingWrites.put(key, pending);
+    notifyAll();
+    return pending;
+  }
+
+  /**
+   * Removes and returns the oldest queued write that is ready to run, waiting until there is one.
+   */
+  private synchronized PendingWrite takeNext() throws InterruptedException {
+    while (true) {
+      long now = System.nanoTime();
+      long nextReadyTime = Long.MAX_VALUE;
+      Iterator<PendingWrite> iterator = pendingWrites.values().iterator();
+      while (iterator.hasNext()) {
+        PendingWrite pending = iterator.next();
+        if (pending.readyTimeNanos - now <= 0) {
+          iterator.remove();
+          return pending;
+        }
+        nextReadyTime = Math.min(nextReadyTime, pending.readyTimeNanos);
+      }
+      if (nextReadyTime == Long.MAX_VALUE) {
+        wait();
+      } else {
+        TimeUnit.NANOSECONDS.timedWait(this, nextReadyTime - now);
+      }
+    }
+  }
+
+  /**
+   * Queues a failed write to run again after a delay, without blocking the writes queued behind it.
+   * Returns false if it has no attempts left. A write that was replaced while running shares the
+   * future of its replacement instead.
+   */
+  private synchronized boolean requeue(PendingWrite failed) {
+    if (++failed.attempts >= MAX_ATTEMPTS) {
+      return false;
+    }
+    retriedCount.incrementAndGet();
+    PendingWrite replacement = pendingWrites.get(failed.key);
+    if (replacement != null) {
+      // A newer write is already queued, it reports for both
+      replacement.future.whenComplete(
+          (success, error) -> failed.future.complete(success != null && success));
+    } else {
+      failed.readyTimeNanos = System.nanoTime() + retryDelayNanos;
+      pendingWrites.put(failed.key, failed);
+    }
+    return true;
+  }
+
+  /** A queued write and its completion. */
+  private static class PendingWrite {
+    private final String key;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+    private BooleanSupplier write; // Guarded by the executor
+    private int attempts = 0; // Guarded by the executor
+    private long readyTimeNanos = System.nanoTime(); // Guarded by the executor
+
+    private PendingWrite(String key, BooleanSupplier write) {
+      this.key = key;
+      this.write = write;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import edu.wpi.first.wpilibj.Timer;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Skips motor control requests that repeat the last request sent to the same motor, so holding a
+ * setpoint (e.g. stopping every cycle while disabled) does not cost a CAN frame and a JNI call each
+ * cycle.
+ *
+ * <p>Each motor output owns one filter. A request is sent when its mode differs from the last one,
+ * when its value or feedforward moved by more than the tolerance, or when the last request is older
+ * than the keep-alive period. The keep-alive restores the setpoint if the controller reset (e.g.
+ * after a brownout). This class is not thread safe and should only be used from the main loop.
+ */
+public class ControlRequestFilter {
+  private static final double KEEP_ALIVE_SECS = 0.25;
+
+  private static long sentCount = 0;
+  private static long skippedCount = 0;
+
+  private final double valueTolerance;
+  private final double feedforwardTolerance;
+  private Object lastMode = null;
+  private double lastValue = 0.0;
+  private double lastFeedforward = 0.0;
+  private double lastSendTimestamp = 0.0;
+
+  /**
+   * Creates a filter for one motor output.
+   *
+   * @param valueTolerance The largest change in the setpoint that is not sent, in the units that
+   *     are passed to {@link #shouldSend}.
+   * @param feedforwardTolerance The largest change in the feedforward that is not sent.
+   */
+  public ControlRequestFilter(double valueTolerance, double feedforwardTolerance) {
+    this.valueTolerance = valueTolerance;
+    this.feedforwardTolerance = feedforwardTolerance;
+  }
+
+  /** Same as {@link #shouldSend(Object, double, double)} with no feedforward. */
+  public boolean shouldSend(Object mode, double value) {
+    return shouldSend(mode, value, 0.0);
+  }
+
+  /**
+   * Returns whether a request should be sent, recording it as sent if so.
+   *
+   * @param mode Identifies the control mode, e.g. the reused request object or the control type.
+   *     Compared by identity.
+   * @param value The setpoint.
+   * @param feedforward The feedforward.
+   */
+  public boolean shouldSend(Object mode, double value, double feedforward) {
+    double timestamp = Timer.getFPGATimestamp();
+    if (mode == lastMode
+        && Math.abs(value - lastValue) <= valueTolerance
+        && Math.abs(feedforward - lastFeedforward) <= feedforwardTolerance
+        && timestamp - lastSendTimestamp < KEEP_ALIVE_SECS) {
+      skippedCount++;
+      return false;
+    }
+    lastMode = mode;
+    lastValue = value;
+    lastFeedforward = feedforward;
+    lastSendTimestamp = timestamp;
+    sentCount++;
+    return true;
+  }
+
+  /** Forgets the last request, e.g. after the motor was commanded without this filter. */
+  public void reset() {
+    lastMode = null;
+  }
+
+  /** Logs the number of sent and skipped requests across all filters. */
+  public static void periodic() {
+    Logger.recordOutput("ControlRequests/Sent", sentCount);
+    Logger.recordOutput("ControlRequests/Skipped", skippedCount);
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Paces a loop on a fixed grid of absolute deadlines, so the time spent working between waits does
+ * not add to the period and errors do not accumulate.
+ *
+ * <p>If the loop falls behind by less than one period, the next wait returns immediately to catch
+ * up. If it falls further behind, the missed deadlines are skipped rather than run back to back.
+ */
+public class DeadlineScheduler {
+  private final long periodNanos;
+  private final LongSupplier clock;
+  private final LongConsumer sleeper;
+  private long nextDeadline;
+  private boolean started = false;
+
+  /** Creates a scheduler with the specified period in seconds using the system clock. */
+  public DeadlineScheduler(double periodSecs) {
+    this(periodSecs, System::nanoTime);
+  }
+
+  /**
+   * Creates a scheduler with the specified period in seconds.
+   *
+   * @param periodSecs The period between deadlines in seconds.
+   * @param clock Monotonic clock returning nanoseconds.
+   */
+  public DeadlineScheduler(double periodSecs, LongSupplier clock) {
+    this(periodSecs, clock, LockSupport::parkNanos);
+  }
+
+  /**
+   * Creates a scheduler with the specified period in seconds and a custom way to sleep (e.g. for
+   * testing with a simulated clock).
+   *
+   * @param periodSecs The period between deadlines in seconds.
+   * @param clock Monotonic clock returning nanoseconds.
+   * @param sleeper Sleeps for up to the specified number of nanoseconds, and may wake early.
+   */
+  public DeadlineScheduler(double periodSecs, LongSupplier clock, LongConsumer sleeper) {
+    this.periodNanos = (long) (periodSecs * 1e9);
+    this.clock = clock;
+    this.sleeper = sleeper;
+  }
+
+  /**
+   * Blocks until the next deadline. The first call returns immediately and starts the grid.
+   *
+   * @return The number of deadlines that were skipped because the loop fell behind.
+   */
+  public int waitForNextDeadline() throws InterruptedException {
+    long now = clock.getAsLong();
+    if (!started) {
+      started = true;
+      nextDeadline = now + periodNanos;
+      return 0;
+    }
+
+    // Skip deadlines that are more than one period in the past
+    int skipped = 0;
+    long lateness = now - nextDeadline;
+    if (lateness > periodNanos) {
+      long missed = lateness / periodNanos;
+      nextDeadline += missed * periodNanos;
+      skipped = (int) missed;
+    }
+
+    // Sleep until the deadline, the sleep may wake early so check again
+    while (nextDeadline - now > 0) {
+      sleeper.accept(nextDeadline - now);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      now = clock.getAsLong();
+    }
+    nextDeadline += periodNanos;
+    return skipped;
+  }
+
+  /** Restarts the grid from the next call to {@link #waitForNextDeadline()}. */
+  public void reset() {
+    started = false;
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+/**
+ * Fixed capacity queue of primitive doubles for passing samples from one producer thread to one
+ * consumer thread without boxing or locking.
+ *
+ * <p>Only a single thread may call {@link #offer(double)} and only a single (possibly different)
+ * thread may call {@link #drainTo(double[])}, {@link #drainTo(double[], int, int)} or {@link
+ * #clear()}. Values written by the producer before an {@link #offer(double)} returns are visible to
+ * the consumer once it observes the new size.
+ */
+public class DoubleRingBuffer {
+  private final double[] buffer;
+  private final int capacity;
+
+  // Monotonic indices, the slot is the index modulo the capacity
+  private volatile long head = 0; // Next index to read, written by consumer
+  private volatile long tail = 0; // Next index to write, written by producer
+
+  public DoubleRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    buffer = new double[capacity];
+  }
+
+  /** Returns the maximum number of values that can be queued. */
+  public int capacity() {
+    return capacity;
+  }
+
+  /** Returns the number of values available to the consumer. */
+  public int size() {
+    long currentHead = head;
+    return (int) (tail - currentHead);
+  }
+
+  /** Returns whether the next {@link #offer(double)} would drop its value. */
+  public boolean isFull() {
+    return size() >= capacity;
+  }
+
+  /**
+   * Adds a value to the queue (producer only).
+   *
+   * @return False if the queue was full and the value was dropped.
+   */
+  public boolean offer(double value) {
+    long currentTail = tail;
+    if (currentTail - head >= capacity) {
+      return false;
+    }
+    buffer[(int) (currentTail % capacity)] = value;
+    tail = currentTail + 1; // Publishes the value to the consumer
+    return true;
+  }
+
+  /**
+   * Moves queued values into the destination array (consumer only).
+   *
+   * @return The number of values copied, at most the length of the destination.
+   */
+  public int drainTo(double[] destination) {
+    return drainTo(destination, 0, destination.length);
+  }
+
+  /**
+   * Moves up to "maxCount" queued values into the destination array starting at "offset" (consumer
+   * only).
+   *
+   * @return The number of values copied.
+   */
+  public int drainTo(double[] destination, int offset, int maxCount) {
+    long currentHead = head;
+    int count = (int) Math.min(tail - currentHead, maxCount);
+    if (count <= 0) {
+      return 0;
+    }
+
+    // Copy in at most two contiguous chunks
+    int start = (int) (currentHead % capacity);
+    int firstChunk = Math.min(count, capacity - start);
+    System.arraycopy(buffer, start, destination, offset, firstChunk);
+    if (firstChunk < count) {
+      System.arraycopy(buffer, 0, destination, offset + firstChunk, count - firstChunk);
+    }
+    head = currentHead + count; // Releases the slots to the producer
+    return count;
+  }
+
+  /** Discards all queued values (consumer only). */
+  public void clear() {
+    head = tail;
+  }
+}
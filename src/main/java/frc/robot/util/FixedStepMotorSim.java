@@ -0,0 +1,115 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import edu.wpi.first.math.system.plant.DCMotor;
+
+/**
+ * Simulates a DC motor driving an inertia with a fixed time step, for stepping the physics many
+ * times per robot cycle (e.g. at the 1 kHz rate of the closed loops on the motor controllers).
+ *
+ * <p>This is the same plant as WPILib's "DCMotorSim", but the exact discretization is computed once
+ * in the constructor and the state is kept in primitives, so each step is a few multiplications and
+ * allocates nothing.
+ */
+public class FixedStepMotorSim {
+  private final double stepSecs;
+  private final double inputGain; // Acceleration per volt, rad/s^2
+  private final double inertia;
+  private final double gearing;
+  private final DCMotor motor;
+
+  // Coefficients of the exact discretization
+  private final double velocityDecay;
+  private final double velocityFromAcceleration;
+  private final double positionFromVelocity;
+  private final double positionFromAcceleration;
+
+  private double positionRad = 0.0;
+  private double velocityRadPerSec = 0.0;
+  private double inputVolts = 0.0;
+  private double loadTorque = 0.0;
+
+  /**
+   * Creates a motor simulation.
+   *
+   * @param motor The motor (or gearbox of motors).
+   * @param gearing The reduction from the motor to the output.
+   * @param jKgMetersSquared The moment of inertia at the output.
+   * @param stepSecs The length of each step.
+   */
+  public FixedStepMotorSim(
+      DCMotor motor, double gearing, double jKgMetersSquared, double stepSecs) {
+    this.motor = motor;
+    this.gearing = gearing;
+    this.inertia = jKgMetersSquared;
+    this.stepSecs = stepSecs;
+
+    // dw/dt = a * w + u, where u is the acceleration from the input voltage and the load
+    double a =
+        -gearing
+            * gearing
+            * motor.KtNMPerAmp
+            / (motor.KvRadPerSecPerVolt * motor.rOhms * jKgMetersSquared);
+    inputGain = gearing * motor.KtNMPerAmp / (motor.rOhms * jKgMetersSquared);
+    velocityDecay = Math.exp(a * stepSecs);
+    velocityFromAcceleration = Math.expm1(a * stepSecs) / a;
+    positionFromVelocity = velocityFromAcceleration;
+    positionFromAcceleration = (Math.expm1(a * stepSecs) - a * stepSecs) / (a * a);
+  }
+
+  /** Returns the length of each step in seconds. */
+  public double getStepSecs() {
+    return stepSecs;
+  }
+
+  /** Sets the input voltage, held until it is set again. */
+  public void setInputVoltage(double volts) {
+    inputVolts = volts;
+  }
+
+  /** Sets an external torque at the output opposing positive rotation, held until set again. */
+  public void setLoadTorque(double newtonMeters) {
+    loadTorque = newtonMeters;
+  }
+
+  /** Sets the state of the output. */
+  public void setState(double positionRad, double velocityRadPerSec) {
+    this.positionRad = positionRad;
+    this.velocityRadPerSec = velocityRadPerSec;
+  }
+
+  /** Advances the simulation by one step. */
+  public void step() {
+    double acceleration = inputGain * inputVolts - loadTorque / inertia;
+    positionRad +=
+        positionFromVelocity * velocityRadPerSec + positionFromAcceleration * acceleration;
+    velocityRadPerSec = velocityDecay * velocityRadPerSec + velocityFromAcceleration * acceleration;
+  }
+
+  /** Returns the position of the output in radians. */
+  public double getPositionRad() {
+    return positionRad;
+  }
+
+  /** Returns the velocity of the output in radians per second. */
+  public double getVelocityRadPerSec() {
+    return velocityRadPerSec;
+  }
+
+  /** Returns the current drawn by the motor in amps, signed with the direction of its torque. */
+  public double getCurrentDrawAmps() {
+    return motor.getCurrent(velocityRadPerSec * gearing, inputVolts);
+  }
+}
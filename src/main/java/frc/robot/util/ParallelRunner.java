@@ -0,0 +1,101 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a fixed set of blocking tasks concurrently on a small pool of daemon threads, e.g. reading
+ * the inputs of several devices at once.
+ *
+ * <p>The caller always waits for every task to finish, since the tasks usually write to objects
+ * that the caller reads next. The deadline only reports whether the tasks were slower than
+ * expected.
+ */
+public class ParallelRunner {
+  private final ExecutorService executor;
+  private final Future<?>[] futures;
+
+  /**
+   * Creates a runner.
+   *
+   * @param name The name of the threads.
+   * @param maxTasks The largest number of tasks passed to {@link #runAll}.
+   */
+  public ParallelRunner(String name, int maxTasks) {
+    // The first task runs on the calling thread
+    executor =
+        Executors.newFixedThreadPool(
+            Math.max(maxTasks - 1, 1),
+            runnable -> {
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            });
+    futures = new Future<?>[maxTasks];
+  }
+
+  /**
+   * Runs the tasks concurrently and waits for all of them to finish. Exceptions thrown by a task
+   * are rethrown once every task has finished.
+   *
+   * @param tasks The tasks to run.
+   * @param deadlineSecs The expected time for all of the tasks.
+   * @return Whether all of the tasks finished before the deadline.
+   */
+  public boolean runAll(Runnable[] tasks, double deadlineSecs) {
+    long deadlineNanos = System.nanoTime() + (long) (deadlineSecs * 1e9);
+    for (int i = 1; i < tasks.length; i++) {
+      futures[i] = executor.submit(tasks[i]);
+    }
+    RuntimeException exception = null;
+    try {
+      tasks[0].run();
+    } catch (RuntimeException e) {
+      exception = e;
+    }
+
+    boolean onTime = System.nanoTime() <= deadlineNanos;
+    for (int i = 1; i < tasks.length; i++) {
+      try {
+        try {
+          futures[i].get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          onTime = false;
+          futures[i].get();
+        }
+      } catch (ExecutionException e) {
+        if (exception == null) {
+          exception =
+              e.getCause() instanceof RuntimeException
+                  ? (RuntimeException) e.getCause()
+                  : new RuntimeException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      futures[i] = null;
+    }
+    if (exception != null) {
+      throw exception;
+    }
+    return onTime;
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Constructs hardware IO implementations in parallel during startup. Device configuration mostly
+ * waits on CAN round trips, so configuring every device at once is much faster than one after
+ * another.
+ *
+ * <p>The time taken by each device and by the whole phase is logged under "StartupTiming" when the
+ * phase is finished. These are outputs rather than metadata, since devices are configured after
+ * {@link Logger#start()}, when metadata is no longer recorded.
+ */
+public class ParallelStartup {
+  private final String phaseName;
+  private final ExecutorService executor;
+  private final List<String> taskNames = new ArrayList<>();
+  private final Map<String, Double> taskDurationsMs = new ConcurrentHashMap<>();
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * Creates a startup phase.
+   *
+   * @param phaseName The name of the phase in the log.
+   * @param threadCount The number of devices to configure at once.
+   */
+  public ParallelStartup(String phaseName, int threadCount) {
+    this.phaseName = phaseName;
+    executor = Executors.newFixedThreadPool(threadCount);
+  }
+
+  /**
+   * Starts constructing an IO implementation.
+   *
+   * @param name The name of the device in the log.
+   * @param constructor Constructs and configures the device.
+   * @return The future result, to pass to {@link #get(Future)}.
+   */
+  public <T> Future<T> submit(String name, Supplier<T> constructor) {
+    taskNames.add(name);
+    return executor.submit(
+        () -> {
+          long taskStartNanos = System.nanoTime();
+          T result = constructor.get();
+          taskDurationsMs.put(name, (System.nanoTime() - taskStartNanos) / 1e6);
+          return result;
+        });
+  }
+
+  /** Waits for an IO implementation, rethrowing any exception thrown by its constructor. */
+  public static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Waits for every IO implementation, then logs the timing and stops the threads. Should be called
+   * from a finally block, so the threads are stopped even if a constructor threw.
+   */
+  public void finish() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow(); // Abandons any device that is still stuck
+    }
+    for (String name : taskNames) {
+      // Devices whose constructor threw are logged as -1
+      Logger.recordOutput(
+          "StartupTiming/" + phaseName + "/" + name + "Ms",
+          taskDurationsMs.getOrDefault(name, -1.0));
+    }
+    Logger.recordOutput(
+        "StartupTiming/" + phaseName + "/TotalMs", (System.nanoTime() - startNanos) / 1e6);
+  }
+}
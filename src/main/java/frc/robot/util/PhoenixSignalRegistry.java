@@ -0,0 +1,98 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.hardware.ParentDevice;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Refreshes the status signals of every Phoenix 6 device with one blocking call per CAN bus each
+ * cycle, instead of one call per IO implementation.
+ *
+ * <p>IO implementations register their signals when they are constructed and then read the cached
+ * values in "updateInputs". {@link #refreshAll()} must be called at the start of each cycle, before
+ * any subsystem reads its inputs. Signals used by the odometry threads must not be registered here,
+ * since they are refreshed by those threads.
+ */
+public class PhoenixSignalRegistry {
+  private final Map<String, BaseStatusSignal[]> busSignals = new LinkedHashMap<>();
+  private final Map<String, StatusCode> busStatuses = new LinkedHashMap<>();
+
+  private static PhoenixSignalRegistry instance = null;
+
+  public static synchronized PhoenixSignalRegistry getInstance() {
+    if (instance == null) {
+      instance = new PhoenixSignalRegistry();
+    }
+    return instance;
+  }
+
+  private PhoenixSignalRegistry() {}
+
+  /**
+   * Registers the signals of a device to be refreshed each cycle.
+   *
+   * @param device The device that the signals belong to, which determines the CAN bus.
+   * @param signals The signals to refresh.
+   * @return The registered signals, to check whether their latest refresh succeeded.
+   */
+  public synchronized SignalGroup register(ParentDevice device, BaseStatusSignal... signals) {
+    String bus = device.getNetwork().isEmpty() ? "rio" : device.getNetwork();
+    BaseStatusSignal[] oldSignals = busSignals.getOrDefault(bus, new BaseStatusSignal[0]);
+    BaseStatusSignal[] newSignals = new BaseStatusSignal[oldSignals.length + signals.length];
+    System.arraycopy(oldSignals, 0, newSignals, 0, oldSignals.length);
+    System.arraycopy(signals, 0, newSignals, oldSignals.length, signals.length);
+    busSignals.put(bus, newSignals);
+    busStatuses.put(bus, StatusCode.OK);
+    return new SignalGroup(signals);
+  }
+
+  /** Refreshes every registered signal. Should be called once at the start of each cycle. */
+  public synchronized void refreshAll() {
+    if (busSignals.isEmpty()) {
+      return;
+    }
+    long startTime = Logger.getRealTimestamp();
+    for (Map.Entry<String, BaseStatusSignal[]> entry : busSignals.entrySet()) {
+      busStatuses.put(entry.getKey(), BaseStatusSignal.refreshAll(entry.getValue()));
+    }
+    Logger.recordOutput("PhoenixSignals/RefreshMs", (Logger.getRealTimestamp() - startTime) / 1e3);
+    for (Map.Entry<String, StatusCode> entry : busStatuses.entrySet()) {
+      Logger.recordOutput("PhoenixSignals/" + entry.getKey() + "/OK", entry.getValue().isOK());
+    }
+  }
+
+  /** The signals registered by one call to {@link #register}. */
+  public static class SignalGroup {
+    private final BaseStatusSignal[] signals;
+
+    private SignalGroup(BaseStatusSignal[] signals) {
+      this.signals = signals;
+    }
+
+    /** Returns whether every signal in the group was received in the latest refresh. */
+    public boolean isOK() {
+      for (BaseStatusSignal signal : signals) {
+        if (!signal.getStatus().isOK()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
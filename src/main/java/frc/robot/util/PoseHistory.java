@@ -0,0 +1,134 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Fixed capacity history of timestamped 2D poses stored as primitives. Once full, the oldest pose
+ * is overwritten by each new one.
+ *
+ * <p>Queries use a binary search and linear interpolation between the poses on either side, so they
+ * take O(log n) time and allocate nothing. This class is not thread safe.
+ */
+public class PoseHistory {
+  private final int capacity;
+  private final double[] timestamps;
+  private final double[] xs;
+  private final double[] ys;
+  private final double[] thetas;
+  private int start = 0; // Slot of the oldest pose
+  private int size = 0;
+
+  public PoseHistory(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    timestamps = new double[capacity];
+    xs = new double[capacity];
+    ys = new double[capacity];
+    thetas = new double[capacity];
+  }
+
+  /** Returns the number of poses in the history. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Adds a pose to the history. Poses that are not newer than the latest pose are ignored.
+   *
+   * @param timestamp The timestamp of the pose in seconds.
+   * @param x The X position in meters.
+   * @param y The Y position in meters.
+   * @param thetaRad The rotation in radians.
+   */
+  public void add(double timestamp, double x, double y, double thetaRad) {
+    if (size > 0 && timestamp <= timestamps[slot(size - 1)]) {
+      return;
+    }
+    int slot;
+    if (size < capacity) {
+      slot = slot(size);
+      size++;
+    } else {
+      slot = start;
+      start = (start + 1) % capacity;
+    }
+    timestamps[slot] = timestamp;
+    xs[slot] = x;
+    ys[slot] = y;
+    thetas[slot] = thetaRad;
+  }
+
+  /** Removes all poses from the history. */
+  public void clear() {
+    start = 0;
+    size = 0;
+  }
+
+  /** Returns the timestamp of the oldest pose in seconds, or NaN if the history is empty. */
+  public double getOldestTimestamp() {
+    return size > 0 ? timestamps[start] : Double.NaN;
+  }
+
+  /** Returns the timestamp of the newest pose in seconds, or NaN if the history is empty. */
+  public double getNewestTimestamp() {
+    return size > 0 ? timestamps[slot(size - 1)] : Double.NaN;
+  }
+
+  /**
+   * Writes the pose at the timestamp to the output array as {x, y, theta}. Timestamps after the
+   * newest pose return the newest pose.
+   *
+   * @return False if the timestamp is before the oldest pose or the history is empty, in which case
+   *     the output array is not modified.
+   */
+  public boolean getPoseAt(double timestamp, double[] out) {
+    if (size == 0 || timestamp < timestamps[start]) {
+      return false;
+    }
+    int newest = slot(size - 1);
+    if (timestamp >= timestamps[newest]) {
+      out[0] = xs[newest];
+      out[1] = ys[newest];
+      out[2] = thetas[newest];
+      return true;
+    }
+
+    // Binary search for the poses on either side, by age order
+    int low = 0;
+    int high = size - 1;
+    while (high - low > 1) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[slot(mid)] <= timestamp) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+    int lowSlot = slot(low);
+    int highSlot = slot(high);
+    double t = (timestamp - timestamps[lowSlot]) / (timestamps[highSlot] - timestamps[lowSlot]);
+    out[0] = xs[lowSlot] + (xs[highSlot] - xs[lowSlot]) * t;
+    out[1] = ys[lowSlot] + (ys[highSlot] - ys[lowSlot]) * t;
+    out[2] = thetas[lowSlot] + MathUtil.angleModulus(thetas[highSlot] - thetas[lowSlot]) * t;
+    return true;
+  }
+
+  private int slot(int index) {
+    return (start + index) % capacity;
+  }
+}
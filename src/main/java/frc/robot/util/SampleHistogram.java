@@ -0,0 +1,113 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bin histogram that can be recorded from one thread and read from another without locking or
+ * allocating. Values above the last bin are counted in an overflow bin.
+ *
+ * <p>Readers take a snapshot with {@link #snapshot(Snapshot)}, which also resets the histogram so
+ * that each snapshot covers the window since the previous one.
+ */
+public class SampleHistogram {
+  private final double binWidth;
+  private final AtomicLongArray bins; // Last bin is overflow
+  private final AtomicLong maxBits = new AtomicLong(Double.doubleToLongBits(0.0));
+  private final AtomicLong sumBits = new AtomicLong(Double.doubleToLongBits(0.0));
+  private final long[] snapshotBins; // Owned by the snapshot thread
+
+  /** Summary of a histogram window, reused between snapshots. */
+  public static class Snapshot {
+    public long count = 0;
+    public double mean = 0.0;
+    public double p50 = 0.0;
+    public double p99 = 0.0;
+    public double max = 0.0;
+  }
+
+  /**
+   * Creates a new histogram.
+   *
+   * @param binWidth Width of each bin, in the units being recorded.
+   * @param binCount Number of bins before the overflow bin.
+   */
+  public SampleHistogram(double binWidth, int binCount) {
+    this.binWidth = binWidth;
+    bins = new AtomicLongArray(binCount + 1);
+    snapshotBins = new long[binCount + 1];
+  }
+
+  /** Records a value. Negative values are counted in the first bin. */
+  public void record(double value) {
+    int bin = (int) (Math.max(value, 0.0) / binWidth);
+    bins.incrementAndGet(Math.min(bin, bins.length() - 1));
+    addToDouble(sumBits, value);
+
+    long current = maxBits.get();
+    while (value > Double.longBitsToDouble(current)
+        && !maxBits.compareAndSet(current, Double.doubleToLongBits(value))) {
+      current = maxBits.get();
+    }
+  }
+
+  /**
+   * Writes a summary of the values recorded since the last snapshot and resets the histogram. Only
+   * one thread may take snapshots.
+   */
+  public void snapshot(Snapshot snapshot) {
+    // Samples recorded while the bins are being cleared are counted in either
+    // this window or the next one
+    long count = 0;
+    for (int i = 0; i < snapshotBins.length; i++) {
+      snapshotBins[i] = bins.getAndSet(i, 0);
+      count += snapshotBins[i];
+    }
+    double sum = Double.longBitsToDouble(sumBits.getAndSet(Double.doubleToLongBits(0.0)));
+    double max = Double.longBitsToDouble(maxBits.getAndSet(Double.doubleToLongBits(0.0)));
+
+    snapshot.count = count;
+    snapshot.mean = count > 0 ? sum / count : 0.0;
+    snapshot.p50 = Math.min(getPercentile(count, 0.5), max);
+    snapshot.p99 = Math.min(getPercentile(count, 0.99), max);
+    snapshot.max = max;
+  }
+
+  /** Returns the upper edge of the bin containing the percentile of the last snapshot. */
+  private double getPercentile(long count, double fraction) {
+    if (count == 0) {
+      return 0.0;
+    }
+    long target = (long) Math.ceil(count * fraction);
+    long cumulative = 0;
+    for (int i = 0; i < snapshotBins.length; i++) {
+      cumulative += snapshotBins[i];
+      if (cumulative >= target) {
+        return (i + 1) * binWidth;
+      }
+    }
+    return snapshotBins.length * binWidth;
+  }
+
+  private static void addToDouble(AtomicLong bits, double value) {
+    long current;
+    long next;
+    do {
+      current = bits.get();
+      next = Double.doubleToLongBits(Double.longBitsToDouble(current) + value);
+    } while (!bits.compareAndSet(current, next));
+  }
+}
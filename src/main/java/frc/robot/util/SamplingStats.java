@@ -0,0 +1,147 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Sampling quality statistics for a high rate sampling thread (e.g. an odometry thread or the
+ * flywheel sampler). The sampling thread records periods, CAN latencies and dropped or skipped
+ * samples. Each consumer of the samples (e.g. a module or the gyro) records the age of the samples
+ * it consumes separately, since every consumer sees the same samples.
+ *
+ * <p>The statistics are published as outputs once per second, each covering the window since the
+ * previous publish.
+ */
+public class SamplingStats {
+  private static final int PUBLISH_CYCLES = 50; // 1 Hz with a 20 ms loop
+
+  private final SampleHistogram periodMs = new SampleHistogram(0.25, 80);
+  private final SampleHistogram latencyMs = new SampleHistogram(0.25, 80);
+  private final Map<String, SampleAges> sampleAges = new LinkedHashMap<>(); // Guarded by this
+  private final AtomicLong sampleCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong invalidCount = new AtomicLong();
+  private final AtomicLong skippedCount = new AtomicLong();
+  private double lastSampleTimestamp = Double.NaN; // Owned by the sampling thread
+
+  private final SampleHistogram.Snapshot snapshot = new SampleHistogram.Snapshot();
+  private int cyclesSincePublish = 0;
+  private double lastPublishTimestamp = Double.NaN;
+  private long lastPublishSampleCount = 0;
+
+  /** Records a sample taken at the specified timestamp, in seconds (sampling thread only). */
+  public void recordSample(double timestamp) {
+    if (!Double.isNaN(lastSampleTimestamp)) {
+      periodMs.record((timestamp - lastSampleTimestamp) * 1000.0);
+    }
+    lastSampleTimestamp = timestamp;
+    sampleCount.incrementAndGet();
+  }
+
+  /** Records the CAN latency of a signal, in seconds. */
+  public void recordLatency(double latency) {
+    latencyMs.record(latency * 1000.0);
+  }
+
+  /** Records a sample that was dropped because the queues were full. */
+  public void recordDropped() {
+    droppedCount.incrementAndGet();
+  }
+
+  /** Records a sample that could not be read or was stale. */
+  public void recordInvalid() {
+    invalidCount.incrementAndGet();
+  }
+
+  /** Records sampling deadlines that were skipped because the thread fell behind. */
+  public void recordSkipped(int count) {
+    skippedCount.addAndGet(count);
+  }
+
+  /**
+   * Adds a consumer of the samples, whose sample ages are published under its name. Returns the
+   * existing recorder if the name was already added.
+   */
+  public synchronized SampleAges addConsumer(String name) {
+    return sampleAges.computeIfAbsent(name, (key) -> new SampleAges());
+  }
+
+  /**
+   * Publishes the statistics under the specified key if enough cycles have passed since the last
+   * publish. Should be called once per cycle from the main loop.
+   */
+  public void periodic(String key) {
+    if (++cyclesSincePublish < PUBLISH_CYCLES) {
+      return;
+    }
+    cyclesSincePublish = 0;
+
+    // Skip threads that never sampled (e.g. no devices registered)
+    long totalSamples = sampleCount.get();
+    if (totalSamples == 0) {
+      return;
+    }
+
+    double now = Logger.getRealTimestamp() / 1e6;
+    if (!Double.isNaN(lastPublishTimestamp)) {
+      Logger.recordOutput(
+          key + "/SampleRateHz",
+          (totalSamples - lastPublishSampleCount) / (now - lastPublishTimestamp));
+    }
+    lastPublishTimestamp = now;
+    lastPublishSampleCount = totalSamples;
+
+    publishHistogram(key + "/PeriodMs", periodMs);
+    publishHistogram(key + "/LatencyMs", latencyMs);
+    synchronized (this) {
+      for (Map.Entry<String, SampleAges> entry : sampleAges.entrySet()) {
+        publishHistogram(key + "/SampleAgeMs/" + entry.getKey(), entry.getValue().histogram);
+      }
+    }
+    Logger.recordOutput(key + "/TotalSamples", totalSamples);
+    Logger.recordOutput(key + "/DroppedSamples", droppedCount.get());
+    Logger.recordOutput(key + "/InvalidSamples", invalidCount.get());
+    Logger.recordOutput(key + "/SkippedSamples", skippedCount.get());
+  }
+
+  private void publishHistogram(String key, SampleHistogram histogram) {
+    histogram.snapshot(snapshot);
+    Logger.recordOutput(key + "/Mean", snapshot.mean);
+    Logger.recordOutput(key + "/P50", snapshot.p50);
+    Logger.recordOutput(key + "/P99", snapshot.p99);
+    Logger.recordOutput(key + "/Max", snapshot.max);
+  }
+
+  /** Records the age of the samples read by one consumer. */
+  public static class SampleAges {
+    private final SampleHistogram histogram = new SampleHistogram(1.0, 60);
+
+    private SampleAges() {}
+
+    /**
+     * Records the age of each consumed sample based on its timestamp. Should only be called by the
+     * consumer, once for each batch of samples.
+     */
+    public void record(double[] timestamps) {
+      double now = Logger.getRealTimestamp() / 1e6;
+      for (int i = 0; i < timestamps.length; i++) {
+        histogram.record((now - timestamps[i]) * 1000.0);
+      }
+    }
+  }
+}
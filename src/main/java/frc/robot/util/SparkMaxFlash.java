@@ -0,0 +1,56 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import com.revrobotics.CANSparkMax;
+import com.revrobotics.REVLibError;
+import edu.wpi.first.wpilibj.Preferences;
+
+/**
+ * Skips burning SparkMax settings to flash when the same settings were already burned.
+ *
+ * <p>Each caller describes its settings with a fingerprint string. After a successful burn, the
+ * fingerprint and the controller's firmware version are saved as a preference on the RIO under the
+ * controller's CAN ID. On later boots, the burn is skipped if both still match. The settings are
+ * still applied to the controller each boot, so only the slow (and wearing) flash write is skipped.
+ * Status frame periods are not saved to flash (and {@link CanBusBudget} changes them at runtime),
+ * so they are not part of a fingerprint. If a controller is replaced with one that has the same CAN
+ * ID and firmware, delete its "SparkMaxFlash/..." preference to force a burn.
+ *
+ * <p>Call this while the controller still has a nonzero CAN timeout, since reading the firmware
+ * version and confirming the burn both wait for a response.
+ */
+public class SparkMaxFlash {
+  private SparkMaxFlash() {}
+
+  /**
+   * Burns the current settings of a controller to flash, unless settings with the same fingerprint
+   * were already burned to it.
+   *
+   * @param sparkMax The controller to burn.
+   * @param fingerprint Describes every setting that is burned, changing when any of them change.
+   * @return Whether the flash was written.
+   */
+  public static boolean burnIfChanged(CANSparkMax sparkMax, String fingerprint) {
+    String key = "SparkMaxFlash/" + sparkMax.getDeviceId();
+    String value = fingerprint + "@" + sparkMax.getFirmwareString();
+    if (value.equals(Preferences.getString(key, ""))) {
+      return false;
+    }
+    if (sparkMax.burnFlash() == REVLibError.kOk) {
+      Preferences.setString(key, value);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import frc.robot.util.AllocationMeter;
+import org.junit.jupiter.api.Test;
+
+class OdometryIntegratorTest {
+  private static final int SAMPLES_PER_CYCLE = 5; // 250 Hz with a 20 ms loop
+  private static final double SAMPLE_PERIOD_SECS = 0.004;
+  private static final double HALF_TRACK_METERS = 0.3;
+
+  private final SwerveKinematics4 kinematics =
+      new SwerveKinematics4(
+          new Translation2d(HALF_TRACK_METERS, HALF_TRACK_METERS),
+          new Translation2d(HALF_TRACK_METERS, -HALF_TRACK_METERS),
+          new Translation2d(-HALF_TRACK_METERS, HALF_TRACK_METERS),
+          new Translation2d(-HALF_TRACK_METERS, -HALF_TRACK_METERS));
+  private final OdometryResampler resampler = new OdometryResampler();
+  private final OdometryIntegrator integrator = new OdometryIntegrator(kinematics);
+
+  // Inputs for one cycle, reused like the module input arrays
+  private final double[] timestamps = new double[SAMPLES_PER_CYCLE];
+  private final double[] distances = new double[SAMPLES_PER_CYCLE];
+  private final double[] angles = new double[SAMPLES_PER_CYCLE];
+  private final double[] yaws = new double[SAMPLES_PER_CYCLE];
+  private int cycle = 0;
+
+  // Outputs, kept as primitives so the consumer does not allocate
+  private int consumedCount = 0;
+  private double lastYawRad = 0.0;
+  private final OdometryIntegrator.SampleConsumer consumer =
+      (timestamp, yawRad, distancesMeters, anglesRad) -> {
+        consumedCount++;
+        lastYawRad = yawRad;
+      };
+
+  /** Feeds one cycle of samples of a robot driving forward while turning at 1 rad/s. */
+  private void runCycle(boolean useGyro) {
+    for (int i = 0; i < SAMPLES_PER_CYCLE; i++) {
+      double timestamp = (cycle * SAMPLES_PER_CYCLE + i + 1) * SAMPLE_PERIOD_SECS;
+      timestamps[i] = timestamp;
+      distances[i] = timestamp * 2.0;
+      angles[i] = 0.1;
+      yaws[i] = timestamp;
+    }
+    for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
+      resampler.addModuleSamples(moduleIndex, timestamps, distances, angles, SAMPLES_PER_CYCLE);
+    }
+    if (useGyro) {
+      resampler.addGyroSamples(timestamps, yaws, SAMPLES_PER_CYCLE);
+    }
+    resampler.update(useGyro);
+    integrator.integrate(resampler, consumer);
+    cycle++;
+  }
+
+  @Test
+  void usesGyroYawWhenAvailable() {
+    for (int i = 0; i < 10; i++) {
+      runCycle(true);
+    }
+    assertTrue(consumedCount > 0);
+    assertEquals(timestamps[SAMPLES_PER_CYCLE - 1], lastYawRad, 1e-9);
+    assertEquals(lastYawRad, integrator.getYawRad());
+  }
+
+  @Test
+  void integratesYawFromWheelsWithoutGyro() {
+    // Every module rolls the same way, so the robot translates without turning
+    for (int i = 0; i < 10; i++) {
+      runCycle(false);
+    }
+    assertTrue(consumedCount > 0);
+    assertEquals(0.0, integrator.getYawRad(), 1e-9);
+  }
+
+  /**
+   * Checks that steady-state integration allocates nothing per sample, from adding the samples to
+   * the resampler through the consumer.
+   *
+   * <p>Excluded: the consumer in Drive calls "SwerveDrivePoseEstimator.updateWithTime", which
+   * copies the module positions and allocates a pose, twist and interpolation record per sample,
+   * and keeps references to the rotations it is given. Those allocations are inside WPILib and are
+   * not measured here.
+   */
+  @Test
+  void allocatesNothingPerSample() {
+    double bytesPerCycle = AllocationMeter.measure(10_000, () -> runCycle(true));
+    double bytesPerSample = bytesPerCycle / SAMPLES_PER_CYCLE;
+    assertTrue(bytesPerSample < 1.0, "Allocated " + bytesPerSample + " bytes per sample");
+
+    bytesPerCycle = AllocationMeter.measure(10_000, () -> runCycle(false));
+    bytesPerSample = bytesPerCycle / SAMPLES_PER_CYCLE;
+    assertTrue(bytesPerSample < 1.0, "Allocated " + bytesPerSample + " bytes per sample");
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.system.plant.DCMotor;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import frc.robot.util.FixedStepMotorSim;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.littletonrobotics.junction.Logger;
+
+class SimOdometrySamplerTest {
+  private static final double PERIOD_SECS = 1.0 / Module.ODOMETRY_FREQUENCY;
+
+  // Overrunning and short cycles, with lengths that are not whole physics steps
+  private static final double[] CYCLE_SECS = {0.02, 0.027, 0.013, 0.0205, 0.04, 0.0195};
+  private static final int CYCLES = 60;
+
+  @BeforeAll
+  static void pauseTiming() {
+    HAL.initialize(500, 0);
+    SimHooks.pauseTiming();
+  }
+
+  @AfterAll
+  static void resumeTiming() {
+    SimHooks.resumeTiming();
+  }
+
+  @Test
+  void stepsPhysicsByElapsedTime() {
+    for (double stepSecs : new double[] {0.001, 0.0003}) {
+      SimRobot robot = new SimRobot(new SimOdometrySampler(stepSecs, 0.0, 0.0, 0.0));
+      robot.modules[0].setDriveVoltage(6.0);
+      FixedStepMotorSim reference = new FixedStepMotorSim(DCMotor.getNEO(1), 6.75, 0.025, stepSecs);
+      reference.setInputVoltage(6.0);
+
+      robot.readInputs(); // Starts the physics
+      double startTimestamp = getTimestamp();
+      int referenceSteps = 0;
+      for (int cycle = 0; cycle < CYCLES; cycle++) {
+        SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+        robot.readInputs(); // Every input is read each cycle, but the physics steps once
+
+        double elapsed = getTimestamp() - startTimestamp;
+        while (referenceSteps < (long) Math.floor(elapsed / stepSecs + 1e-6)) {
+          reference.step();
+          referenceSteps++;
+        }
+        assertEquals(reference.getPositionRad(), robot.moduleInputs[0].drivePositionRad, 1e-9);
+        assertEquals(
+            reference.getVelocityRadPerSec(), robot.moduleInputs[0].driveVelocityRadPerSec, 1e-9);
+      }
+    }
+  }
+
+  @Test
+  void samplesEveryPeriodAcrossIrregularCycles() {
+    SimRobot robot = new SimRobot(new SimOdometrySampler(0.0, 0.0, 0.0));
+    List<Double> moduleTimestamps = new ArrayList<>();
+    List<Double> gyroTimestamps = new ArrayList<>();
+
+    robot.readInputs();
+    double startTimestamp = getTimestamp();
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+      robot.readInputs();
+      double now = getTimestamp();
+      for (double timestamp : robot.moduleInputs[0].odometryTimestamps) {
+        assertTrue(timestamp <= now);
+        moduleTimestamps.add(timestamp);
+      }
+      for (double timestamp : robot.gyroInputs.odometryYawTimestamps) {
+        gyroTimestamps.add(timestamp);
+      }
+    }
+
+    // No samples are lost or repeated, no matter how long each cycle was
+    assertEquals(moduleTimestamps, gyroTimestamps);
+    for (int i = 1; i < moduleTimestamps.size(); i++) {
+      assertEquals(PERIOD_SECS, moduleTimestamps.get(i) - moduleTimestamps.get(i - 1), 1e-9);
+    }
+    int expectedCount = (int) Math.floor((getTimestamp() - startTimestamp) / PERIOD_SECS + 1e-6);
+    assertEquals(expectedCount, moduleTimestamps.size(), 1);
+  }
+
+  @Test
+  void deliversSamplesInOrderAfterLatency() {
+    double latencySecs = 0.002;
+    SimRobot robot = new SimRobot(new SimOdometrySampler(0.0005, latencySecs, 0.01));
+    double lastTimestamp = Double.NEGATIVE_INFINITY;
+    int count = 0;
+
+    robot.readInputs();
+    double startTimestamp = getTimestamp();
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+      robot.readInputs();
+      double now = getTimestamp();
+      for (double timestamp : robot.moduleInputs[0].odometryTimestamps) {
+        assertTrue(timestamp > lastTimestamp);
+        assertTrue(timestamp <= now - latencySecs);
+        lastTimestamp = timestamp;
+        count++;
+      }
+    }
+
+    // About one percent of the samples are dropped
+    double expectedCount = (getTimestamp() - startTimestamp) / PERIOD_SECS;
+    assertTrue(count > expectedCount * 0.95 && count < expectedCount, "Sample count " + count);
+  }
+
+  @Test
+  void integratesTruePoseFromChassisMotion() {
+    SimOdometrySampler sampler = new SimOdometrySampler(0.0, 0.0, 0.0);
+    SimRobot robot = new SimRobot(sampler);
+    sampler.setTruePose(new Pose2d(2.0, 3.0, Rotation2d.fromDegrees(90.0)));
+
+    // Turn every module forward in place (the absolute angles start at random), then drive
+    for (ModuleIOSim module : robot.modules) {
+      module.configureTurnPID(10.0, 0.0, 0.0);
+      module.setTurnPosition(
+          new Rotation2d(module.getTurnPositionRad() - module.getTurnAngleRad()));
+    }
+    robot.readInputs();
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+      robot.readInputs();
+    }
+    for (ModuleIOSim module : robot.modules) {
+      module.setDriveVoltage(6.0);
+    }
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+      robot.readInputs();
+    }
+
+    // Forward is along the field Y axis after the reset, which does not change the gyro
+    double distance = robot.moduleInputs[0].drivePositionRad * Module.WHEEL_RADIUS;
+    Pose2d truePose = sampler.getTruePose();
+    assertTrue(distance > 1.0);
+    assertEquals(2.0, truePose.getX(), 1e-3);
+    assertEquals(3.0 + distance, truePose.getY(), 1e-3);
+    assertEquals(Math.PI / 2.0, truePose.getRotation().getRadians(), 1e-3);
+    assertEquals(0.0, robot.gyroInputs.yawPosition.getRadians(), 1e-3);
+  }
+
+  private static double getTimestamp() {
+    return Logger.getTimestamp() / 1e6;
+  }
+
+  /** The simulated drive IO, read in the same way as by the drive subsystem. */
+  private static class SimRobot {
+    private final ModuleIOSim[] modules = new ModuleIOSim[4];
+    private final ModuleIOInputsAutoLogged[] moduleInputs = new ModuleIOInputsAutoLogged[4];
+    private final GyroIOSim gyro;
+    private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
+
+    private SimRobot(SimOdometrySampler sampler) {
+      gyro = new GyroIOSim(sampler);
+      for (int i = 0; i < 4; i++) {
+        modules[i] = new ModuleIOSim(sampler);
+        moduleInputs[i] = new ModuleIOInputsAutoLogged();
+      }
+    }
+
+    private void readInputs() {
+      gyro.updateInputs(gyroInputs);
+      for (int i = 0; i < 4; i++) {
+        modules[i].updateInputs(moduleInputs[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import frc.robot.util.AllocationMeter;
+import frc.robot.util.DoubleRingBuffer;
+import java.util.OptionalDouble;
+import org.junit.jupiter.api.Test;
+
+class SparkMaxOdometryThreadTest {
+  private static final int SIGNAL_COUNT = 8; // Drive and turn positions of four modules
+
+  @Test
+  void queuesSamplesWithoutAllocating() {
+    HAL.initialize(500, 0);
+    SparkMaxOdometryThread thread = SparkMaxOdometryThread.getInstance();
+    DoubleRingBuffer[] queues = new DoubleRingBuffer[SIGNAL_COUNT];
+    for (int i = 0; i < SIGNAL_COUNT; i++) {
+      // REVLib reports each reading as a new OptionalDouble, which is outside this measurement
+      OptionalDouble value = OptionalDouble.of(i);
+      queues[i] = thread.registerSignal(() -> value);
+    }
+    DoubleRingBuffer timestamps = thread.makeTimestampQueue();
+    double[] drained = new double[timestamps.capacity()];
+
+    // The notifier is not started, so the samples are only taken here
+    thread.periodic();
+    thread.periodic();
+    for (int i = 0; i < SIGNAL_COUNT; i++) {
+      assertEquals(2, queues[i].drainTo(drained));
+      assertEquals(i, drained[1]);
+    }
+    assertEquals(2, timestamps.drainTo(drained));
+    assertTrue(drained[1] >= drained[0]);
+
+    double bytesPerSample =
+        AllocationMeter.measure(
+            10_000,
+            () -> {
+              thread.periodic();
+              for (DoubleRingBuffer queue : queues) {
+                queue.drainTo(drained);
+              }
+              timestamps.drainTo(drained);
+            });
+    assertTrue(bytesPerSample < 1.0, "Allocated " + bytesPerSample + " bytes per sample");
+  }
+}
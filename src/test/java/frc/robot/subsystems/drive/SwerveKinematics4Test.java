@@ -0,0 +1,191 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import frc.robot.util.AllocationMeter;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class SwerveKinematics4Test {
+  private static final int TRIALS = 10_000;
+  private static final double EPSILON = 1e-9;
+
+  private final Random random = new Random(6328);
+
+  @Test
+  void matchesWpilibForSquareChassis() {
+    compareWithWpilib(squareTranslations());
+  }
+
+  @Test
+  void matchesWpilibForIrregularChassis() {
+    // Off-center modules exercise the full pseudo-inverse, not just the symmetric case
+    for (int chassis = 0; chassis < 10; chassis++) {
+      compareWithWpilib(
+          new Translation2d(0.4 + jitter(), 0.25 + jitter()),
+          new Translation2d(0.35 + jitter(), -0.3 + jitter()),
+          new Translation2d(-0.2 + jitter(), 0.3 + jitter()),
+          new Translation2d(-0.3 + jitter(), -0.2 + jitter()));
+    }
+  }
+
+  @Test
+  void holdsHeadingsForZeroVelocityLikeWpilib() {
+    Translation2d[] translations = squareTranslations();
+    SwerveKinematics4 kinematics = new SwerveKinematics4(translations);
+    SwerveDriveKinematics wpilib = new SwerveDriveKinematics(translations);
+    double[] speeds = new double[4];
+    double[] angles = new double[4];
+
+    kinematics.toModuleStates(1.0, 2.0, 0.5, speeds, angles);
+    wpilib.toSwerveModuleStates(new ChassisSpeeds(1.0, 2.0, 0.5));
+    kinematics.toModuleStates(0.0, 0.0, 0.0, speeds, angles);
+    SwerveModuleState[] expected = wpilib.toSwerveModuleStates(new ChassisSpeeds());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(0.0, speeds[i]);
+      assertEquals(expected[i].angle.getRadians(), angles[i], EPSILON);
+    }
+  }
+
+  @Test
+  void rejectsCollinearModules() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new SwerveKinematics4(
+                new Translation2d(0.0, 0.0),
+                new Translation2d(1.0, 0.0),
+                new Translation2d(2.0, 0.0),
+                new Translation2d(3.0, 0.0)));
+  }
+
+  @Test
+  void benchmarkAgainstWpilib() {
+    Translation2d[] translations = squareTranslations();
+    SwerveKinematics4 kinematics = new SwerveKinematics4(translations);
+    SwerveDriveKinematics wpilib = new SwerveDriveKinematics(translations);
+    int runs = 100_000;
+
+    // One cycle of a 250 Hz drive: five odometry twists and one setpoint
+    double[] distances = {0.01, 0.011, 0.009, 0.0105};
+    double[] angles = {0.1, 0.12, 0.09, 0.11};
+    double[] out = new double[3];
+    double[] speedsOut = new double[4];
+    double[] anglesOut = new double[4];
+    double[] sink = new double[1];
+    Runnable primitiveCycle =
+        () -> {
+          for (int i = 0; i < 5; i++) {
+            kinematics.toTwist(distances, angles, out);
+            sink[0] += out[0];
+          }
+          kinematics.toModuleStates(1.0 + sink[0] * 1e-12, 0.5, 0.2, speedsOut, anglesOut);
+          sink[0] += speedsOut[0];
+        };
+    SwerveModulePosition[] deltas = new SwerveModulePosition[4];
+    for (int i = 0; i < 4; i++) {
+      deltas[i] = new SwerveModulePosition(distances[i], new Rotation2d(angles[i]));
+    }
+    Runnable wpilibCycle =
+        () -> {
+          for (int i = 0; i < 5; i++) {
+            sink[0] += wpilib.toTwist2d(deltas).dx;
+          }
+          SwerveModuleState[] states =
+              wpilib.toSwerveModuleStates(new ChassisSpeeds(1.0 + sink[0] * 1e-12, 0.5, 0.2));
+          sink[0] += states[0].speedMetersPerSecond;
+        };
+
+    double primitiveBytes = AllocationMeter.measure(runs, primitiveCycle);
+    double wpilibBytes = AllocationMeter.measure(runs, wpilibCycle);
+    double primitiveMicros = AllocationMeter.timeMicros(runs, primitiveCycle);
+    double wpilibMicros = AllocationMeter.timeMicros(runs, wpilibCycle);
+    String result =
+        String.format(
+            "Per cycle: primitive %.0f B %.2f us, WPILib %.0f B %.2f us",
+            primitiveBytes, primitiveMicros, wpilibBytes, wpilibMicros);
+
+    assertTrue(primitiveBytes < 1.0, result);
+    assertTrue(wpilibBytes > primitiveBytes, result);
+  }
+
+  /** Compares both directions of the kinematics with WPILib over random states. */
+  private void compareWithWpilib(Translation2d... translations) {
+    SwerveKinematics4 kinematics = new SwerveKinematics4(translations);
+    SwerveDriveKinematics wpilib = new SwerveDriveKinematics(translations);
+    double[] magnitudes = new double[4];
+    double[] angles = new double[4];
+    double[] out = new double[3];
+    SwerveModulePosition[] deltas = new SwerveModulePosition[4];
+    SwerveModuleState[] states = new SwerveModuleState[4];
+
+    for (int trial = 0; trial < TRIALS; trial++) {
+      // Forward kinematics with arbitrary (not necessarily consistent) module states
+      for (int i = 0; i < 4; i++) {
+        magnitudes[i] = random.nextDouble() * 10.0 - 5.0;
+        angles[i] = random.nextDouble() * 4.0 * Math.PI - 2.0 * Math.PI;
+        deltas[i] = new SwerveModulePosition(magnitudes[i], new Rotation2d(angles[i]));
+        states[i] = new SwerveModuleState(magnitudes[i], new Rotation2d(angles[i]));
+      }
+      kinematics.toTwist(magnitudes, angles, out);
+      Twist2d twist = wpilib.toTwist2d(deltas);
+      assertEquals(twist.dx, out[0], EPSILON);
+      assertEquals(twist.dy, out[1], EPSILON);
+      assertEquals(twist.dtheta, out[2], EPSILON);
+
+      kinematics.toChassisSpeeds(magnitudes, angles, out);
+      ChassisSpeeds speeds = wpilib.toChassisSpeeds(states);
+      assertEquals(speeds.vxMetersPerSecond, out[0], EPSILON);
+      assertEquals(speeds.vyMetersPerSecond, out[1], EPSILON);
+      assertEquals(speeds.omegaRadiansPerSecond, out[2], EPSILON);
+
+      // Inverse kinematics
+      double vx = random.nextDouble() * 10.0 - 5.0;
+      double vy = random.nextDouble() * 10.0 - 5.0;
+      double omega = random.nextDouble() * 20.0 - 10.0;
+      kinematics.toModuleStates(vx, vy, omega, magnitudes, angles);
+      SwerveModuleState[] expected = wpilib.toSwerveModuleStates(new ChassisSpeeds(vx, vy, omega));
+      for (int i = 0; i < 4; i++) {
+        assertEquals(expected[i].speedMetersPerSecond, magnitudes[i], EPSILON);
+        assertEquals(
+            0.0, MathUtil.angleModulus(expected[i].angle.getRadians() - angles[i]), EPSILON);
+      }
+    }
+  }
+
+  private double jitter() {
+    return random.nextDouble() * 0.1 - 0.05;
+  }
+
+  private static Translation2d[] squareTranslations() {
+    return new Translation2d[] {
+      new Translation2d(0.3, 0.3),
+      new Translation2d(0.3, -0.3),
+      new Translation2d(-0.3, 0.3),
+      new Translation2d(-0.3, -0.3)
+    };
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.flywheel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.littletonrobotics.junction.Logger;
+
+class FlywheelIOSimTest {
+  private static final double PERIOD_SECS = 1.0 / FlywheelSampler.FREQUENCY;
+
+  // Overrunning and short cycles, with lengths that are not whole physics steps
+  private static final double[] CYCLE_SECS = {0.02, 0.027, 0.013, 0.0205, 0.04, 0.0195};
+  private static final int CYCLES = 60;
+
+  @BeforeAll
+  static void pauseTiming() {
+    HAL.initialize(500, 0);
+    SimHooks.pauseTiming();
+  }
+
+  @AfterAll
+  static void resumeTiming() {
+    SimHooks.resumeTiming();
+  }
+
+  @Test
+  void samplesEveryPeriodAcrossIrregularCycles() {
+    for (double stepSecs : new double[] {0.001, 0.0003}) {
+      FlywheelIOSim io = new FlywheelIOSim(stepSecs);
+      FlywheelIO.FlywheelIOInputs inputs = new FlywheelIO.FlywheelIOInputs();
+      double lastTimestamp = Double.NaN;
+      int count = 0;
+
+      io.updateInputs(inputs); // Starts the physics
+      double startTimestamp = getTimestamp();
+      for (int cycle = 0; cycle < CYCLES; cycle++) {
+        SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+        io.updateInputs(inputs);
+        for (double timestamp : inputs.sampleTimestamps) {
+          assertTrue(timestamp <= getTimestamp() + 1e-9); // Within the microsecond rounding
+          if (count > 0) {
+            assertEquals(PERIOD_SECS, timestamp - lastTimestamp, 1e-9);
+          }
+          lastTimestamp = timestamp;
+          count++;
+        }
+      }
+
+      // No samples are lost or repeated, no matter how long each cycle was
+      int expectedCount = (int) Math.floor((getTimestamp() - startTimestamp) / PERIOD_SECS + 1e-6);
+      assertEquals(expectedCount, count, 1, stepSecs + " s steps");
+    }
+  }
+
+  @Test
+  void settlesRegardlessOfStepRate() {
+    double[] velocities = new double[2];
+    double[] stepSecs = {0.001, 0.0005};
+    for (int i = 0; i < stepSecs.length; i++) {
+      FlywheelIOSim io = new FlywheelIOSim(stepSecs[i]);
+      FlywheelIO.FlywheelIOInputs inputs = new FlywheelIO.FlywheelIOInputs();
+      io.configurePID(0.5, 0.0, 0.0);
+      io.setVelocity(200.0, 6.0);
+      io.updateInputs(inputs);
+      for (int cycle = 0; cycle < 50; cycle++) {
+        SimHooks.stepTiming(CYCLE_SECS[cycle % CYCLE_SECS.length]);
+        io.updateInputs(inputs);
+      }
+      velocities[i] = inputs.velocityRadPerSec;
+    }
+
+    assertEquals(200.0, velocities[0], 1.0);
+    assertEquals(velocities[0], velocities[1], 0.1);
+  }
+
+  private static double getTimestamp() {
+    return Logger.getTimestamp() / 1e6;
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.flywheel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import frc.robot.Constants;
+import java.util.function.DoubleConsumer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class FlywheelTest {
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  private static final double SETTLED_TOLERANCE_RPM = 30.0;
+  private static final int SHOT_COUNT = 3;
+
+  @BeforeAll
+  static void pauseTiming() {
+    HAL.initialize(500, 0);
+    SimHooks.pauseTiming();
+  }
+
+  @AfterAll
+  static void resumeTiming() {
+    SimHooks.resumeTiming();
+  }
+
+  @Test
+  void boostSpinsUpAtLeastAsFast() {
+    // The default loop is also saturated for most of the spin-up, so boost cannot do much better
+    for (double velocityRPM : new double[] {1000.0, 2000.0, 3000.0}) {
+      Flywheel flywheel = new Flywheel(new FlywheelIOSim(), Constants.Mode.SIM);
+      int defaultCycles = spinUp(flywheel, flywheel::runVelocity, velocityRPM);
+      Flywheel boosted = new Flywheel(new FlywheelIOSim(), Constants.Mode.SIM);
+      int boostCycles = spinUp(boosted, boosted::runVelocityWithBoost, velocityRPM);
+
+      assertTrue(
+          boostCycles <= defaultCycles,
+          String.format(
+              "Spin-up to %.0f RPM: default %d cycles, boost %d cycles",
+              velocityRPM, defaultCycles, boostCycles));
+    }
+  }
+
+  @Test
+  void boostRecoversFasterFromShots() {
+    // Below about 2500 RPM, the default loop backs off before the dip of a shot is recovered
+    for (double velocityRPM : new double[] {1000.0, 1500.0, 2000.0}) {
+      Flywheel flywheel = new Flywheel(new FlywheelIOSim(), Constants.Mode.SIM);
+      double defaultSecs = meanRecoverySecs(flywheel, flywheel::runVelocity, velocityRPM);
+      Flywheel boosted = new Flywheel(new FlywheelIOSim(), Constants.Mode.SIM);
+      double boostSecs = meanRecoverySecs(boosted, boosted::runVelocityWithBoost, velocityRPM);
+
+      assertTrue(
+          boostSecs < defaultSecs,
+          String.format(
+              "Recovery at %.0f RPM: default %.1f ms, boost %.1f ms",
+              velocityRPM, defaultSecs * 1e3, boostSecs * 1e3));
+    }
+  }
+
+  @Test
+  void boostRecoversNoSlowerAtHighVelocity() {
+    Flywheel flywheel = new Flywheel(new FlywheelIOSim(), Constants.Mode.SIM);
+    double defaultSecs = meanRecoverySecs(flywheel, flywheel::runVelocity, 3000.0);
+    Flywheel boosted = new Flywheel(new FlywheelIOSim(), Constants.Mode.SIM);
+    double boostSecs = meanRecoverySecs(boosted, boosted::runVelocityWithBoost, 3000.0);
+
+    assertTrue(
+        boostSecs <= defaultSecs,
+        String.format(
+            "Recovery at 3000 RPM: default %.1f ms, boost %.1f ms",
+            defaultSecs * 1e3, boostSecs * 1e3));
+  }
+
+  /** Runs the flywheel from rest and returns the number of cycles until it is settled. */
+  private static int spinUp(Flywheel flywheel, DoubleConsumer run, double velocityRPM) {
+    run.accept(velocityRPM);
+    int cycles = 0;
+    do {
+      cycle(flywheel);
+      cycles++;
+    } while (Math.abs(flywheel.getVelocityRPM() - velocityRPM) >= SETTLED_TOLERANCE_RPM
+        && cycles < 500);
+    assertTrue(cycles < 500, "Did not reach " + velocityRPM + " RPM");
+    return cycles;
+  }
+
+  /** Spins up the flywheel, simulates several shots and returns the mean recovery time. */
+  private static double meanRecoverySecs(
+      Flywheel flywheel, DoubleConsumer run, double velocityRPM) {
+    spinUp(flywheel, run, velocityRPM);
+    double totalSecs = 0.0;
+    for (int shot = 0; shot < SHOT_COUNT; shot++) {
+      for (int i = 0; i < 25; i++) {
+        cycle(flywheel); // Settle before the shot
+      }
+      flywheel.simulateShot();
+      int cycles = 0;
+      do {
+        cycle(flywheel);
+        cycles++;
+      } while ((flywheel.getShotCount() <= shot || flywheel.isRecoveringFromShot())
+          && cycles < 100);
+
+      assertEquals(shot + 1, flywheel.getShotCount());
+      assertFalse(flywheel.isRecoveringFromShot());
+      totalSecs += flywheel.getLastShotRecoverySecs();
+    }
+    return totalSecs / SHOT_COUNT;
+  }
+
+  private static void cycle(Flywheel flywheel) {
+    SimHooks.stepTiming(LOOP_PERIOD_SECS);
+    flywheel.periodic();
+  }
+}
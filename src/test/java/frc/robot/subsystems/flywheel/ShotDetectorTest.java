@@ -0,0 +1,197 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.flywheel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import frc.robot.util.AllocationMeter;
+import org.junit.jupiter.api.Test;
+
+class ShotDetectorTest {
+  private static final double SAMPLE_PERIOD_SECS = 1.0 / 500.0;
+  private static final double SETPOINT = 400.0; // rad/s
+  private static final double DIP_THRESHOLD = 10.0;
+  private static final double TOLERANCE = 3.0;
+  private static final double SETTLE_SECS = 0.1;
+  private static final double DIP_DEPTH = 40.0;
+  private static final double RECOVERY_TIME_CONSTANT_SECS = 0.03;
+
+  private final ShotDetector detector = new ShotDetector(DIP_THRESHOLD, TOLERANCE, SETTLE_SECS);
+  private double timestamp = 0.0;
+  private int shotsStarted = 0;
+
+  @Test
+  void detectsDipAndRecovery() {
+    hold(SETPOINT, 0.2);
+    double shotTime = timestamp + SAMPLE_PERIOD_SECS;
+    dipAndRecover();
+
+    assertEquals(1, shotsStarted);
+    assertEquals(1, detector.getShotCount());
+    assertFalse(detector.isRecovering());
+    // The first sample of the dip is already past the threshold
+    assertEquals(shotTime, detector.getLastShotTimestamp(), 1e-9);
+    assertEquals(DIP_DEPTH, detector.getLastDipRadPerSec(), 1e-9);
+
+    // The exponential recovery is within the tolerance after tau * ln(depth / tolerance)
+    double expectedRecovery =
+        SAMPLE_PERIOD_SECS + RECOVERY_TIME_CONSTANT_SECS * Math.log(DIP_DEPTH / TOLERANCE);
+    assertEquals(expectedRecovery, detector.getLastRecoverySecs(), SAMPLE_PERIOD_SECS);
+  }
+
+  @Test
+  void reportsRecoveringDuringDip() {
+    hold(SETPOINT, 0.2);
+    addSample(SETPOINT - 20.0, SETPOINT);
+    addSample(SETPOINT - DIP_DEPTH, SETPOINT);
+
+    assertTrue(detector.isRecovering());
+    assertTrue(Double.isNaN(detector.getLastRecoverySecs()));
+  }
+
+  @Test
+  void detectsGradualDip() {
+    // The velocity falls 2 rad/s per sample, so it takes several samples to pass the threshold
+    hold(SETPOINT, 0.2);
+    double velocity = SETPOINT;
+    double dipStart = Double.NaN;
+    for (int i = 0; i < 10; i++) {
+      velocity -= 2.0;
+      addSample(velocity, SETPOINT);
+      if (Double.isNaN(dipStart) && SETPOINT - velocity > TOLERANCE) {
+        dipStart = timestamp;
+      }
+    }
+    while (velocity < SETPOINT) {
+      velocity = Math.min(velocity + 0.5, SETPOINT);
+      addSample(velocity, SETPOINT);
+    }
+
+    assertEquals(1, detector.getShotCount());
+    assertEquals(dipStart, detector.getLastShotTimestamp(), 1e-9); // When the velocity left
+    assertEquals(20.0, detector.getLastDipRadPerSec(), 1e-9);
+    assertFalse(detector.isRecovering());
+  }
+
+  @Test
+  void ignoresSlowSag() {
+    hold(SETPOINT, 0.2);
+    for (double velocity = SETPOINT; velocity > SETPOINT - DIP_DEPTH; velocity -= 0.05) {
+      addSample(velocity, SETPOINT);
+    }
+
+    assertEquals(0, detector.getShotCount());
+  }
+
+  @Test
+  void resettlesAfterSetpointChange() {
+    hold(SETPOINT, 0.2);
+    // Still within the tolerance of the new setpoint, but no longer known to be settled
+    addSample(SETPOINT, SETPOINT + 1.0);
+    addSample(SETPOINT - DIP_DEPTH, SETPOINT + 1.0);
+
+    assertEquals(0, detector.getShotCount());
+  }
+
+  @Test
+  void ignoresDipBeforeSettled() {
+    hold(SETPOINT, SETTLE_SECS / 2.0);
+    dipAndRecover();
+
+    assertEquals(0, detector.getShotCount());
+  }
+
+  @Test
+  void ignoresSpinUp() {
+    // A setpoint change looks like a large error, but the detector only arms once settled
+    for (double velocity = 0.0; velocity < SETPOINT; velocity += 2.0) {
+      addSample(velocity, SETPOINT);
+    }
+    hold(SETPOINT, 0.2);
+
+    assertEquals(0, detector.getShotCount());
+  }
+
+  @Test
+  void ignoresNoiseWithinTolerance() {
+    hold(SETPOINT, 0.2);
+    for (int i = 0; i < 1000; i++) {
+      addSample(SETPOINT + (i % 2 == 0 ? 1.0 : -1.0) * (TOLERANCE * 0.9), SETPOINT);
+    }
+
+    assertEquals(0, detector.getShotCount());
+  }
+
+  @Test
+  void countsConsecutiveShots() {
+    hold(SETPOINT, 0.2);
+    dipAndRecover();
+    hold(SETPOINT, 0.05); // Already settled, so the next dip counts without waiting
+    dipAndRecover();
+
+    assertEquals(2, shotsStarted);
+    assertEquals(2, detector.getShotCount());
+  }
+
+  @Test
+  void resetsWithoutSetpoint() {
+    hold(SETPOINT, 0.2);
+    addSample(SETPOINT, Double.NaN);
+    dipAndRecover();
+
+    assertEquals(0, detector.getShotCount());
+  }
+
+  @Test
+  void allocatesNothingPerSample() {
+    double bytes =
+        AllocationMeter.measure(
+            1_000,
+            () -> {
+              hold(SETPOINT, 0.2);
+              dipAndRecover();
+            });
+
+    assertTrue(bytes < 1.0, "Allocated " + bytes + " bytes per shot");
+  }
+
+  /** Adds samples at a constant velocity for a duration. */
+  private void hold(double velocity, double durationSecs) {
+    int count = (int) Math.round(durationSecs / SAMPLE_PERIOD_SECS);
+    for (int i = 0; i < count; i++) {
+      addSample(velocity, SETPOINT);
+    }
+  }
+
+  /**
+   * Adds a shot: the velocity drops linearly to the dip depth over 4 ms (two samples), then
+   * recovers exponentially.
+   */
+  private void dipAndRecover() {
+    addSample(SETPOINT - DIP_DEPTH / 2.0, SETPOINT);
+    addSample(SETPOINT - DIP_DEPTH, SETPOINT);
+    for (double t = SAMPLE_PERIOD_SECS; t < 0.3; t += SAMPLE_PERIOD_SECS) {
+      addSample(SETPOINT - DIP_DEPTH * Math.exp(-t / RECOVERY_TIME_CONSTANT_SECS), SETPOINT);
+    }
+  }
+
+  private void addSample(double velocity, double setpoint) {
+    timestamp += SAMPLE_PERIOD_SECS;
+    if (detector.addSample(timestamp, velocity, setpoint)) {
+      shotsStarted++;
+    }
+  }
+}
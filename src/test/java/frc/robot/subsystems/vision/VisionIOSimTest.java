@@ -0,0 +1,143 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.vision;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class VisionIOSimTest {
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  private static final int CYCLES = 150; // 3 seconds
+
+  @BeforeAll
+  static void pauseTiming() {
+    HAL.initialize(500, 0);
+    SimHooks.pauseTiming();
+  }
+
+  @AfterAll
+  static void resumeTiming() {
+    SimHooks.resumeTiming();
+  }
+
+  @Test
+  void deliversDelayedFramesAtCameraRate() {
+    Pose2d truePose = new Pose2d(5.0, 3.0, Rotation2d.fromDegrees(30.0));
+    VisionIOSim camera = new VisionIOSim("Test", () -> truePose, 0.0, 6328);
+    VisionIOInputsAutoLogged inputs = new VisionIOInputsAutoLogged();
+
+    int frameCount = 0;
+    int exactCount = 0;
+    double lastTimestamp = Double.NEGATIVE_INFINITY;
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      SimHooks.stepTiming(LOOP_PERIOD_SECS);
+      camera.updateInputs(inputs);
+      double now = Timer.getFPGATimestamp();
+
+      assertTrue(inputs.connected);
+      for (int i = 0; i < inputs.timestamps.length; i++) {
+        // Frames arrive in capture order, only once their latency has passed
+        assertTrue(inputs.timestamps[i] > lastTimestamp);
+        assertTrue(inputs.timestamps[i] <= now - 0.035 + 1e-6);
+        lastTimestamp = inputs.timestamps[i];
+
+        assertTrue(inputs.tagCounts[i] >= 1 && inputs.tagCounts[i] <= 3);
+        if (inputs.tagCounts[i] > 1) {
+          assertEquals(0.0, inputs.ambiguities[i]);
+        }
+        Pose3d pose = inputs.robotPoses[i];
+        if (pose.toPose2d().getTranslation().getDistance(truePose.getTranslation()) < 1e-9) {
+          exactCount++;
+          assertEquals(0.0, pose.getZ(), 1e-9);
+          assertEquals(truePose.getRotation().getRadians(), pose.getRotation().getZ(), 1e-9);
+        }
+        frameCount++;
+      }
+    }
+
+    // 30 fps over 3 seconds, minus the frames still in flight at the end
+    assertTrue(frameCount >= 87 && frameCount <= 90, "Frame count " + frameCount);
+    // Without noise, every frame except the rare outliers is exact
+    assertTrue(exactCount >= frameCount - 6, "Exact count " + exactCount);
+  }
+
+  @Test
+  void outliersAreRejectedByVision() {
+    Pose2d truePose = new Pose2d(5.0, 3.0, Rotation2d.fromDegrees(30.0));
+    VisionIOSim simCamera = new VisionIOSim("Test", () -> truePose, 0.02, 6328);
+    int[] outlierCount = new int[1];
+    VisionIO camera =
+        new VisionIO() {
+          @Override
+          public void updateInputs(VisionIOInputs inputs) {
+            simCamera.updateInputs(inputs);
+            for (Pose3d pose : inputs.robotPoses) {
+              if (getError(pose.toPose2d(), truePose) > 1.0) {
+                outlierCount[0]++;
+              }
+            }
+          }
+        };
+    List<Pose2d> acceptedPoses = new ArrayList<>();
+    Vision.Estimator estimator =
+        new Vision.Estimator() {
+          @Override
+          public boolean getPoseAt(double timestamp, double[] out) {
+            out[0] = truePose.getX();
+            out[1] = truePose.getY();
+            out[2] = truePose.getRotation().getRadians();
+            return true;
+          }
+
+          @Override
+          public void addVisionMeasurement(
+              Pose2d visionPose, double timestamp, Matrix<N3, N1> stdDevs) {
+            acceptedPoses.add(visionPose);
+          }
+        };
+    Vision vision = new Vision(estimator, camera, new VisionIO() {});
+
+    for (int cycle = 0; cycle < CYCLES * 10; cycle++) {
+      SimHooks.stepTiming(LOOP_PERIOD_SECS);
+      vision.periodic();
+    }
+
+    // About 2% of the 900 frames are outliers, and a quarter of the single tag results are rejected
+    // as ambiguous
+    assertTrue(outlierCount[0] >= 5, "Outlier count " + outlierCount[0]);
+    assertTrue(acceptedPoses.size() > 700, "Accepted count " + acceptedPoses.size());
+    for (Pose2d pose : acceptedPoses) {
+      assertTrue(getError(pose, truePose) < 0.5, "Accepted " + pose);
+    }
+  }
+
+  private static double getError(Pose2d pose, Pose2d truePose) {
+    return pose.getTranslation().getDistance(truePose.getTranslation());
+  }
+}
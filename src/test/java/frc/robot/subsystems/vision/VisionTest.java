@@ -0,0 +1,227 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.vision;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class VisionTest {
+  private final FakeCamera front = new FakeCamera();
+  private final FakeCamera back = new FakeCamera();
+  private final FakeEstimator estimator = new FakeEstimator();
+  private final Vision vision = new Vision(estimator, front, back);
+
+  @BeforeAll
+  static void initializeHal() {
+    HAL.initialize(500, 0);
+  }
+
+  @Test
+  void acceptsGoodMultiTagResult() {
+    front.add(1.0, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    vision.periodic();
+
+    assertEquals(1, estimator.poses.size());
+    assertEquals(3.0, estimator.poses.get(0).getX(), 1e-9);
+    assertEquals(4.0, estimator.poses.get(0).getY(), 1e-9);
+    assertEquals(1.0, estimator.timestamps.get(0), 1e-9);
+  }
+
+  @Test
+  void rejectsAmbiguousSingleTagResult() {
+    estimator.reference = new double[] {3.0, 4.0, 0.0};
+    front.add(1.0, pose(3.0, 4.0, 0.0), 0.35, 1, 2.0);
+    front.add(1.1, pose(3.0, 4.0, 0.0), 0.25, 1, 2.0);
+    vision.periodic();
+
+    assertEquals(1, estimator.poses.size());
+    assertEquals(1.1, estimator.timestamps.get(0), 1e-9);
+  }
+
+  @Test
+  void ignoresAmbiguityOfMultiTagResult() {
+    front.add(1.0, pose(3.0, 4.0, 0.0), 0.9, 3, 2.0);
+    vision.periodic();
+
+    assertEquals(1, estimator.poses.size());
+  }
+
+  @Test
+  void rejectsResultsOffTheFieldOrAboveTheFloor() {
+    front.add(1.0, pose(-0.5, 4.0, 0.0), 0.0, 2, 2.0);
+    front.add(1.1, pose(17.0, 4.0, 0.0), 0.0, 2, 2.0);
+    front.add(1.2, pose(3.0, -0.5, 0.0), 0.0, 2, 2.0);
+    front.add(1.3, pose(3.0, 8.5, 0.0), 0.0, 2, 2.0);
+    front.add(1.4, pose(3.0, 4.0, 1.0), 0.0, 2, 2.0);
+    front.add(1.5, pose(3.0, 4.0, -1.0), 0.0, 2, 2.0);
+    vision.periodic();
+
+    assertEquals(0, estimator.poses.size());
+  }
+
+  @Test
+  void rejectsSingleTagJumpFromOdometry() {
+    estimator.reference = new double[] {3.0, 4.0, 0.0};
+    front.add(1.0, pose(4.5, 4.0, 0.0), 0.0, 1, 2.0);
+    front.add(1.1, pose(3.5, 4.2, 0.0), 0.0, 1, 2.0);
+    vision.periodic();
+
+    assertEquals(1, estimator.poses.size());
+    assertEquals(1.1, estimator.timestamps.get(0), 1e-9);
+    assertEquals(List.of(1.0, 1.1), estimator.queriedTimestamps); // Looked up at result times
+  }
+
+  @Test
+  void acceptsSingleTagWithoutPoseHistory() {
+    estimator.reference = null; // Pose history does not reach back this far
+    front.add(1.0, pose(10.0, 4.0, 0.0), 0.0, 1, 2.0);
+    vision.periodic();
+
+    assertEquals(1, estimator.poses.size());
+  }
+
+  @Test
+  void trustsMultiTagResultLessWithJumpFromOdometry() {
+    estimator.reference = new double[] {3.0, 4.0, 0.0};
+    front.add(1.0, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    front.add(1.1, pose(3.5, 4.0, 0.0), 0.0, 2, 2.0);
+    front.add(1.2, pose(10.0, 4.0, 0.0), 0.0, 2, 2.0);
+    vision.periodic();
+
+    // Far results are still accepted, so that repeated results can correct a bad initial pose
+    assertEquals(3, estimator.poses.size());
+    double atReference = estimator.stdDevs.get(0).get(0, 0);
+    assertEquals(0.04, atReference, 1e-9);
+    assertEquals(2.0 * atReference, estimator.stdDevs.get(1).get(0, 0), 1e-9); // Half a meter
+    assertEquals(197.0 * atReference, estimator.stdDevs.get(2).get(0, 0), 1e-9); // 7 meters
+  }
+
+  @Test
+  void appliesResultsFromAllCamerasInTimeOrder() {
+    front.add(1.00, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    front.add(1.06, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    back.add(0.98, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    back.add(1.03, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    vision.periodic();
+
+    assertEquals(List.of(0.98, 1.00, 1.03, 1.06), estimator.timestamps);
+  }
+
+  @Test
+  void scalesStdDevsWithDistanceAndTagCount() {
+    front.add(1.0, pose(3.0, 4.0, 0.0), 0.0, 2, 1.0);
+    front.add(1.1, pose(3.0, 4.0, 0.0), 0.0, 2, 3.0);
+    front.add(1.2, pose(3.0, 4.0, 0.0), 0.0, 4, 3.0);
+    vision.periodic();
+
+    double near = estimator.stdDevs.get(0).get(0, 0);
+    double far = estimator.stdDevs.get(1).get(0, 0);
+    double farMoreTags = estimator.stdDevs.get(2).get(0, 0);
+    assertEquals(0.01, near, 1e-9);
+    assertEquals(9.0 * near, far, 1e-9);
+    assertEquals(far / 2.0, farMoreTags, 1e-9);
+    assertTrue(estimator.stdDevs.get(0).get(2, 0) > near); // Heading is trusted less
+  }
+
+  @Test
+  void clearsResultsBetweenCycles() {
+    front.add(1.0, pose(3.0, 4.0, 0.0), 0.0, 2, 2.0);
+    vision.periodic();
+    vision.periodic();
+
+    assertEquals(1, estimator.poses.size());
+  }
+
+  private static Pose3d pose(double x, double y, double z) {
+    return new Pose3d(x, y, z, new Rotation3d());
+  }
+
+  /** A camera that returns the results added since the last update. */
+  private static class FakeCamera implements VisionIO {
+    private final List<Double> timestamps = new ArrayList<>();
+    private final List<Pose3d> poses = new ArrayList<>();
+    private final List<Double> ambiguities = new ArrayList<>();
+    private final List<Integer> tagCounts = new ArrayList<>();
+    private final List<Double> distances = new ArrayList<>();
+
+    private void add(
+        double timestamp, Pose3d pose, double ambiguity, int tagCount, double distance) {
+      timestamps.add(timestamp);
+      poses.add(pose);
+      ambiguities.add(ambiguity);
+      tagCounts.add(tagCount);
+      distances.add(distance);
+    }
+
+    @Override
+    public void updateInputs(VisionIOInputs inputs) {
+      int count = timestamps.size();
+      inputs.connected = true;
+      inputs.timestamps = new double[count];
+      inputs.robotPoses = poses.toArray(new Pose3d[0]);
+      inputs.ambiguities = new double[count];
+      inputs.tagCounts = new int[count];
+      inputs.averageTagDistancesMeters = new double[count];
+      for (int i = 0; i < count; i++) {
+        inputs.timestamps[i] = timestamps.get(i);
+        inputs.ambiguities[i] = ambiguities.get(i);
+        inputs.tagCounts[i] = tagCounts.get(i);
+        inputs.averageTagDistancesMeters[i] = distances.get(i);
+      }
+      timestamps.clear();
+      poses.clear();
+      ambiguities.clear();
+      tagCounts.clear();
+      distances.clear();
+    }
+  }
+
+  /** An estimator with a fixed reference pose that records the measurements it receives. */
+  private static class FakeEstimator implements Vision.Estimator {
+    private double[] reference = null;
+    private final List<Double> queriedTimestamps = new ArrayList<>();
+    private final List<Pose2d> poses = new ArrayList<>();
+    private final List<Double> timestamps = new ArrayList<>();
+    private final List<Matrix<N3, N1>> stdDevs = new ArrayList<>();
+
+    @Override
+    public boolean getPoseAt(double timestamp, double[] out) {
+      queriedTimestamps.add(timestamp);
+      if (reference == null) {
+        return false;
+      }
+      System.arraycopy(reference, 0, out, 0, 3);
+      return true;
+    }
+
+    @Override
+    public void addVisionMeasurement(Pose2d visionPose, double timestamp, Matrix<N3, N1> stdDevs) {
+      poses.add(visionPose);
+      timestamps.add(timestamp);
+      this.stdDevs.add(stdDevs);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import java.lang.management.ManagementFactory;
+
+/** Measures the memory allocated by the current thread, for allocation tests and benchmarks. */
+public final class AllocationMeter {
+  private static final com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private AllocationMeter() {}
+
+  /** Returns the total number of bytes allocated by the current thread so far. */
+  public static long getAllocatedBytes() {
+    return threadBean.getCurrentThreadAllocatedBytes();
+  }
+
+  /**
+   * Runs a task repeatedly and returns the mean number of bytes it allocated per run. The task is
+   * first run as many times without measuring, so that it is compiled before it is measured.
+   */
+  public static double measure(int runs, Runnable task) {
+    for (int i = 0; i < runs; i++) {
+      task.run();
+    }
+    long start = getAllocatedBytes();
+    for (int i = 0; i < runs; i++) {
+      task.run();
+    }
+    return (double) (getAllocatedBytes() - start) / runs;
+  }
+
+  /**
+   * Runs a task repeatedly and returns the mean wall-clock time per run in microseconds. Only
+   * meaningful after the task has been warmed up, e.g. by {@link #measure}.
+   */
+  public static double timeMicros(int runs, Runnable task) {
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; i++) {
+      task.run();
+    }
+    return (System.nanoTime() - start) / 1e3 / runs;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ConfigExecutorTest {
+  private static final long TIMEOUT_SECS = 5;
+
+  @BeforeAll
+  static void initializeHal() {
+    HAL.initialize(500, 0); // Failures are reported to the driver station
+  }
+
+  @Test
+  void appliesConstructionTimeWritesOnCaller() {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(10));
+    FakeConfigurator configurator = new FakeConfigurator(0);
+
+    CompletableFuture<Boolean> future = executor.submit("Device/Slot0", configurator.write(1));
+
+    assertTrue(future.isDone());
+    assertTrue(future.join());
+    assertEquals(List.of(1), configurator.applied);
+    assertSame(Thread.currentThread(), configurator.lastThread);
+  }
+
+  @Test
+  void retriesFailedConstructionTimeWriteInBackground() throws Exception {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(100));
+    FakeConfigurator configurator = new FakeConfigurator(2);
+
+    CompletableFuture<Boolean> future = executor.submit("Device/Slot0", configurator.write(1));
+
+    assertFalse(future.isDone());
+    assertTrue(future.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertEquals(3, configurator.attempts);
+    assertNotSame(Thread.currentThread(), configurator.lastThread);
+  }
+
+  @Test
+  void appliesRuntimeWritesInBackground() throws Exception {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(10));
+    executor.periodic();
+    FakeConfigurator configurator = new FakeConfigurator(0);
+    CountDownLatch release = new CountDownLatch(1);
+
+    CompletableFuture<Boolean> future =
+        executor.submit("Device/Slot0", configurator.blockingWrite(1, release));
+
+    assertFalse(future.isDone()); // The caller does not wait for the device
+    release.countDown();
+    assertTrue(future.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), configurator.lastThread);
+  }
+
+  @Test
+  void replacesQueuedWriteWithSameKey() throws Exception {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(10));
+    executor.periodic();
+    FakeConfigurator blocker = new FakeConfigurator(0);
+    FakeConfigurator configurator = new FakeConfigurator(0);
+    CountDownLatch release = new CountDownLatch(1);
+
+    // Hold the worker so that the next writes stay queued
+    CompletableFuture<Boolean> blocking =
+        executor.submit("Other/Slot0", blocker.blockingWrite(0, release));
+    blocker.awaitStarted();
+    CompletableFuture<Boolean> first = executor.submit("Device/Slot0", configurator.write(1));
+    CompletableFuture<Boolean> second = executor.submit("Device/Slot0", configurator.write(2));
+    CompletableFuture<Boolean> third = executor.submit("Device/Slot0", configurator.write(3));
+    assertEquals(1, executor.getPendingCount());
+    release.countDown();
+
+    assertSame(first, second);
+    assertSame(first, third);
+    assertTrue(blocking.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertTrue(third.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertEquals(List.of(3), configurator.applied);
+  }
+
+  @Test
+  void retriesDoNotBlockOtherWrites() throws Exception {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(500));
+    executor.periodic();
+    FakeConfigurator failing = new FakeConfigurator(1);
+    FakeConfigurator healthy = new FakeConfigurator(0);
+
+    CompletableFuture<Boolean> retried = executor.submit("Failing/Slot0", failing.write(1));
+    failing.awaitStarted();
+    long start = System.nanoTime();
+    CompletableFuture<Boolean> other = executor.submit("Healthy/Slot0", healthy.write(2));
+
+    // The healthy write runs while the failed write waits for its retry
+    assertTrue(other.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+    assertFalse(retried.isDone());
+    assertTrue(retried.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertEquals(2, failing.attempts);
+  }
+
+  @Test
+  void givesUpAfterRepeatedFailures() throws Exception {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(1));
+    executor.periodic();
+    FakeConfigurator configurator = new FakeConfigurator(Integer.MAX_VALUE);
+
+    CompletableFuture<Boolean> future = executor.submit("Device/Slot0", configurator.write(1));
+
+    assertFalse(future.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    assertEquals(5, configurator.attempts);
+    assertEquals(0, executor.getPendingCount());
+  }
+
+  @Test
+  void reportsExceptionsAsFailures() throws Exception {
+    ConfigExecutor executor = new ConfigExecutor(TimeUnit.MILLISECONDS.toNanos(1));
+    executor.periodic();
+
+    CompletableFuture<Boolean> future =
+        executor.submit(
+            "Device/Slot0",
+            () -> {
+              throw new IllegalStateException("Device not found");
+            });
+
+    assertFalse(future.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+  }
+
+  /** A stand-in for a device configurator that fails a number of times before succeeding. */
+  private static class FakeConfigurator {
+    private final List<Integer> applied = new CopyOnWriteArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private int failuresLeft;
+    private volatile int attempts = 0;
+    private volatile Thread lastThread = null;
+
+    private FakeConfigurator(int failures) {
+      failuresLeft = failures;
+    }
+
+    /** Returns a write of the value that reports whether it was applied. */
+    private BooleanSupplier write(int value) {
+      return blockingWrite(value, new CountDownLatch(0));
+    }
+
+    /** Returns a write of the value that waits for the latch, like a slow CAN transaction. */
+    private BooleanSupplier blockingWrite(int value, CountDownLatch release) {
+      return () -> {
+        lastThread = Thread.currentThread();
+        attempts++;
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          return false;
+        }
+        if (failuresLeft > 0) {
+          failuresLeft--;
+          return false;
+        }
+        applied.add(value);
+        return true;
+      };
+    }
+
+    private void awaitStarted() throws InterruptedException {
+      assertTrue(started.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class DeadlineSchedulerTest {
+  private static final double PERIOD_SECS = 1.0 / 250.0;
+  private static final long SECOND_NANOS = 1_000_000_000L;
+
+  /** Simulated clock that only advances when the loop works or sleeps. */
+  private static class FakeClock {
+    private long nanos = 0;
+
+    long get() {
+      return nanos;
+    }
+
+    void advance(long deltaNanos) {
+      nanos += deltaNanos;
+    }
+  }
+
+  /** Result of running a sampling loop for one simulated second. */
+  private static class RunResult {
+    int samples = 0;
+    int skipped = 0;
+  }
+
+  /**
+   * Runs a sampling loop against a fake signal source whose refresh takes the specified time, like
+   * the non-FD loop in the Phoenix odometry thread.
+   */
+  private static RunResult runForOneSecond(long refreshNanos) throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    DeadlineScheduler scheduler = new DeadlineScheduler(PERIOD_SECS, clock::get, clock::advance);
+    RunResult result = new RunResult();
+    scheduler.waitForNextDeadline();
+    while (clock.get() < SECOND_NANOS) {
+      result.skipped += scheduler.waitForNextDeadline();
+      clock.advance(refreshNanos); // Refresh the fake signals
+      result.samples++;
+    }
+    return result;
+  }
+
+  @Test
+  void holdsRateWhenRefreshTakesPartOfPeriod() throws InterruptedException {
+    // A sleep of one period before each refresh would only reach 1 / 5.5 ms = 182 Hz
+    RunResult result = runForOneSecond(1_500_000);
+    assertEquals(250, result.samples, 1);
+    assertEquals(0, result.skipped);
+  }
+
+  @Test
+  void skipsDeadlinesWithoutDriftWhenRefreshIsTooSlow() throws InterruptedException {
+    // Each refresh overruns the period, so the loop samples as fast as the refresh allows and
+    // nearly every deadline on the grid is either sampled or skipped (a sample that is exactly one
+    // period late catches up instead of skipping)
+    RunResult result = runForOneSecond(6_000_000);
+    assertEquals(166, result.samples, 1);
+    assertEquals(250, result.samples + result.skipped, 3);
+  }
+
+  @Test
+  void catchesUpAfterSingleLateSample() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    DeadlineScheduler scheduler = new DeadlineScheduler(PERIOD_SECS, clock::get, clock::advance);
+    scheduler.waitForNextDeadline();
+    assertEquals(0, scheduler.waitForNextDeadline());
+    long firstDeadline = clock.get();
+
+    // Less than a period late, the next deadline is kept on the grid
+    clock.advance(6_000_000);
+    assertEquals(0, scheduler.waitForNextDeadline());
+    assertEquals(firstDeadline + 6_000_000, clock.get());
+    assertEquals(0, scheduler.waitForNextDeadline());
+    assertEquals(firstDeadline + 8_000_000, clock.get());
+  }
+
+  @Test
+  void resetRestartsGrid() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    DeadlineScheduler scheduler = new DeadlineScheduler(PERIOD_SECS, clock::get, clock::advance);
+    scheduler.waitForNextDeadline();
+    clock.advance(SECOND_NANOS);
+    scheduler.reset();
+    assertEquals(0, scheduler.waitForNextDeadline());
+    long start = clock.get();
+    assertEquals(0, scheduler.waitForNextDeadline());
+    assertEquals(4_000_000, clock.get() - start);
+  }
+}
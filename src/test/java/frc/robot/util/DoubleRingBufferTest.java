@@ -0,0 +1,159 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import org.junit.jupiter.api.Test;
+
+class DoubleRingBufferTest {
+  @Test
+  void drainsInOrderAcrossWraparound() {
+    DoubleRingBuffer buffer = new DoubleRingBuffer(4);
+    double[] out = new double[4];
+    for (int round = 0; round < 10; round++) {
+      assertTrue(buffer.offer(round));
+      assertTrue(buffer.offer(round + 0.5));
+      assertTrue(buffer.offer(round + 0.75));
+      assertEquals(3, buffer.drainTo(out));
+      assertArrayEquals(new double[] {round, round + 0.5, round + 0.75}, slice(out, 3));
+    }
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  void dropsValuesWhenFull() {
+    DoubleRingBuffer buffer = new DoubleRingBuffer(2);
+    assertTrue(buffer.offer(1.0));
+    assertTrue(buffer.offer(2.0));
+    assertTrue(buffer.isFull());
+    assertFalse(buffer.offer(3.0));
+
+    double[] out = new double[2];
+    assertEquals(2, buffer.drainTo(out));
+    assertArrayEquals(new double[] {1.0, 2.0}, out);
+  }
+
+  @Test
+  void drainsPartiallyIntoOffset() {
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8);
+    for (int i = 0; i < 5; i++) {
+      buffer.offer(i);
+    }
+    double[] out = new double[4];
+    assertEquals(2, buffer.drainTo(out, 1, 2));
+    assertArrayEquals(new double[] {0.0, 0.0, 1.0, 0.0}, out);
+    assertEquals(3, buffer.size());
+
+    buffer.clear();
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  void handsOffEveryValueBetweenThreads() throws InterruptedException {
+    DoubleRingBuffer buffer = new DoubleRingBuffer(20);
+    int count = 100_000;
+    Thread producer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < count; i++) {
+                while (!buffer.offer(i)) {
+                  Thread.yield();
+                }
+              }
+            });
+    producer.start();
+
+    double[] out = new double[20];
+    int received = 0;
+    while (received < count) {
+      int drained = buffer.drainTo(out);
+      if (drained == 0) {
+        Thread.yield();
+      }
+      for (int i = 0; i < drained; i++) {
+        assertEquals(received, out[i]);
+        received++;
+      }
+    }
+    producer.join();
+  }
+
+  /**
+   * Compares one cycle of odometry handoff with the previous boxed queues: 9 signals (a drive and
+   * turn position per module and the gyro yaw) with 5 samples each at 250 Hz, drained into the
+   * logged arrays.
+   */
+  @Test
+  void benchmarkCycleAgainstBoxedQueue() {
+    int signals = 9;
+    int samplesPerCycle = 5;
+    int cycles = 20_000;
+
+    DoubleRingBuffer[] buffers = new DoubleRingBuffer[signals];
+    @SuppressWarnings("unchecked")
+    ArrayBlockingQueue<Double>[] queues = new ArrayBlockingQueue[signals];
+    for (int i = 0; i < signals; i++) {
+      buffers[i] = new DoubleRingBuffer(20);
+      queues[i] = new ArrayBlockingQueue<>(20);
+    }
+    double[] scratch = new double[20];
+    double[] sink = new double[1];
+
+    Runnable ringCycle =
+        () -> {
+          for (int signal = 0; signal < signals; signal++) {
+            for (int i = 0; i < samplesPerCycle; i++) {
+              buffers[signal].offer(sink[0] + i);
+            }
+            int count = buffers[signal].drainTo(scratch);
+            sink[0] += scratch[count - 1];
+          }
+        };
+    Runnable boxedCycle =
+        () -> {
+          for (int signal = 0; signal < signals; signal++) {
+            for (int i = 0; i < samplesPerCycle; i++) {
+              queues[signal].offer(sink[0] + i);
+            }
+            double[] values = queues[signal].stream().mapToDouble(Double::doubleValue).toArray();
+            queues[signal].clear();
+            sink[0] += values[values.length - 1];
+          }
+        };
+
+    double ringBytes = AllocationMeter.measure(cycles, ringCycle);
+    double boxedBytes = AllocationMeter.measure(cycles, boxedCycle);
+    double ringMicros = AllocationMeter.timeMicros(cycles, ringCycle);
+    double boxedMicros = AllocationMeter.timeMicros(cycles, boxedCycle);
+    String result =
+        String.format(
+            "Per cycle: ring buffer %.0f B %.2f us, boxed queue %.0f B %.2f us",
+            ringBytes, ringMicros, boxedBytes, boxedMicros);
+
+    // The drain into a reused array allocates nothing, the boxed queue allocates every sample
+    assertTrue(ringBytes < 1.0, result);
+    assertTrue(boxedBytes > signals * samplesPerCycle * 16, result);
+  }
+
+  private static double[] slice(double[] values, int count) {
+    double[] result = new double[count];
+    System.arraycopy(values, 0, result, 0, count);
+    return result;
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.system.plant.DCMotor;
+import edu.wpi.first.wpilibj.simulation.DCMotorSim;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class FixedStepMotorSimTest {
+  private static final DCMotor MOTOR = DCMotor.getNEO(1);
+  private static final double GEARING = 1.5;
+  private static final double MOI = 0.004;
+  private static final double STEP_SECS = 0.001;
+
+  @BeforeAll
+  static void initializeHal() {
+    HAL.initialize(500, 0); // DCMotorSim clamps its input to the simulated battery voltage
+  }
+
+  @Test
+  void matchesAnalyticStepResponse() {
+    FixedStepMotorSim sim = new FixedStepMotorSim(MOTOR, GEARING, MOI, STEP_SECS);
+    double volts = 10.0;
+    sim.setInputVoltage(volts);
+
+    // dw/dt = a * w + b * V, so w(t) = w_ss * (1 - e^(a * t)) from rest
+    double a =
+        -GEARING * GEARING * MOTOR.KtNMPerAmp / (MOTOR.KvRadPerSecPerVolt * MOTOR.rOhms * MOI);
+    double steadyStateVelocity = volts * MOTOR.KvRadPerSecPerVolt / GEARING;
+    for (int i = 1; i <= 2000; i++) {
+      sim.step();
+      double t = i * STEP_SECS;
+      double velocity = steadyStateVelocity * -Math.expm1(a * t);
+      double position = steadyStateVelocity * (t - Math.expm1(a * t) / a);
+      assertEquals(velocity, sim.getVelocityRadPerSec(), 1e-9 * steadyStateVelocity);
+      assertEquals(position, sim.getPositionRad(), 1e-9 * steadyStateVelocity);
+    }
+  }
+
+  @Test
+  void matchesDCMotorSim() {
+    FixedStepMotorSim sim = new FixedStepMotorSim(MOTOR, GEARING, MOI, STEP_SECS);
+    DCMotorSim reference = new DCMotorSim(MOTOR, GEARING, MOI);
+
+    // Spin up, reverse, then coast
+    for (int i = 0; i < 3000; i++) {
+      double volts = i < 1000 ? 12.0 : i < 2000 ? -6.0 : 0.0;
+      sim.setInputVoltage(volts);
+      reference.setInputVoltage(volts);
+      sim.step();
+      reference.update(STEP_SECS);
+
+      double scale = Math.max(1.0, Math.abs(reference.getAngularVelocityRadPerSec()));
+      assertEquals(
+          reference.getAngularVelocityRadPerSec(), sim.getVelocityRadPerSec(), 1e-6 * scale);
+      assertEquals(reference.getAngularPositionRad(), sim.getPositionRad(), 1e-6 * scale);
+      if (volts > 0.0) {
+        // DCMotorSim reports the magnitude of the current, signed by the voltage
+        assertEquals(reference.getCurrentDrawAmps(), sim.getCurrentDrawAmps(), 1e-6 * scale);
+      }
+    }
+  }
+
+  @Test
+  void settlesWhereLoadBalancesMotorTorque() {
+    FixedStepMotorSim sim = new FixedStepMotorSim(MOTOR, GEARING, MOI, STEP_SECS);
+    double volts = 12.0;
+    double loadTorque = 1.0;
+    sim.setInputVoltage(volts);
+    sim.setLoadTorque(loadTorque);
+    for (int i = 0; i < 20_000; i++) {
+      sim.step(); // Many time constants
+    }
+
+    // The motor torque at the output is the gearing times the torque constant times the current
+    double outputTorque = GEARING * MOTOR.KtNMPerAmp * sim.getCurrentDrawAmps();
+    assertEquals(loadTorque, outputTorque, 1e-6);
+    assertTrue(sim.getVelocityRadPerSec() < volts * MOTOR.KvRadPerSecPerVolt / GEARING);
+  }
+
+  @Test
+  void setsState() {
+    FixedStepMotorSim sim = new FixedStepMotorSim(MOTOR, GEARING, MOI, STEP_SECS);
+    sim.setState(2.0, 100.0);
+
+    assertEquals(2.0, sim.getPositionRad());
+    assertEquals(100.0, sim.getVelocityRadPerSec());
+    sim.step();
+    assertTrue(sim.getPositionRad() > 2.0 + 0.09); // Coasting and slowing down
+    assertTrue(sim.getVelocityRadPerSec() < 100.0);
+  }
+
+  @Test
+  void stepsWithoutAllocating() {
+    FixedStepMotorSim sim = new FixedStepMotorSim(MOTOR, GEARING, MOI, STEP_SECS);
+    double[] sink = new double[1];
+    double bytes =
+        AllocationMeter.measure(
+            100_000,
+            () -> {
+              // One 20 ms cycle of a 1 kHz closed loop
+              for (int i = 0; i < 20; i++) {
+                sim.setInputVoltage(12.0 - 0.03 * sim.getVelocityRadPerSec());
+                sim.setLoadTorque(0.1);
+                sim.step();
+                sink[0] += sim.getCurrentDrawAmps();
+              }
+            });
+
+    assertTrue(bytes < 1.0, "Allocated " + bytes + " bytes per cycle");
+  }
+}